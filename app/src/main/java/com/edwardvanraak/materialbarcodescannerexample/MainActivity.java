@@ -69,6 +69,8 @@ public class MainActivity extends AppCompatActivity {
                     }
                 })
                 .build();
+        // Opens the camera while the scanner activity is being launched
+        materialBarcodeScanner.prewarm();
         materialBarcodeScanner.startScan();
     }
 
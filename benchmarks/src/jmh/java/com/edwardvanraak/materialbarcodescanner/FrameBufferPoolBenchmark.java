@@ -0,0 +1,65 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per frame bookkeeping of a {@link FrameBufferPool}: looking up the buffer a frame
+ * was written into, recording its arrival, and handing it back to the source.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FrameBufferPoolBenchmark {
+
+    @Param({"4", "16"})
+    public int bufferCount;
+
+    private final QueueFrameSource source = new QueueFrameSource();
+    private FrameBufferPool pool;
+
+    /**
+     * Frame source which writes frames into its buffers in the order they were added.
+     */
+    static class QueueFrameSource implements FrameSource {
+        final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+        @Override
+        public void setCallback(Callback callback) {
+        }
+
+        @Override
+        public void addBuffer(byte[] buffer) {
+            buffers.add(buffer);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        pool = new FrameBufferPool(64, 48, bufferCount, bufferCount, 1);
+        pool.attach(source, 0);
+    }
+
+    @Benchmark
+    public FrameBuffer findAndRecycle() {
+        FrameBuffer frame = pool.find(source.buffers.poll());
+        pool.onFrameReceived(frame);
+        pool.recycle(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public FrameBuffer findLastAdded() {
+        // The buffer handed to the source last is the one found last.
+        return pool.find(source.buffers.peekLast());
+    }
+}
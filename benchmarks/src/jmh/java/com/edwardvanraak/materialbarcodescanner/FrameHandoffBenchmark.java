@@ -0,0 +1,204 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures handing a frame from the producer to the consumer with {@link FrameHandoff}, against
+ * the monitor based handoff {@link FrameProcessingRunnable} used before.
+ * The round trip benchmarks hand a frame to a waiting consumer thread, which hands it straight
+ * back, so they measure the wake-up latency a frame sees when detection is idle.  The contended
+ * benchmarks offer and poll from two threads at full speed, which is the cost the camera callback
+ * thread pays while detection is busy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameHandoffBenchmark {
+
+    private static final Object FRAME = new Object();
+
+    /**
+     * The operations shared by both implementations.
+     */
+    interface Handoff {
+        Object offer(Object frame);
+
+        Object take();
+
+        Object poll();
+
+        void close();
+    }
+
+    /**
+     * The handoff as previously implemented by {@link FrameProcessingRunnable}: a pending field
+     * guarded by a monitor, with notifyAll() for every frame.
+     */
+    static class MonitorHandoff implements Handoff {
+        private final Object lock = new Object();
+        private Object pending;
+        private boolean closed;
+
+        @Override
+        public Object offer(Object frame) {
+            synchronized (lock) {
+                Object replaced = pending;
+                pending = frame;
+                lock.notifyAll();
+                return replaced;
+            }
+        }
+
+        @Override
+        public Object take() {
+            synchronized (lock) {
+                while (pending == null && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+                if (closed) {
+                    return null;
+                }
+                Object frame = pending;
+                pending = null;
+                return frame;
+            }
+        }
+
+        @Override
+        public Object poll() {
+            synchronized (lock) {
+                Object frame = pending;
+                pending = null;
+                return frame;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    static class LockFreeHandoff implements Handoff {
+        private final FrameHandoff<Object> handoff = new FrameHandoff<>();
+
+        LockFreeHandoff() {
+            handoff.open();
+        }
+
+        @Override
+        public Object offer(Object frame) {
+            return handoff.offer(frame);
+        }
+
+        @Override
+        public Object take() {
+            return handoff.take();
+        }
+
+        @Override
+        public Object poll() {
+            return handoff.poll();
+        }
+
+        @Override
+        public void close() {
+            handoff.close();
+        }
+    }
+
+    private static Handoff create(String implementation) {
+        return "monitor".equals(implementation) ? new MonitorHandoff() : new LockFreeHandoff();
+    }
+
+    /**
+     * A consumer thread which hands every frame it takes straight back.
+     */
+    @State(Scope.Thread)
+    public static class RoundTrip {
+        @Param({"lock-free", "monitor"})
+        public String implementation;
+
+        Handoff forward;
+        Handoff back;
+        private Thread consumer;
+
+        @Setup
+        public void setUp() {
+            forward = create(implementation);
+            back = create(implementation);
+            consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Object frame;
+                    while ((frame = forward.take()) != null) {
+                        back.offer(frame);
+                    }
+                }
+            });
+            consumer.start();
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            forward.close();
+            back.close();
+            consumer.join();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public Object roundTrip(RoundTrip state) {
+        state.forward.offer(FRAME);
+        return state.back.take();
+    }
+
+    /**
+     * One handoff shared by a producer and a consumer thread.
+     */
+    @State(Scope.Group)
+    public static class Contended {
+        @Param({"lock-free", "monitor"})
+        public String implementation;
+
+        Handoff handoff;
+
+        @Setup
+        public void setUp() {
+            handoff = create(implementation);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Object offer(Contended state) {
+        return state.handoff.offer(FRAME);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Object poll(Contended state) {
+        return state.handoff.poll();
+    }
+}
@@ -0,0 +1,130 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the transforms and checks the frame stages run on every camera frame before detection,
+ * at common preview sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class Nv21TransformBenchmark {
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    private int width;
+    private int height;
+    private byte[] frame;
+    private byte[] crop;
+    private byte[] downsampled;
+    private int[] fingerprint;
+    private ByteBuffer frameBuffer;
+    private ByteBuffer directCrop;
+    private FrameBuffer cropFrame;
+    private PyramidFrameDetector<Void> directPyramid;
+
+    @Setup
+    public void setUp() {
+        String[] size = previewSize.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        frame = new byte[FrameBufferPool.getBufferSize(width, height)];
+        new Random(42).nextBytes(frame);
+        crop = new byte[FrameBufferPool.getBufferSize(width / 2, height / 2)];
+        downsampled = new byte[width / 2 * height / 2];
+        fingerprint = new int[16 * 12];
+        frameBuffer = ByteBuffer.wrap(frame);
+        directCrop = ByteBuffer.allocateDirect(crop.length);
+
+        cropFrame = new FrameBuffer(width / 2 & ~1, height / 2 & ~1);
+        CropStage.crop(frameBuffer, width, height, width / 4 & ~1, height / 4 & ~1,
+                cropFrame.getData(), cropFrame.getWidth(), cropFrame.getHeight());
+        DerivedFramePool pool = new DerivedFramePool(1 << 20, false);
+        directPyramid = new PyramidFrameDetector<>(new FrameDetector<Void>() {
+            @Override
+            public Void detect(FrameBuffer frame) {
+                return null;
+            }
+
+            @Override
+            public void deliver(Void results) {
+            }
+
+            @Override
+            public void release() {
+            }
+        }, new PyramidFrameDetector.ResultCheck<Void>() {
+            @Override
+            public boolean hasResults(Void results) {
+                return true;
+            }
+        }, 0, new PyramidFrameDetector.Stats(), pool);
+    }
+
+    /**
+     * Crops the center quarter, as the crop stage does for the reticle in center mode.
+     */
+    @Benchmark
+    public byte[] cropCenter() {
+        CropStage.crop(frame, width, height, width / 4 & ~1, height / 4 & ~1,
+                crop, width / 2, height / 2);
+        return crop;
+    }
+
+    /**
+     * Crops the center quarter into a direct buffer, as the crop stage does with off-heap derived
+     * frames.
+     */
+    @Benchmark
+    public ByteBuffer cropCenterDirect() {
+        CropStage.crop(frameBuffer, width, height, width / 4 & ~1, height / 4 & ~1,
+                directCrop, width / 2, height / 2);
+        return directCrop;
+    }
+
+    @Benchmark
+    public byte[] downsampleLuma() {
+        PyramidFrameDetector.downsampleLuma(frame, width, downsampled, width / 2, height / 2);
+        return downsampled;
+    }
+
+    /**
+     * Downsamples a crop into a leased direct buffer, including clearing its chroma, and returns
+     * the lease.
+     */
+    @Benchmark
+    public FrameBuffer downsampleDirect() {
+        directPyramid.detect(cropFrame);
+        cropFrame.recycle();
+        return cropFrame;
+    }
+
+    @Benchmark
+    public float sharpnessScore() {
+        return SharpnessStage.score(frame, width, height);
+    }
+
+    @Benchmark
+    public int[] sceneFingerprint() {
+        SceneChangeStage.fingerprint(frameBuffer, width, height, fingerprint);
+        return fingerprint;
+    }
+
+    @Benchmark
+    public FrameRegion mapDisplayRegion() {
+        return FrameRegion.fromDisplay(0.25f, 0.3f, 0.75f, 0.7f, 1, false);
+    }
+}
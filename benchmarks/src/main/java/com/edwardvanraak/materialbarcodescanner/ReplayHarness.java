@@ -0,0 +1,221 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays recorded frame sequences, see {@link FrameRecording}, through the production frame loop
+ * on a plain JVM and reports throughput, latencies and decode rate per sequence.  The detector is
+ * pluggable, so that a JVM decoder can stand in for the Mobile Vision detector, which only runs on
+ * a device.
+ * <pre>
+ * ./gradlew :benchmarks:replay -PreplayArgs="[--real-time] [--workers N] [--detector CLASS] FILE..."
+ * </pre>
+ * The detector class must implement {@link FrameDetector} and have a public no-argument
+ * constructor; each worker gets an instance of its own.  A frame counts as decoded if its results
+ * are neither {@code null} nor an empty collection.  Without a detector, nothing is detected, which
+ * measures the overhead of the frame loop itself.
+ */
+public class ReplayHarness {
+
+    /**
+     * Counts frames as decoded if their results hold anything.
+     */
+    static final PyramidFrameDetector.ResultCheck<Object> DEFAULT_RESULT_CHECK =
+            new PyramidFrameDetector.ResultCheck<Object>() {
+                @Override
+                public boolean hasResults(Object results) {
+                    return results instanceof Collection ? !((Collection<?>) results).isEmpty()
+                            : results != null;
+                }
+            };
+
+    /**
+     * The outcome of replaying one sequence.
+     */
+    static class Report {
+        final String name;
+        final int frameCount;
+        final long elapsedNanos;
+        final ScannerMetrics metrics;
+
+        Report(String name, int frameCount, long elapsedNanos, ScannerMetrics metrics) {
+            this.name = name;
+            this.frameCount = frameCount;
+            this.elapsedNanos = elapsedNanos;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Returns the frames processed per second.
+         */
+        double getThroughput() {
+            return elapsedNanos > 0
+                    ? metrics.getProcessedCount() * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * Returns the fraction of the frames processed on which something was decoded.
+         */
+        double getDecodeRate() {
+            long processed = metrics.getProcessedCount();
+            return processed > 0 ? (double) metrics.getDecodedCount() / processed : 0;
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram detect = metrics.getDetectLatency();
+            LatencyHistogram total = metrics.getTotalLatency();
+            return String.format(Locale.US,
+                    "%-24s %6d %6d %6d %8.1f %6.1f%% %8d %7.1f %7.1f %7.1f %7.1f %7.1f %7.1f",
+                    name, frameCount, metrics.getProcessedCount(), metrics.getDroppedCount(),
+                    getThroughput(), getDecodeRate() * 100, metrics.getTimeToFirstDecodeMillis(),
+                    detect.getPercentileMicros(50) / 1000.0,
+                    detect.getPercentileMicros(95) / 1000.0,
+                    detect.getPercentileMicros(99) / 1000.0,
+                    total.getPercentileMicros(50) / 1000.0,
+                    total.getPercentileMicros(95) / 1000.0,
+                    total.getPercentileMicros(99) / 1000.0);
+        }
+
+        static String header() {
+            return String.format(Locale.US,
+                    "%-24s %6s %6s %6s %8s %7s %8s %7s %7s %7s %7s %7s %7s",
+                    "sequence", "frames", "proc", "drop", "fps", "decode", "first ms",
+                    "det p50", "det p95", "det p99", "e2e p50", "e2e p95", "e2e p99");
+        }
+    }
+
+    /**
+     * Replays a recording through a frame loop with one worker per detector, and returns the
+     * report once every frame has been processed or dropped.
+     *
+     * @param realTime whether to play back at the recorded rate rather than the maximum rate
+     */
+    static <T> Report replay(FrameRecording recording, List<? extends FrameDetector<T>> detectors,
+                             PyramidFrameDetector.ResultCheck<? super T> resultCheck,
+                             boolean realTime) throws InterruptedException {
+        ScannerMetrics metrics = new ScannerMetrics();
+        List<FrameDetector<T>> countingDetectors = new ArrayList<>();
+        for (FrameDetector<T> detector : detectors) {
+            countingDetectors.add(new DecodeCountingDetector<>(detector, resultCheck, metrics));
+        }
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(countingDetectors);
+        processor.setMetrics(metrics);
+        ReplayFrameSource source = new ReplayFrameSource(recording, realTime);
+        processor.attach(source, recording.getWidth(), recording.getHeight(), 0);
+
+        Thread thread = new Thread(processor, "ReplayProcessor");
+        processor.setActive(true);
+        thread.start();
+        long startNanos = System.nanoTime();
+        source.start();
+
+        source.awaitFinished(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        while (metrics.getProcessedCount() + metrics.getDroppedCount()
+                < metrics.getReceivedCount()) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        source.stop();
+        processor.setActive(false);
+        thread.join();
+        processor.detach();
+        processor.release();
+        return new Report(recording.getName(), recording.getFrameCount(), elapsedNanos, metrics);
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean realTime = false;
+        int workers = 1;
+        String detectorClass = null;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--real-time".equals(args[i])) {
+                realTime = true;
+            } else if ("--workers".equals(args[i]) && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if ("--detector".equals(args[i]) && i + 1 < args.length) {
+                detectorClass = args[++i];
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty() || workers < 1) {
+            System.err.println("Usage: ReplayHarness [--real-time] [--workers N]"
+                    + " [--detector CLASS] FILE...");
+            System.exit(2);
+        }
+
+        System.out.println(Report.header());
+        for (File file : files) {
+            List<FrameDetector<Object>> detectors = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                detectors.add(createDetector(detectorClass));
+            }
+            System.out.println(replay(FrameRecording.open(file), detectors,
+                    DEFAULT_RESULT_CHECK, realTime));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FrameDetector<Object> createDetector(String className) throws Exception {
+        if (className == null) {
+            return new FrameDetector<Object>() {
+                @Override
+                public Object detect(FrameBuffer frame) {
+                    return null;
+                }
+
+                @Override
+                public void deliver(Object results) {
+                }
+
+                @Override
+                public void release() {
+                }
+            };
+        }
+        return (FrameDetector<Object>) Class.forName(className).newInstance();
+    }
+
+    /**
+     * Counts the frames on which the wrapped detector decoded something.
+     */
+    private static class DecodeCountingDetector<T> implements FrameDetector<T> {
+        private final FrameDetector<T> mDetector;
+        private final PyramidFrameDetector.ResultCheck<? super T> mResultCheck;
+        private final ScannerMetrics mMetrics;
+
+        DecodeCountingDetector(FrameDetector<T> detector,
+                               PyramidFrameDetector.ResultCheck<? super T> resultCheck,
+                               ScannerMetrics metrics) {
+            mDetector = detector;
+            mResultCheck = resultCheck;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public T detect(FrameBuffer frame) {
+            return mDetector.detect(frame);
+        }
+
+        @Override
+        public void deliver(T results) {
+            if (mResultCheck.hasResults(results)) {
+                mMetrics.onItemsDecoded();
+            }
+            mDetector.deliver(results);
+        }
+
+        @Override
+        public void release() {
+            mDetector.release();
+        }
+    }
+}
@@ -0,0 +1,640 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresPermission;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.google.android.gms.common.images.Size;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Camera backend built on the camera2 API.  Frames for detection come from an {@link ImageReader}
+ * of {@code YUV_420_888} images, which are packed into the NV21 frame buffers by a
+ * {@link YuvFrameSource}.  The reader has a size of its own, so detection can run on frames of a
+ * lower resolution than the displayed preview, which gets a separate output of the capture
+ * session.  The analysis size is chosen at the aspect ratio of the preview size where the camera
+ * supports one, so that both outputs show the same part of the scene; otherwise the closest size
+ * is used, and the items detected don't line up exactly with the preview.
+ * The camera delivers its callbacks and images on a thread of its own, so that opening the camera
+ * and configuring the capture session, which are asynchronous in camera2, can be waited for on
+ * the camera source's camera thread.  All other methods are called with the camera source's lock
+ * held.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Backend {
+
+    private static final String TAG = "Camera2Backend";
+
+    /**
+     * How long to wait for the camera to open, the capture session to be configured, and the
+     * preview surface to take the selected size.
+     */
+    private static final long OPEN_TIMEOUT_MILLIS = 2500;
+
+    /**
+     * {@link ImageReader#acquireLatestImage()} needs room for one more image than it hands out.
+     */
+    private static final int MAX_IMAGES = 2;
+
+    private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread thread;
+    private Handler handler;
+
+    // Guarded by this.
+    private CameraCharacteristics characteristics;
+    private CameraDevice device;
+    private CameraCaptureSession session;
+    private CaptureRequest.Builder request;
+    private ImageReader reader;
+    private YuvFrameSource frameSource;
+    private android.util.Size previewSize;
+    private float zoom = 1f;
+    private boolean requestPending;
+
+    private final MediaImage mediaImage = new MediaImage();
+
+    private final Runnable applyRequest = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Camera2Backend.this) {
+                requestPending = false;
+                if (session == null) {
+                    return;
+                }
+                try {
+                    session.setRepeatingRequest(request.build(), null, handler);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    Log.e(TAG, "Could not update the capture request.", e);
+                }
+            }
+        }
+    };
+
+    Camera2Backend(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Opens the camera facing the given direction and selects the sizes of the preview and of the
+     * frames for detection closest to the requested ones.  The detection frames get the aspect
+     * ratio of the preview, if the camera supports it.
+     *
+     * @param facing either {@link CameraSource#CAMERA_FACING_BACK} or
+     *               {@link CameraSource#CAMERA_FACING_FRONT}
+     * @throws IOException if the camera could not be opened
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    synchronized void open(int facing, int previewWidth, int previewHeight, int analysisWidth,
+                           int analysisHeight) throws IOException {
+        if (thread == null) {
+            thread = new HandlerThread("Camera2");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String cameraId = findCamera(manager, facing);
+            if (cameraId == null) {
+                throw new RuntimeException("Could not find requested camera.");
+            }
+            characteristics = manager.getCameraCharacteristics(cameraId);
+            StreamConfigurationMap map =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            previewSize = selectSize(map.getOutputSizes(SurfaceHolder.class), previewWidth,
+                    previewHeight, 0);
+            android.util.Size analysisSize = selectSize(map.getOutputSizes(ImageFormat.YUV_420_888),
+                    analysisWidth, analysisHeight,
+                    (float) previewSize.getWidth() / previewSize.getHeight());
+
+            device = openDevice(manager, cameraId);
+            reader = ImageReader.newInstance(analysisSize.getWidth(), analysisSize.getHeight(),
+                    ImageFormat.YUV_420_888, MAX_IMAGES);
+            frameSource = new YuvFrameSource(analysisSize.getWidth(), analysisSize.getHeight());
+            reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader imageReader) {
+                    onImage(imageReader);
+                }
+            }, handler);
+            zoom = 1f;
+        } catch (CameraAccessException e) {
+            close();
+            throw new IOException("Could not open the camera.", e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the size of the displayed preview of the open camera.
+     */
+    synchronized Size getPreviewSize() {
+        return new Size(previewSize.getWidth(), previewSize.getHeight());
+    }
+
+    /**
+     * Returns the size of the frames for detection of the open camera.
+     */
+    synchronized Size getAnalysisSize() {
+        return new Size(frameSource.getWidth(), frameSource.getHeight());
+    }
+
+    /**
+     * Returns the clockwise angle by which the sensor of the open camera is rotated against the
+     * natural orientation of the device.
+     */
+    synchronized int getSensorOrientation() {
+        return characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    }
+
+    /**
+     * Returns the frame source delivering the frames of the open camera.
+     */
+    synchronized YuvFrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    /**
+     * Starts capturing frames for detection and, if a preview display is given, the preview.
+     *
+     * @throws IOException if the capture session could not be configured
+     */
+    void startCapture(@Nullable SurfaceHolder previewDisplay, @Nullable String focusMode,
+                      @Nullable String flashMode) throws IOException {
+        android.util.Size size;
+        synchronized (this) {
+            size = previewSize;
+        }
+        // Waiting for the surface must not block the image callbacks.
+        if (previewDisplay != null) {
+            setSurfaceSize(previewDisplay, size.getWidth(), size.getHeight());
+        }
+
+        synchronized (this) {
+            List<Surface> surfaces = new ArrayList<>();
+            surfaces.add(reader.getSurface());
+            if (previewDisplay != null) {
+                surfaces.add(previewDisplay.getSurface());
+            }
+            try {
+                request = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                for (Surface surface : surfaces) {
+                    request.addTarget(surface);
+                }
+                if (focusMode != null) {
+                    applyFocusMode(focusMode);
+                }
+                if (flashMode != null) {
+                    applyFlashMode(flashMode);
+                }
+
+                session = createSession(surfaces);
+                session.setRepeatingRequest(request.build(), null, handler);
+            } catch (CameraAccessException e) {
+                throw new IOException("Could not start capturing.", e);
+            }
+        }
+    }
+
+    /**
+     * Changes the flash mode, given as one of the camera1 flash modes, while capturing.
+     *
+     * @return false if the camera doesn't support the mode or isn't capturing
+     */
+    synchronized boolean setFlashMode(String mode) {
+        if (request == null || !applyFlashMode(mode)) {
+            return false;
+        }
+        scheduleRequest();
+        return true;
+    }
+
+    /**
+     * Changes the focus mode, given as one of the camera1 focus modes, while capturing.
+     *
+     * @return false if the camera doesn't support the mode or isn't capturing
+     */
+    synchronized boolean setFocusMode(String mode) {
+        if (request == null || !applyFocusMode(mode)) {
+            return false;
+        }
+        scheduleRequest();
+        return true;
+    }
+
+    /**
+     * Scales the digital zoom while capturing.
+     *
+     * @return the new zoom ratio in percent, or 0 if the camera isn't capturing or doesn't zoom
+     */
+    synchronized int zoom(float scale) {
+        if (request == null) {
+            return 0;
+        }
+        Float maxZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        if (maxZoom == null || maxZoom <= 1f) {
+            Log.w(TAG, "Zoom is not supported on this device");
+            return 0;
+        }
+        zoom = Math.max(1f, Math.min(maxZoom, zoom * scale));
+        Rect active = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        int width = (int) (active.width() / zoom);
+        int height = (int) (active.height() / zoom);
+        int left = (active.width() - width) / 2;
+        int top = (active.height() - height) / 2;
+        request.set(CaptureRequest.SCALER_CROP_REGION,
+                new Rect(left, top, left + width, top + height));
+        scheduleRequest();
+        return Math.round(zoom * 100);
+    }
+
+    /**
+     * Stops capturing and closes the camera, if open.
+     */
+    synchronized void close() {
+        if (handler != null) {
+            handler.removeCallbacks(applyRequest);
+        }
+        requestPending = false;
+        if (frameSource != null) {
+            frameSource.close();
+        }
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        request = null;
+    }
+
+    /**
+     * Closes the camera and stops the thread of its callbacks.
+     */
+    synchronized void release() {
+        close();
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    private synchronized void onImage(ImageReader imageReader) {
+        if (imageReader != reader) {
+            // Closed in the meantime.
+            return;
+        }
+        Image image = imageReader.acquireLatestImage();
+        if (image != null) {
+            mediaImage.set(image);
+            frameSource.onImage(mediaImage);
+        }
+    }
+
+    /**
+     * Applies all changes made within one frame interval with a single update of the capture
+     * request, like {@link CameraControl} does for camera1.
+     */
+    private void scheduleRequest() {
+        if (!requestPending) {
+            requestPending = true;
+            handler.post(applyRequest);
+        }
+    }
+
+    private boolean applyFlashMode(String mode) {
+        if (!Boolean.TRUE.equals(characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE))) {
+            return false;
+        }
+        int aeMode = CaptureRequest.CONTROL_AE_MODE_ON;
+        int flashMode = CaptureRequest.FLASH_MODE_OFF;
+        switch (mode) {
+            case Camera.Parameters.FLASH_MODE_TORCH:
+                flashMode = CaptureRequest.FLASH_MODE_TORCH;
+                break;
+            case Camera.Parameters.FLASH_MODE_OFF:
+                break;
+            case Camera.Parameters.FLASH_MODE_ON:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_AUTO:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_RED_EYE:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE;
+                break;
+            default:
+                return false;
+        }
+        request.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
+        request.set(CaptureRequest.FLASH_MODE, flashMode);
+        return true;
+    }
+
+    private boolean applyFocusMode(String mode) {
+        int afMode;
+        switch (mode) {
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE:
+                afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+                break;
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_AUTO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_AUTO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_MACRO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_MACRO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_EDOF:
+                afMode = CaptureRequest.CONTROL_AF_MODE_EDOF;
+                break;
+            case Camera.Parameters.FOCUS_MODE_FIXED:
+            case Camera.Parameters.FOCUS_MODE_INFINITY:
+                afMode = CaptureRequest.CONTROL_AF_MODE_OFF;
+                break;
+            default:
+                return false;
+        }
+        int[] availableModes =
+                characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (availableModes == null || !contains(availableModes, afMode)) {
+            Log.i(TAG, "Camera focus mode: " + mode + " is not supported on this device.");
+            return false;
+        }
+        request.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+        if (Camera.Parameters.FOCUS_MODE_INFINITY.equals(mode)) {
+            request.set(CaptureRequest.LENS_FOCUS_DISTANCE, 0f);
+        }
+        return true;
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    private CameraDevice openDevice(CameraManager manager, String cameraId)
+            throws CameraAccessException, IOException {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final AtomicReference<CameraDevice> result = new AtomicReference<>();
+        // Set once the wait timed out, after which a camera opening late is closed right away,
+        // as nobody else would.
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        manager.openCamera(cameraId, new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice camera) {
+                result.set(camera);
+                if (abandoned.get()) {
+                    closeDevice(result);
+                }
+                opened.countDown();
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                camera.close();
+                opened.countDown();
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                Log.e(TAG, "Camera " + camera.getId() + " failed with error " + error);
+                camera.close();
+                opened.countDown();
+            }
+        }, handler);
+        try {
+            await(opened, "Timed out opening camera " + cameraId);
+        } catch (IOException e) {
+            abandoned.set(true);
+            closeDevice(result);
+            throw e;
+        }
+        CameraDevice device = result.get();
+        if (device == null) {
+            throw new IOException("Could not open camera " + cameraId);
+        }
+        return device;
+    }
+
+    /**
+     * Closes the camera held by the given reference, if it still holds one.  Whichever of the
+     * waiting thread and the camera callback comes second closes it.
+     */
+    private static void closeDevice(AtomicReference<CameraDevice> result) {
+        CameraDevice device = result.getAndSet(null);
+        if (device != null) {
+            device.close();
+        }
+    }
+
+    private CameraCaptureSession createSession(List<Surface> surfaces)
+            throws CameraAccessException, IOException {
+        final CountDownLatch configured = new CountDownLatch(1);
+        final CameraCaptureSession[] result = new CameraCaptureSession[1];
+        device.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                result[0] = session;
+                configured.countDown();
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                configured.countDown();
+            }
+        }, handler);
+        await(configured, "Timed out configuring the capture session.");
+        if (result[0] == null) {
+            throw new IOException("Could not configure the capture session.");
+        }
+        return result[0];
+    }
+
+    /**
+     * Sizes the preview surface to one of the camera's output sizes, which camera2 requires.  The
+     * view may only be changed on the main thread, so this waits for it to take the size.
+     */
+    private void setSurfaceSize(final SurfaceHolder holder, final int width, final int height)
+            throws IOException {
+        Rect frame = holder.getSurfaceFrame();
+        if (frame.width() == width && frame.height() == height) {
+            return;
+        }
+        final CountDownLatch changed = new CountDownLatch(1);
+        SurfaceHolder.Callback callback = new SurfaceHolder.Callback() {
+            @Override
+            public void surfaceCreated(SurfaceHolder surfaceHolder) {
+            }
+
+            @Override
+            public void surfaceChanged(SurfaceHolder surfaceHolder, int format, int newWidth,
+                                       int newHeight) {
+                if (newWidth == width && newHeight == height) {
+                    changed.countDown();
+                }
+            }
+
+            @Override
+            public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
+            }
+        };
+        holder.addCallback(callback);
+        try {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    holder.setFixedSize(width, height);
+                }
+            });
+            await(changed, "Timed out resizing the preview surface.");
+        } finally {
+            holder.removeCallback(callback);
+        }
+    }
+
+    private static void await(CountDownLatch latch, String timeoutMessage) throws IOException {
+        try {
+            if (!latch.await(OPEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException(timeoutMessage);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the camera.");
+        }
+    }
+
+    private static String findCamera(CameraManager manager, int facing)
+            throws CameraAccessException {
+        int lensFacing = facing == CameraSource.CAMERA_FACING_FRONT
+                ? CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+        for (String cameraId : manager.getCameraIdList()) {
+            Integer cameraFacing = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (cameraFacing != null && cameraFacing == lensFacing) {
+                return cameraId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Selects the size closest to the desired one, preferring sizes of the given aspect ratio,
+     * unless it is 0.
+     */
+    private static android.util.Size selectSize(android.util.Size[] sizes, int desiredWidth,
+                                                int desiredHeight, float aspectRatio) {
+        android.util.Size selected = null;
+        int minDiff = Integer.MAX_VALUE;
+        boolean selectedMatchesAspectRatio = false;
+        for (android.util.Size size : sizes) {
+            boolean matchesAspectRatio = aspectRatio == 0 || Math.abs(
+                    (float) size.getWidth() / size.getHeight() - aspectRatio)
+                    < ASPECT_RATIO_TOLERANCE;
+            int diff = Math.abs(size.getWidth() - desiredWidth)
+                    + Math.abs(size.getHeight() - desiredHeight);
+            if ((matchesAspectRatio && !selectedMatchesAspectRatio)
+                    || (matchesAspectRatio == selectedMatchesAspectRatio && diff < minDiff)) {
+                selected = size;
+                minDiff = diff;
+                selectedMatchesAspectRatio = matchesAspectRatio;
+            }
+        }
+        return selected;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Presents the image currently delivered by the reader to the frame source, without
+     * allocating per image.
+     */
+    private static class MediaImage implements YuvFrameSource.Image {
+        private Image image;
+        private Image.Plane[] planes;
+
+        void set(Image image) {
+            this.image = image;
+            planes = image.getPlanes();
+        }
+
+        @Override
+        public int getWidth() {
+            return image.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return image.getHeight();
+        }
+
+        @Override
+        public ByteBuffer getBuffer(int plane) {
+            return planes[plane].getBuffer();
+        }
+
+        @Override
+        public int getRowStride(int plane) {
+            return planes[plane].getRowStride();
+        }
+
+        @Override
+        public int getPixelStride(int plane) {
+            return planes[plane].getPixelStride();
+        }
+
+        @Override
+        public void close() {
+            image.close();
+            image = null;
+            planes = null;
+        }
+    }
+}
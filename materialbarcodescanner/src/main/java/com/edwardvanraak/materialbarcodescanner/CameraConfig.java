@@ -0,0 +1,148 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.Locale;
+
+/**
+ * The camera configuration negotiated for a set of requested settings: the preview and picture
+ * sizes, the preview frame rate range and the focus and flash modes the camera accepted.
+ * Negotiating these takes several slow round trips to the camera, so the result is cached, see
+ * {@link CameraConfigCache}, and encoded into a string for that purpose.
+ */
+class CameraConfig {
+
+    private static final int VERSION = 1;
+    private static final String SEPARATOR = ";";
+
+    private final int previewWidth;
+    private final int previewHeight;
+    private final int pictureWidth;
+    private final int pictureHeight;
+    private final int minFps;
+    private final int maxFps;
+    private final String focusMode;
+    private final String flashMode;
+
+    /**
+     * @param pictureWidth the picture width, or 0 if no picture size is set
+     * @param minFps       the lower bound of the preview frame rate range, scaled by 1000
+     * @param maxFps       the upper bound of the preview frame rate range, scaled by 1000
+     * @param focusMode    the focus mode in effect, or {@code null} if unknown
+     * @param flashMode    the flash mode in effect, or {@code null} if the camera has no flash
+     */
+    CameraConfig(int previewWidth, int previewHeight, int pictureWidth, int pictureHeight,
+                 int minFps, int maxFps, String focusMode, String flashMode) {
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.pictureWidth = pictureWidth;
+        this.pictureHeight = pictureHeight;
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+        this.focusMode = focusMode;
+        this.flashMode = flashMode;
+    }
+
+    /**
+     * Returns the key under which the configuration negotiated for the given camera and requested
+     * settings is cached.
+     */
+    static String getKey(int cameraId, int requestedWidth, int requestedHeight,
+                         float requestedFps, String requestedFocusMode,
+                         String requestedFlashMode) {
+        return String.format(Locale.US, "%d/%dx%d@%.3f/%s/%s", cameraId, requestedWidth,
+                requestedHeight, requestedFps, requestedFocusMode, requestedFlashMode);
+    }
+
+    int getPreviewWidth() {
+        return previewWidth;
+    }
+
+    int getPreviewHeight() {
+        return previewHeight;
+    }
+
+    /**
+     * Returns the picture width, or 0 if no picture size is set.
+     */
+    int getPictureWidth() {
+        return pictureWidth;
+    }
+
+    int getPictureHeight() {
+        return pictureHeight;
+    }
+
+    int getMinFps() {
+        return minFps;
+    }
+
+    int getMaxFps() {
+        return maxFps;
+    }
+
+    String getFocusMode() {
+        return focusMode;
+    }
+
+    String getFlashMode() {
+        return flashMode;
+    }
+
+    /**
+     * Encodes this configuration into a string, see {@link #decode(String)}.
+     */
+    String encode() {
+        return VERSION + SEPARATOR + previewWidth + SEPARATOR + previewHeight + SEPARATOR
+                + pictureWidth + SEPARATOR + pictureHeight + SEPARATOR + minFps + SEPARATOR
+                + maxFps + SEPARATOR + (focusMode != null ? focusMode : "") + SEPARATOR
+                + (flashMode != null ? flashMode : "");
+    }
+
+    /**
+     * Decodes a configuration encoded by {@link #encode()}.
+     *
+     * @return the configuration, or {@code null} if the string is not a valid encoding of this
+     * version
+     */
+    static CameraConfig decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        String[] fields = encoded.split(SEPARATOR, -1);
+        if (fields.length != 9 || !String.valueOf(VERSION).equals(fields[0])) {
+            return null;
+        }
+        try {
+            CameraConfig config = new CameraConfig(Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
+                    Integer.parseInt(fields[6]), fields[7].isEmpty() ? null : fields[7],
+                    fields[8].isEmpty() ? null : fields[8]);
+            if (config.previewWidth <= 0 || config.previewHeight <= 0
+                    || config.pictureWidth < 0 || config.pictureHeight < 0
+                    || config.minFps > config.maxFps) {
+                return null;
+            }
+            return config;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CameraConfig)) {
+            return false;
+        }
+        return encode().equals(((CameraConfig) o).encode());
+    }
+
+    @Override
+    public int hashCode() {
+        return encode().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
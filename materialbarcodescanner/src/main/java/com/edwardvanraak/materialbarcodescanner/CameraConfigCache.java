@@ -0,0 +1,59 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Persists the {@link CameraConfig} negotiated per camera and requested settings, so that the
+ * next session can apply it right away instead of querying the camera for its capabilities.
+ * The cache is cleared whenever the device fingerprint changes, e.g. after a system update which
+ * may have changed the camera implementation.  Entries are not validated up front: a cached
+ * configuration the camera rejects is removed and negotiated again.
+ */
+class CameraConfigCache {
+
+    private static final String PREFERENCES_NAME = "materialbarcodescanner_camera_config";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_PREFIX = "config/";
+
+    private final SharedPreferences preferences;
+    private boolean fingerprintChecked;
+
+    CameraConfigCache(Context context) {
+        // Loading the preferences starts in the background right away; reading waits for it.
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the configuration cached under the given key, see {@link CameraConfig#getKey}, or
+     * {@code null} if there is none.
+     */
+    synchronized CameraConfig get(String key) {
+        checkFingerprint();
+        return CameraConfig.decode(preferences.getString(KEY_PREFIX + key, null));
+    }
+
+    synchronized void put(String key, CameraConfig config) {
+        checkFingerprint();
+        preferences.edit().putString(KEY_PREFIX + key, config.encode()).apply();
+    }
+
+    synchronized void remove(String key) {
+        preferences.edit().remove(KEY_PREFIX + key).apply();
+    }
+
+    private void checkFingerprint() {
+        if (fingerprintChecked) {
+            return;
+        }
+        fingerprintChecked = true;
+        if (!Build.FINGERPRINT.equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            preferences.edit()
+                    .clear()
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                    .apply();
+        }
+    }
+}
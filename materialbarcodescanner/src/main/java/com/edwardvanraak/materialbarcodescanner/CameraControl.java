@@ -0,0 +1,165 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Applies flash, focus and zoom changes to an open camera while its preview keeps running.  The
+ * current parameters are cached, so that a change costs no round trip to the camera, and changes
+ * are applied in batches: all changes made within one frame interval of the last batch are applied
+ * together with a single {@link Camera#setParameters(Camera.Parameters)}, e.g. the stream of zoom
+ * changes of a pinch gesture.
+ */
+@SuppressWarnings("deprecation")
+class CameraControl {
+
+    private static final String TAG = "CameraControl";
+
+    private final Camera camera;
+    private final Handler handler;
+    private final long frameIntervalMillis;
+
+    // Guarded by this.
+    private Camera.Parameters parameters;
+    private boolean dirty;
+    private boolean scheduled;
+    private boolean released;
+    private long lastAppliedMillis;
+
+    private final Runnable applyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CameraControl.this) {
+                scheduled = false;
+                apply();
+            }
+        }
+    };
+
+    /**
+     * @param parameters the parameters last set on the camera
+     * @param handler    the handler on whose thread batches of changes are applied
+     * @param maxFps     the upper bound of the preview frame rate range, scaled by 1000
+     */
+    CameraControl(Camera camera, Camera.Parameters parameters, Handler handler, int maxFps) {
+        this.camera = camera;
+        this.parameters = parameters;
+        this.handler = handler;
+        frameIntervalMillis = maxFps > 0 ? Math.max(1, 1000000 / maxFps) : 33;
+    }
+
+    /**
+     * Changes the flash mode.
+     *
+     * @return false if the camera doesn't support the mode
+     */
+    synchronized boolean setFlashMode(String mode) {
+        List<String> supportedFlashModes = parameters.getSupportedFlashModes();
+        if (supportedFlashModes == null || !supportedFlashModes.contains(mode)) {
+            return false;
+        }
+        if (!mode.equals(parameters.getFlashMode())) {
+            parameters.setFlashMode(mode);
+            schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Changes the focus mode.
+     *
+     * @return false if the camera doesn't support the mode
+     */
+    synchronized boolean setFocusMode(String mode) {
+        if (!parameters.getSupportedFocusModes().contains(mode)) {
+            return false;
+        }
+        if (!mode.equals(parameters.getFocusMode())) {
+            parameters.setFocusMode(mode);
+            schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Scales the zoom, relative to the zoom including changes not yet applied.
+     *
+     * @return the new zoom value, or 0 if the camera doesn't support zoom
+     */
+    synchronized int zoom(float scale) {
+        if (!parameters.isZoomSupported()) {
+            Log.w(TAG, "Zoom is not supported on this device");
+            return 0;
+        }
+        int maxZoom = parameters.getMaxZoom();
+
+        int currentZoom = parameters.getZoom() + 1;
+        float newZoom;
+        if (scale > 1) {
+            newZoom = currentZoom + scale * (maxZoom / 10);
+        } else {
+            newZoom = currentZoom * scale;
+        }
+        currentZoom = Math.round(newZoom) - 1;
+        if (currentZoom < 0) {
+            currentZoom = 0;
+        } else if (currentZoom > maxZoom) {
+            currentZoom = maxZoom;
+        }
+        if (currentZoom != parameters.getZoom()) {
+            parameters.setZoom(currentZoom);
+            schedule();
+        }
+        return currentZoom;
+    }
+
+    /**
+     * Applies the pending changes right away.
+     */
+    synchronized void flush() {
+        if (scheduled) {
+            handler.removeCallbacks(applyRunnable);
+            scheduled = false;
+        }
+        apply();
+    }
+
+    /**
+     * Drops the pending changes; the camera is about to be released.
+     */
+    synchronized void release() {
+        released = true;
+        dirty = false;
+        handler.removeCallbacks(applyRunnable);
+        scheduled = false;
+    }
+
+    private void schedule() {
+        dirty = true;
+        if (scheduled || released) {
+            return;
+        }
+        scheduled = true;
+        long delay = lastAppliedMillis + frameIntervalMillis - SystemClock.uptimeMillis();
+        handler.postDelayed(applyRunnable, Math.max(0, delay));
+    }
+
+    private void apply() {
+        if (!dirty || released) {
+            return;
+        }
+        dirty = false;
+        lastAppliedMillis = SystemClock.uptimeMillis();
+        try {
+            camera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            // Start over from what the camera actually runs with.
+            Log.e(TAG, "Could not apply camera parameters.", e);
+            parameters = camera.getParameters();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import android.hardware.Camera;
+
+/**
+ * Frame source backed by the preview callbacks of an opened {@link Camera}.  It must be closed
+ * before the camera is released, as buffers may still be added from the processing thread.
+ */
+@SuppressWarnings("deprecation")
+class CameraFrameSource implements FrameSource {
+
+    private final Camera camera;
+    private boolean closed;
+
+    CameraFrameSource(Camera camera) {
+        this.camera = camera;
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        if (callback == null) {
+            camera.setPreviewCallbackWithBuffer(null);
+            return;
+        }
+        camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                callback.onFrame(data);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void addBuffer(byte[] buffer) {
+        if (!closed) {
+            camera.addCallbackBuffer(buffer);
+        }
+    }
+
+    /**
+     * Drops the buffers added from now on, so that the camera can be released.
+     */
+    synchronized void close() {
+        closed = true;
+    }
+}
@@ -4,12 +4,15 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.os.Build;
-import android.os.SystemClock;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.StringDef;
@@ -23,15 +26,24 @@ import com.google.android.gms.common.images.Size;
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.Thread.State;
+import java.io.Writer;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 // Note: This requires Google Play Services 8.1 or higher, due to using indirect byte buffers for
 // storing images.
@@ -48,6 +60,9 @@ import java.util.Map;
  * the capabilities of the camera hardware and the detector options that you have selected.  If CPU
  * utilization is higher than you'd like, then you may want to consider reducing FPS.  If the camera
  * preview or detector results are too "jerky", then you may want to consider increasing FPS.
+ * The camera is owned by a dedicated camera thread.  Use the asynchronous commands such as
+ * {@link #startAsync(SurfaceHolder, CommandCallback)} and {@link #stopAsync()} from the main
+ * thread; they run on the camera thread in the order submitted and never block the caller.
  * The following Android permission is required to use the camera:
  * <ul>
  * <li>android.permissions.CAMERA</li>
@@ -74,6 +89,29 @@ class CameraSource {
      */
     private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
 
+    /**
+     * How long a camera opened by {@link #prewarm()} is held open without being started.
+     */
+    static final long PREWARM_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * How long a start or release waits for the detection still running after a stop.
+     */
+    static final long PROCESSING_STOP_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * How many bytes of derived frames returned to the pool of direct buffers are kept for reuse,
+     * enough for the crops and downsampled copies of a few frames in flight at 1080p.
+     */
+    private static final int DERIVED_FRAME_POOL_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The name and priority of the detector supplied to the builder among the detectors added with
+     * {@link Builder#addDetector}.
+     */
+    static final String PRIMARY_DETECTOR_NAME = "primary";
+    static final int PRIMARY_DETECTOR_PRIORITY = 0;
+
     @StringDef({
             Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
             Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO,
@@ -105,6 +143,49 @@ class CameraSource {
     // Guarded by cameraLock
     private Camera camera;
 
+    /**
+     * Applies flash, focus and zoom changes to the open camera.  Guarded by cameraLock.
+     */
+    private CameraControl mCameraControl;
+
+    /**
+     * The frame source of the open camera.  Guarded by cameraLock.
+     */
+    private CameraFrameSource mFrameSource;
+
+    /**
+     * The display the preview is started on, or null to start it on a dummy texture.  Guarded by
+     * cameraLock.
+     */
+    private SurfaceHolder mPreviewDisplay;
+
+    /**
+     * The camera2 backend used instead of the camera1 camera, or null to use camera1.  Guarded by
+     * cameraLock.
+     */
+    private Camera2Backend mCamera2;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The thread which owns the camera.  The asynchronous commands open, configure, start and stop
+     * the camera there, so that the main thread never waits for the camera, and the camera
+     * delivers its callbacks there, as it is opened on that thread.
+     */
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+    private volatile boolean mReleased;
+    private final Runnable mPrewarmTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (cameraLock) {
+                if (camera != null && mLifecycle.getState() == PipelineLifecycle.IDLE) {
+                    Log.d(TAG, "Releasing prewarmed camera which was not started.");
+                    stop();
+                }
+            }
+        }
+    };
+
     private int cameraFacing = CAMERA_FACING_BACK;
 
     /**
@@ -113,7 +194,8 @@ class CameraSource {
      */
     private int rotation;
 
-    private Size previewSize;
+    private volatile Size previewSize;
+    private volatile Size analysisSize;
 
     // These values may be requested by the caller.  Due to hardware limitations, we may need to
     // select close, but not exactly the same values for these.
@@ -121,6 +203,15 @@ class CameraSource {
     private int requestedPreviewWidth = 1024;
     private int requestedPreviewHeight = 768;
 
+    // The size of the frames for detection with camera2, or 0 to detect on frames of the preview
+    // size.
+    private int requestedAnalysisWidth;
+    private int requestedAnalysisHeight;
+
+    // The modes requested with the builder, which the camera configuration is negotiated and
+    // cached for, and the modes in effect, which may also be changed while the camera runs.
+    private String requestedFocusMode = null;
+    private String requestedFlashMode = null;
     private String focusMode = null;
     private String flashMode = null;
 
@@ -131,25 +222,87 @@ class CameraSource {
     private SurfaceTexture mDummySurfaceTexture;
 
     /**
-     * Dedicated thread and associated runnable for calling into the detector with frames, as the
-     * frames become available from the camera.
+     * Runnable for calling into the detector with frames, as the frames become available from the
+     * camera, and the lifecycle running it on a dedicated thread while the preview is running.  A
+     * camera opened by {@link #prewarm()} stays open while the lifecycle is idle until started, or
+     * released after {@link #PREWARM_TIMEOUT_MILLIS}.
      */
-    private Thread mProcessingThread;
     private FrameProcessingRunnable mFrameProcessor;
+    private PipelineLifecycle mLifecycle;
+
+    /**
+     * The configurations negotiated with the camera in earlier sessions.
+     */
+    private CameraConfigCache mConfigCache;
+
+    /**
+     * The detector supplied to the builder, and the frame detectors of all processing workers.  The
+     * first frame detector wraps the supplied detector.
+     */
+    private Detector<?> mDetector;
+    private List<VisionFrameDetector<?>> mVisionDetectors;
+
+    /**
+     * The crop stage of every processing worker, and the region of the displayed preview they
+     * crop to, in fractions of the preview.
+     */
+    private List<CropStage> mCropStages;
+    private volatile FrameRegion mDisplayRegion;
 
-    private Frame outputFrame;
+    /**
+     * The recognizer run on snapshots of the frames and the stage taking them, or null if text
+     * recognition is disabled, and the region of the displayed preview recognition runs on.
+     */
+    private Detector<?> mTextRecognizer;
+    private VisionFrameDetector<?> mTextDetector;
+
+    /**
+     * The detectors added with {@link Builder#addDetector} by name: the instances of every worker,
+     * and the first instance, which the processor is set on so that it is released with it.
+     */
+    private Map<String, List<VisionFrameDetector<?>>> mScheduledDetectors;
+    private Map<String, Detector<?>> mScheduledDetectorRoots;
+    private OcrStage<?> mOcrStage;
+    private volatile FrameRegion mTextDisplayRegion;
+
+    /**
+     * Hit counts of downsampled and full resolution detection, or null if detection always runs
+     * at full resolution.
+     */
+    private PyramidFrameDetector.Stats mPyramidStats;
+
+    /**
+     * Counts of frames passed and dropped for being blurry, or null if all frames are passed.
+     */
+    private SharpnessStage.Stats mSharpnessStats;
 
     /**
-     * Map to convert between a byte array, received from the camera, and its associated byte
-     * buffer.  We use byte buffers internally because this is a more efficient way to call into
-     * native code later (avoids a potential copy).
+     * Counts of frames detected on and skipped for showing an unchanged scene, or null if
+     * detection runs on all frames.
      */
-    private Map<byte[], ByteBuffer> mBytesToByteBuffer = new HashMap<>();
+    private SceneChangeStage.Stats mSceneChangeStats;
+
+    /**
+     * The pool of direct buffers the stages lease derived frames from, or null if they keep heap
+     * buffers of their own.
+     */
+    private DerivedFramePool mDerivedFramePool;
 
     //==============================================================================================
     // Builder
     //==============================================================================================
 
+    /**
+     * Creates the additional detector instances used when detection runs on more than one worker.
+     */
+    interface DetectorFactory {
+        /**
+         * Creates a new detector, configured like the detector supplied to the builder, or like
+         * the detector added with {@link Builder#addDetector} the factory was supplied with.
+         */
+        Detector<?> create();
+    }
+
     /**
      * Builder for configuring and creating an associated camera source.
      */
@@ -157,6 +310,22 @@ class CameraSource {
         private final Detector<?> mDetector;
         private CameraSource mCameraSource = new CameraSource();
 
+        private int mWorkerCount = 1;
+        private DetectorFactory mDetectorFactory;
+        private int mMinBufferCount;
+        private int mMaxBufferCount;
+        private VisionFrameDetector.ItemMapper<?> mItemMapper;
+        private boolean mDownsampling;
+        private int mFullResolutionInterval;
+        private float mSharpnessThreshold;
+        private float mSceneChangeThreshold;
+        private boolean mCamera2Enabled;
+        private boolean mOffHeapDerivedFrames;
+        private Detector<?> mTextRecognizer;
+        private long mTextRecognitionIntervalMillis;
+        private final List<ScheduledDetector> mScheduledDetectors = new ArrayList<>();
+        private long mFrameBudgetMillis;
+
         /**
          * Creates a camera source builder with the supplied context and detector.  Camera preview
          * images will be streamed to the associated detector upon starting the camera source.
@@ -171,6 +340,7 @@ class CameraSource {
 
             mDetector = detector;
             mCameraSource.context = context;
+            mCameraSource.mConfigCache = new CameraConfigCache(context);
         }
 
         /**
@@ -186,12 +356,12 @@ class CameraSource {
         }
 
         Builder setFocusMode(@FocusMode String mode) {
-            mCameraSource.focusMode = mode;
+            mCameraSource.requestedFocusMode = mode;
             return this;
         }
 
         Builder setFlashMode(@FlashMode String mode) {
-            mCameraSource.flashMode = mode;
+            mCameraSource.requestedFlashMode = mode;
             return this;
         }
 
@@ -214,6 +384,97 @@ class CameraSource {
             return this;
         }
 
+        /**
+         * Sets the desired width and height of the frames detection runs on, which may be smaller
+         * than the preview, in pixels.  The best matching size of the preview's aspect ratio is
+         * selected.  Only supported with camera2, see {@link #setCamera2Enabled(boolean)}.
+         * Default: the preview size.
+         */
+        Builder setRequestedAnalysisSize(int width, int height) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid analysis size: " + width + "x" + height);
+            }
+            mCameraSource.requestedAnalysisWidth = width;
+            mCameraSource.requestedAnalysisHeight = height;
+            return this;
+        }
+
+        /**
+         * Keeps the frames derived by the stages, such as crops and downsampled copies, in
+         * direct buffers leased from a shared {@link DerivedFramePool} instead of the Java heap.
+         * In debuggable apps, the site of every lease is recorded and frames never returned are
+         * logged when the camera source is released.  Default: disabled.
+         */
+        Builder setOffHeapDerivedFrames(boolean enabled) {
+            mOffHeapDerivedFrames = enabled;
+            return this;
+        }
+
+        /**
+         * Adds a detector which runs on the same frames as the detector supplied to the builder,
+         * once every given interval of frames across all workers, see
+         * {@link ScheduledFrameDetector}.  Detectors of a higher priority run first; the detector
+         * supplied to the builder runs on every frame with {@link #PRIMARY_DETECTOR_PRIORITY}.
+         * The detector runs on whole camera frames, without the crop and filter stages.  The
+         * factory creates one detector per worker.  The detection times of every detector are
+         * recorded under its name in the {@link ScannerMetrics}; set its processor with
+         * {@link #setDetectorProcessor}.
+         */
+        Builder addDetector(String name, DetectorFactory factory, int interval, int priority) {
+            if (interval < 1) {
+                throw new IllegalArgumentException("Invalid detector interval: " + interval);
+            }
+            for (ScheduledDetector detector : mScheduledDetectors) {
+                if (detector.mName.equals(name)) {
+                    throw new IllegalArgumentException("Detector added twice: " + name);
+                }
+            }
+            if (PRIMARY_DETECTOR_NAME.equals(name)) {
+                throw new IllegalArgumentException("Reserved detector name: " + name);
+            }
+            mScheduledDetectors.add(new ScheduledDetector(name, factory, interval, priority));
+            return this;
+        }
+
+        /**
+         * Sets the time detection may take per frame when several detectors are added, after which
+         * the detectors of lower priority still due on the frame are skipped until the next frame,
+         * or 0 to run all detectors due on every frame.  Default: 0.
+         */
+        Builder setFrameBudget(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Invalid frame budget: " + millis);
+            }
+            mFrameBudgetMillis = millis;
+            return this;
+        }
+
+        /**
+         * Runs the given recognizer, e.g. a {@code TextRecognizer}, on snapshots of the frames
+         * whenever requested with {@link #requestTextRecognition()}, at most once per the given
+         * interval of frame time, see {@link OcrStage}.  Recognition runs on a thread of its own,
+         * so barcode detection goes on meanwhile.  Default: disabled.
+         */
+        Builder setTextRecognizer(Detector<?> recognizer, long intervalMillis) {
+            if (intervalMillis < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid text recognition interval: " + intervalMillis);
+            }
+            mTextRecognizer = recognizer;
+            mTextRecognitionIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * Uses the camera2 API on devices running Lollipop or later, see {@link Camera2Backend}.
+         * Taking pictures and prewarming are not supported with camera2.  Default: disabled.
+         */
+        Builder setCamera2Enabled(boolean enabled) {
+            mCamera2Enabled = enabled;
+            return this;
+        }
+
         /**
          * Sets the camera to use (either {@link #CAMERA_FACING_BACK} or
          * {@link #CAMERA_FACING_FRONT}). Default: back facing.
@@ -226,13 +487,279 @@ class CameraSource {
             return this;
         }
 
+        /**
+         * Sets the number of workers running detection in parallel.  Each worker beyond the first
+         * gets its own detector created by the supplied factory, frames are handed to the workers
+         * round-robin and the detections are delivered in frame order.  Default: 1.
+         */
+        Builder setWorkerCount(int workerCount, DetectorFactory factory) {
+            if (workerCount < 1) {
+                throw new IllegalArgumentException("Invalid worker count: " + workerCount);
+            }
+            if (workerCount > 1 && factory == null) {
+                throw new IllegalArgumentException("No detector factory supplied.");
+            }
+            mWorkerCount = workerCount;
+            mDetectorFactory = factory;
+            return this;
+        }
+
+        /**
+         * Sets the number of preview buffers handed to the camera.  If the maximum is larger than
+         * the minimum, the number of buffers is adapted while the camera is running: the source
+         * keeps as many buffers as the measured detection latency versus the frame interval calls
+         * for, and grows when the camera was starved for a buffer.  Default: a fixed number of
+         * buffers, two for the camera plus one for the pending frame and one per worker.
+         */
+        Builder setPreviewBufferCount(int minCount, int maxCount) {
+            if (minCount < 1 || maxCount < minCount) {
+                throw new IllegalArgumentException(
+                        "Invalid preview buffer count: " + minCount + " to " + maxCount);
+            }
+            mMinBufferCount = minCount;
+            mMaxBufferCount = maxCount;
+            return this;
+        }
+
+        /**
+         * Sets the mapper which moves items detected on a cropped frame back to the coordinates of
+         * the whole frame, see {@link CameraSource#setRegionOfInterest}.
+         */
+        <T> Builder setItemMapper(VisionFrameDetector.ItemMapper<T> mapper) {
+            mItemMapper = mapper;
+            return this;
+        }
+
+        /**
+         * Enables running detection on frames downsampled to half the resolution first, and only
+         * on the frame itself if nothing was found, see {@link PyramidFrameDetector}.  Every
+         * {@code fullResolutionInterval} frames, or never if 0, detection runs at full resolution
+         * right away.  Default: disabled.
+         */
+        Builder setDownsampling(boolean enabled, int fullResolutionInterval) {
+            if (fullResolutionInterval < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid full resolution interval: " + fullResolutionInterval);
+            }
+            mDownsampling = enabled;
+            mFullResolutionInterval = fullResolutionInterval;
+            return this;
+        }
+
+        /**
+         * Skips detection on frames whose sharpness is below the given fraction of the sharpest
+         * frame seen recently, see {@link SharpnessStage}.  A threshold of 0 passes all frames.
+         * Default: 0.
+         */
+        Builder setSharpnessThreshold(float thresholdRatio) {
+            if (!(thresholdRatio >= 0 && thresholdRatio < 1)) {
+                throw new IllegalArgumentException("Invalid sharpness threshold: " + thresholdRatio);
+            }
+            mSharpnessThreshold = thresholdRatio;
+            return this;
+        }
+
+        /**
+         * Skips detection while the mean luma of the scene changes by less than the given amount,
+         * from 0 to 255, see {@link SceneChangeStage}.  A threshold of 0 runs detection on all
+         * frames.  Default: 0.
+         */
+        Builder setSceneChangeThreshold(float threshold) {
+            if (!(threshold >= 0 && threshold <= 255)) {
+                throw new IllegalArgumentException("Invalid scene change threshold: " + threshold);
+            }
+            mSceneChangeThreshold = threshold;
+            return this;
+        }
+
         /**
          * Creates an instance of the camera source.
          */
         public CameraSource build() {
-            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector);
+            ScannerMetrics metrics = new ScannerMetrics();
+            List<VisionFrameDetector<?>> visionDetectors = new ArrayList<>();
+            visionDetectors.add(createVisionDetector(mDetector, mItemMapper, metrics));
+            for (int i = 1; i < mWorkerCount; i++) {
+                visionDetectors.add(createVisionDetector(mDetectorFactory.create(), mItemMapper,
+                        metrics));
+            }
+            PyramidFrameDetector.Stats pyramidStats =
+                    mDownsampling ? new PyramidFrameDetector.Stats() : null;
+            SceneChangeStage.Stats sceneChangeStats =
+                    mSceneChangeThreshold > 0 ? new SceneChangeStage.Stats() : null;
+            SharpnessStage.Stats sharpnessStats =
+                    mSharpnessThreshold > 0 ? new SharpnessStage.Stats() : null;
+            DerivedFramePool derivedFramePool = null;
+            if (mOffHeapDerivedFrames) {
+                boolean debuggable = (mCameraSource.context.getApplicationInfo().flags
+                        & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+                derivedFramePool = new DerivedFramePool(DERIVED_FRAME_POOL_BYTES, debuggable);
+            }
+            VisionFrameDetector<?> textDetector = null;
+            OcrStage<?> ocrStage = null;
+            if (mTextRecognizer != null) {
+                textDetector = createVisionDetector(mTextRecognizer, null, null);
+                ocrStage = createOcrStage(textDetector, mTextRecognitionIntervalMillis,
+                        derivedFramePool);
+            }
+            Map<String, List<VisionFrameDetector<?>>> scheduledDetectors = new HashMap<>();
+            Map<String, Detector<?>> scheduledDetectorRoots = new HashMap<>();
+            Map<String, ScheduledFrameDetector.Cadence> cadences = new HashMap<>();
+            for (ScheduledDetector scheduledDetector : mScheduledDetectors) {
+                scheduledDetectors.put(scheduledDetector.mName,
+                        new ArrayList<VisionFrameDetector<?>>());
+                cadences.put(scheduledDetector.mName,
+                        new ScheduledFrameDetector.Cadence(scheduledDetector.mInterval));
+            }
+            List<CropStage> cropStages = new ArrayList<>();
+            List<FrameDetector<?>> detectors = new ArrayList<>();
+            for (VisionFrameDetector<?> visionDetector : visionDetectors) {
+                // Frames are cropped first, so that only the region of interest is scored.  Text
+                // recognition takes its snapshot before, as it has a region of its own.  The OCR
+                // stage is thread-safe, so all workers share one, and with it the rate limit.
+                List<FrameStage> stages = new ArrayList<>();
+                if (ocrStage != null) {
+                    stages.add(ocrStage);
+                }
+                CropStage cropStage = new CropStage(derivedFramePool);
+                cropStages.add(cropStage);
+                stages.add(cropStage);
+                if (sceneChangeStats != null) {
+                    stages.add(new SceneChangeStage(mSceneChangeThreshold, sceneChangeStats));
+                }
+                if (sharpnessStats != null) {
+                    stages.add(new SharpnessStage(mSharpnessThreshold, sharpnessStats));
+                }
+                FrameDetector<?> detector = visionDetector;
+                if (pyramidStats != null) {
+                    detector = createPyramidDetector(visionDetector, mFullResolutionInterval,
+                            pyramidStats, derivedFramePool);
+                }
+                FrameDetector<?> stagedDetector = createStagedDetector(detector, stages, metrics);
+                if (mScheduledDetectors.isEmpty()) {
+                    detectors.add(stagedDetector);
+                    continue;
+                }
+                List<ScheduledFrameDetector.Slot<?>> slots = new ArrayList<>();
+                slots.add(createSlot(stagedDetector, new ScheduledFrameDetector.Cadence(1),
+                        PRIMARY_DETECTOR_PRIORITY,
+                        metrics.getDetectorMetrics(PRIMARY_DETECTOR_NAME)));
+                for (ScheduledDetector scheduledDetector : mScheduledDetectors) {
+                    Detector<?> scheduled = scheduledDetector.mFactory.create();
+                    if (!scheduledDetectorRoots.containsKey(scheduledDetector.mName)) {
+                        scheduledDetectorRoots.put(scheduledDetector.mName, scheduled);
+                    }
+                    VisionFrameDetector<?> scheduledVisionDetector =
+                            createVisionDetector(scheduled, null, null);
+                    scheduledDetectors.get(scheduledDetector.mName).add(scheduledVisionDetector);
+                    slots.add(createSlot(scheduledVisionDetector,
+                            cadences.get(scheduledDetector.mName), scheduledDetector.mPriority,
+                            metrics.getDetectorMetrics(scheduledDetector.mName)));
+                }
+                detectors.add(new ScheduledFrameDetector(slots,
+                        TimeUnit.MILLISECONDS.toNanos(mFrameBudgetMillis)));
+            }
+            mCameraSource.mPyramidStats = pyramidStats;
+            mCameraSource.mSharpnessStats = sharpnessStats;
+            mCameraSource.mSceneChangeStats = sceneChangeStats;
+            mCameraSource.mDetector = mDetector;
+            mCameraSource.mVisionDetectors = visionDetectors;
+            mCameraSource.mCropStages = cropStages;
+            mCameraSource.mTextRecognizer = mTextRecognizer;
+            mCameraSource.mTextDetector = textDetector;
+            mCameraSource.mOcrStage = ocrStage;
+            mCameraSource.mScheduledDetectors = scheduledDetectors;
+            mCameraSource.mScheduledDetectorRoots = scheduledDetectorRoots;
+            mCameraSource.mDerivedFramePool = derivedFramePool;
+            mCameraSource.mFrameProcessor = new FrameProcessingRunnable(detectors);
+            mCameraSource.mFrameProcessor.setMetrics(metrics);
+            mCameraSource.mFrameProcessor.setErrorListener(
+                    new FrameProcessingRunnable.ErrorListener() {
+                        @Override
+                        public void onError(String message, RuntimeException e) {
+                            Log.e(TAG, message, e);
+                        }
+                    });
+            if (mMinBufferCount > 0) {
+                mCameraSource.mFrameProcessor.setBufferCount(mMinBufferCount, mMaxBufferCount);
+            }
+            mCameraSource.mLifecycle = new PipelineLifecycle(mCameraSource.new CameraPipeline(),
+                    mCameraSource.mFrameProcessor, "FrameProcessing");
+            if (mCamera2Enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mCameraSource.mCamera2 = new Camera2Backend(mCameraSource.context);
+            }
+            mCameraSource.mCameraThread = new HandlerThread("CameraThread");
+            mCameraSource.mCameraThread.start();
+            mCameraSource.mCameraHandler = new Handler(mCameraSource.mCameraThread.getLooper());
             return mCameraSource;
         }
+
+        @SuppressWarnings("unchecked")
+        private static <T> VisionFrameDetector<T> createVisionDetector(
+                Detector<T> detector, VisionFrameDetector.ItemMapper<?> mapper,
+                ScannerMetrics metrics) {
+            VisionFrameDetector<T> visionDetector = new VisionFrameDetector<>(detector);
+            visionDetector.setItemMapper((VisionFrameDetector.ItemMapper<T>) mapper);
+            visionDetector.setMetrics(metrics);
+            return visionDetector;
+        }
+
+        private static <T> ScheduledFrameDetector.Slot<T> createSlot(
+                FrameDetector<T> detector, ScheduledFrameDetector.Cadence cadence, int priority,
+                ScannerMetrics.DetectorMetrics metrics) {
+            return new ScheduledFrameDetector.Slot<>(detector, cadence, priority, metrics);
+        }
+
+        private static <T> OcrStage<T> createOcrStage(FrameDetector<T> recognizer,
+                                                      long intervalMillis,
+                                                      DerivedFramePool pool) {
+            return new OcrStage<>(recognizer, intervalMillis,
+                    Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable, "TextRecognition");
+                        }
+                    }), pool);
+        }
+
+        private static <T> FrameDetector<Detector.Detections<T>> createPyramidDetector(
+                VisionFrameDetector<T> detector, int fullResolutionInterval,
+                PyramidFrameDetector.Stats stats, DerivedFramePool pool) {
+            PyramidFrameDetector.ResultCheck<Detector.Detections<T>> resultCheck =
+                    new PyramidFrameDetector.ResultCheck<Detector.Detections<T>>() {
+                        @Override
+                        public boolean hasResults(Detector.Detections<T> detections) {
+                            return detections.getDetectedItems().size() > 0;
+                        }
+                    };
+            return new PyramidFrameDetector<>(detector, resultCheck, fullResolutionInterval,
+                    stats, pool);
+        }
+
+        private static <T> FrameDetector<T> createStagedDetector(FrameDetector<T> detector,
+                                                                 List<FrameStage> stages,
+                                                                 ScannerMetrics metrics) {
+            StagedFrameDetector<T> stagedDetector = new StagedFrameDetector<>(detector, stages);
+            stagedDetector.setMetrics(metrics);
+            return stagedDetector;
+        }
+
+        /**
+         * A detector added with {@link #addDetector}.
+         */
+        private static class ScheduledDetector {
+            final String mName;
+            final DetectorFactory mFactory;
+            final int mInterval;
+            final int mPriority;
+
+            ScheduledDetector(String name, DetectorFactory factory, int interval, int priority) {
+                mName = name;
+                mFactory = factory;
+                mInterval = interval;
+                mPriority = priority;
+            }
+        }
     }
 
     //==============================================================================================
@@ -296,139 +823,533 @@ class CameraSource {
         void onAutoFocusMoving(boolean start);
     }
 
+    /**
+     * Callback interface used to receive the outcome of an asynchronous command, on the main
+     * thread.
+     */
+    interface CommandCallback<T> {
+        /**
+         * Called when the command completed on the camera thread.
+         */
+        void onCompleted(T result);
+
+        /**
+         * Called when the command failed, or could not be run because the camera source was
+         * released.
+         */
+        void onFailed(Exception e);
+    }
+
     //==============================================================================================
     // Public
     //==============================================================================================
 
     /**
-     * Stops the camera and releases the resources of the camera and underlying detector.
+     * Stops the camera and releases the resources of the camera and underlying detector.  The
+     * detector is released once the detection still running, if any, is done, waiting at most
+     * {@link #PROCESSING_STOP_TIMEOUT_MILLIS} for it.  The camera thread is shut down, so
+     * asynchronous commands submitted afterwards fail.
      */
     void release() {
         synchronized (cameraLock) {
             stop();
-            mFrameProcessor.release();
+            if (!mLifecycle.release(PROCESSING_STOP_TIMEOUT_MILLIS)) {
+                Log.w(TAG, "Detection still running; the detector is released once it is done.");
+            }
+            if (mCamera2 != null) {
+                mCamera2.release();
+            }
+            mReleased = true;
+            mCameraThread.quit();
+        }
+    }
+
+    /**
+     * Runs {@link #release()} on the camera thread.
+     */
+    Future<Void> releaseAsync() {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                release();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Runs {@link #start(SurfaceHolder)} on the camera thread.
+     *
+     * @param callback receives the size of the preview frames once the preview is running, or
+     *                 null
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    Future<Size> startAsync(final SurfaceHolder surfaceHolder,
+                            @Nullable CommandCallback<Size> callback) {
+        return submit(new Callable<Size>() {
+            @Override
+            @SuppressWarnings("MissingPermission")
+            public Size call() throws IOException {
+                start(surfaceHolder);
+                return previewSize;
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs {@link #stop()} on the camera thread.
+     */
+    Future<Void> stopAsync() {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                stop();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Runs {@link #prewarm()} on the camera thread.
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    Future<Void> prewarmAsync() {
+        return submit(new Callable<Void>() {
+            @Override
+            @SuppressWarnings("MissingPermission")
+            public Void call() {
+                prewarm();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Runs the detectors on a synthetic frame of the analysis size on a thread of its own, so that
+     * they load their native code and models while the camera is being opened rather than on the
+     * first camera frame.  The time this takes and whether the detectors are operational afterwards
+     * are recorded in the {@link ScannerMetrics}.  Camera frames arriving in the meantime wait for
+     * the warm-up to finish.
+     *
+     * @param callback receives whether all detectors are operational, or null
+     */
+    Future<Boolean> warmUpAsync(@Nullable CommandCallback<Boolean> callback) {
+        final int width = requestedAnalysisWidth > 0 ? requestedAnalysisWidth
+                : requestedPreviewWidth;
+        final int height = requestedAnalysisHeight > 0 ? requestedAnalysisHeight
+                : requestedPreviewHeight;
+        CameraCommand<Boolean> command = new CameraCommand<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                long start = System.nanoTime();
+                FrameBuffer frame = new FrameBuffer(width, height);
+                frame.getData().put(SyntheticFrameSource.generateBarsFrame(width, height));
+                boolean operational = true;
+                for (VisionFrameDetector<?> detector : mVisionDetectors) {
+                    operational &= detector.warmUp(frame);
+                }
+                for (List<VisionFrameDetector<?>> detectors : mScheduledDetectors.values()) {
+                    for (VisionFrameDetector<?> detector : detectors) {
+                        operational &= detector.warmUp(frame);
+                    }
+                }
+                getScannerMetrics().onDetectorWarmedUp(System.nanoTime() - start, operational);
+                return operational;
+            }
+        }, callback);
+        if (mReleased) {
+            command.fail(new IllegalStateException("Camera source was released."));
+        } else {
+            new Thread(command, "DetectorWarmUp").start();
+        }
+        return command;
+    }
+
+    /**
+     * Runs {@link #setFlashMode(String)} on the camera thread.
+     */
+    Future<Boolean> setFlashModeAsync(@FlashMode final String mode,
+                                      @Nullable CommandCallback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return setFlashMode(mode);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs {@link #setFocusMode(String)} on the camera thread.
+     */
+    Future<Boolean> setFocusModeAsync(@FocusMode final String mode,
+                                      @Nullable CommandCallback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return setFocusMode(mode);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs {@link #doZoom(float)} on the camera thread.
+     */
+    Future<Integer> doZoomAsync(final float scale, @Nullable CommandCallback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return doZoom(scale);
+            }
+        }, callback);
+    }
+
+    /**
+     * Opens the camera and starts sending preview frames to the underlying detector.  The preview
+     * frames are not displayed.  If the camera source is still stopping, this first waits at most
+     * {@link #PROCESSING_STOP_TIMEOUT_MILLIS} for the detection still running.
+     *
+     * @throws IOException           if the camera's preview texture or display could not be
+     *                               initialized
+     * @throws IllegalStateException if the camera source was released, or the detection still
+     *                               running didn't complete in time
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public CameraSource start() throws IOException {
+        return start(null);
+    }
+
+    /**
+     * Opens the camera and starts sending preview frames to the underlying detector.  The supplied
+     * surface holder is used for the preview so frames can be displayed to the user.  If the
+     * camera source is still stopping, this first waits at most
+     * {@link #PROCESSING_STOP_TIMEOUT_MILLIS} for the detection still running.
+     *
+     * @param surfaceHolder the surface holder to use for the preview frames, or null to not
+     *                      display them
+     * @throws IOException           if the supplied surface holder could not be used as the
+     *                               preview display
+     * @throws IllegalStateException if the camera source was released, or the detection still
+     *                               running didn't complete in time
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public CameraSource start(@Nullable SurfaceHolder surfaceHolder) throws IOException {
+        synchronized (cameraLock) {
+            mPreviewDisplay = surfaceHolder;
+            mLifecycle.start(PROCESSING_STOP_TIMEOUT_MILLIS);
+        }
+        return this;
+    }
+
+    /**
+     * Opens the camera, negotiates its parameters and hands it the preview buffers, without
+     * starting the preview, so that a following {@link #start(SurfaceHolder)} only has to start
+     * the preview.  This blocks for as long as opening the camera takes, so call it on a background
+     * thread, or use {@link #prewarmAsync()}.  If the camera is not started within
+     * {@link #PREWARM_TIMEOUT_MILLIS}, it is released again so that it isn't held open needlessly.
+     * This has no effect with camera2.
+     *
+     * @throws RuntimeException if the camera could not be opened
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public void prewarm() {
+        synchronized (cameraLock) {
+            // Attaching the camera hands it all preview buffers, so no detection may be running.
+            if (mCamera2 != null || camera != null
+                    || mLifecycle.getState() != PipelineLifecycle.IDLE) {
+                return;
+            }
+            camera = createCamera();
+            mCameraHandler.postDelayed(mPrewarmTimeout, PREWARM_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Closes the camera and stops sending frames to the underlying frame detector.  This doesn't
+     * wait for the detection still running, if any, which completes in the background.
+     * This camera source may be restarted again by calling {@link #start()} or
+     * {@link #start(SurfaceHolder)}, which reuses the preview buffers as long as the preview size
+     * stays the same.  Call {@link #releasePreviewBuffers()} to free them in between.
+     * Call {@link #release()} instead to completely shut down this camera source and release the
+     * resources of the underlying detector.
+     */
+    void stop() {
+        synchronized (cameraLock) {
+            mCameraHandler.removeCallbacks(mPrewarmTimeout);
+            if (!mLifecycle.stop()) {
+                // Not running, but a prewarmed camera may be open.
+                closeCamera();
+            }
+        }
+    }
+
+    /**
+     * Stops the preview and releases the camera, if open.  Must be called with cameraLock held.
+     */
+    private void closeCamera() {
+        if (camera == null) {
+            return;
+        }
+        mCameraControl.release();
+        mCameraControl = null;
+        camera.stopPreview();
+        // The frame still in detection, if any, keeps its buffer, which stays with the pool once
+        // detached.  Closing the frame source keeps it from being handed to the released camera.
+        mFrameProcessor.detach();
+        mFrameSource.close();
+        mFrameSource = null;
+        try {
+            // We want to be compatible back to Gingerbread, but SurfaceTexture
+            // wasn't introduced until Honeycomb.  Since the interface cannot use a SurfaceTexture, if the
+            // developer wants to display a preview we must use a SurfaceHolder.  If the developer doesn't
+            // want to display a preview we use a SurfaceTexture if we are running at least Honeycomb.
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                camera.setPreviewTexture(null);
+
+            } else {
+                camera.setPreviewDisplay(null);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to clear camera preview: " + e);
+        }
+        camera.release();
+        camera = null;
+    }
+
+    /**
+     * Frees the preview buffers kept while the camera is stopped, e.g. when the system is running
+     * low on memory, along with the derived frames kept for reuse.  They are allocated again on
+     * the next start.  This has no effect on the preview buffers while the camera is running.
+     */
+    public void releasePreviewBuffers() {
+        submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                synchronized (cameraLock) {
+                    mFrameProcessor.releaseBuffers();
+                    if (mDerivedFramePool != null) {
+                        mDerivedFramePool.trim();
+                    }
+                }
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Returns the current frame capture by the camera.
+     */
+    Frame getOutputFrame() {
+        Frame outputFrame = null;
+        for (VisionFrameDetector<?> detector : mVisionDetectors) {
+            Frame frame = detector.getOutputFrame();
+            if (frame != null && (outputFrame == null
+                    || frame.getMetadata().getId() > outputFrame.getMetadata().getId())) {
+                outputFrame = frame;
+            }
+        }
+        return outputFrame;
+    }
+
+    /**
+     * Sets the processor which receives the detections of all processing workers, in frame order.
+     * The processor is also set on the detector supplied to the builder, so that it is released
+     * together with that detector.
+     */
+    @SuppressWarnings("unchecked")
+    <T> void setProcessor(Detector.Processor<T> processor) {
+        ((Detector<T>) mDetector).setProcessor(processor);
+        for (VisionFrameDetector<?> detector : mVisionDetectors) {
+            ((VisionFrameDetector<T>) detector).setProcessor(processor);
+        }
+    }
+
+    /**
+     * Restricts detection to a region of the displayed preview, given in fractions of the preview's
+     * width and height, or lifts the restriction if the region is {@code null}.  Frames are cropped
+     * to the region before detection, which is mapped to the orientation of the camera frames
+     * whenever the camera is started.
+     */
+    void setRegionOfInterest(FrameRegion displayRegion) {
+        mDisplayRegion = displayRegion;
+        updateRegionOfInterest();
+    }
+
+    private void updateRegionOfInterest() {
+        FrameRegion displayRegion = mDisplayRegion;
+        FrameRegion region = null;
+        if (displayRegion != null) {
+            region = FrameRegion.fromDisplay(displayRegion.getLeft(), displayRegion.getTop(),
+                    displayRegion.getRight(), displayRegion.getBottom(), rotation,
+                    cameraFacing == CAMERA_FACING_FRONT);
+        }
+        for (CropStage cropStage : mCropStages) {
+            cropStage.setRegion(region);
+        }
+        if (mOcrStage != null) {
+            FrameRegion textDisplayRegion = mTextDisplayRegion;
+            mOcrStage.setRegion(textDisplayRegion == null ? null : FrameRegion.fromDisplay(
+                    textDisplayRegion.getLeft(), textDisplayRegion.getTop(),
+                    textDisplayRegion.getRight(), textDisplayRegion.getBottom(), rotation,
+                    cameraFacing == CAMERA_FACING_FRONT));
+        }
+    }
+
+    /**
+     * Sets the processor which receives the detections of the detector added to the builder under
+     * the given name, from all workers in frame order.  The processor is also set on the first
+     * instance of the detector, so that it is released together with it.  Without such a
+     * detector, this does nothing.
+     */
+    @SuppressWarnings("unchecked")
+    <T> void setDetectorProcessor(String name, Detector.Processor<T> processor) {
+        List<VisionFrameDetector<?>> detectors = mScheduledDetectors.get(name);
+        if (detectors == null) {
+            return;
+        }
+        ((Detector<T>) mScheduledDetectorRoots.get(name)).setProcessor(processor);
+        for (VisionFrameDetector<?> detector : detectors) {
+            ((VisionFrameDetector<T>) detector).setProcessor(processor);
         }
     }
 
     /**
-     * Opens the camera and starts sending preview frames to the underlying detector.  The preview
-     * frames are not displayed.
-     *
-     * @throws IOException if the camera's preview texture or display could not be initialized
+     * Sets the processor which receives the results of text recognition, on the recognition
+     * thread.  The processor is also set on the recognizer supplied to the builder, so that it is
+     * released together with that recognizer.  Without text recognition, this does nothing.
+     */
+    @SuppressWarnings("unchecked")
+    <T> void setTextProcessor(Detector.Processor<T> processor) {
+        if (mTextDetector != null) {
+            ((Detector<T>) mTextRecognizer).setProcessor(processor);
+            ((VisionFrameDetector<T>) mTextDetector).setProcessor(processor);
+        }
+    }
+
+    /**
+     * Restricts text recognition to a region of the displayed preview, like
+     * {@link #setRegionOfInterest(FrameRegion)} does for detection, or lifts the restriction if
+     * the region is {@code null}.
+     */
+    void setTextRegionOfInterest(FrameRegion displayRegion) {
+        mTextDisplayRegion = displayRegion;
+        updateRegionOfInterest();
+    }
+
+    /**
+     * Requests text recognition on one of the next frames, see {@link OcrStage#request()}.  This
+     * may be called from any thread.  Without text recognition, this does nothing.
+     */
+    void requestTextRecognition() {
+        if (mOcrStage != null) {
+            mOcrStage.request();
+        }
+    }
+
+    /**
+     * Returns the counts of text recognitions, or {@code null} if text recognition is disabled.
+     */
+    OcrStage.Stats getOcrStats() {
+        return mOcrStage != null ? mOcrStage.getStats() : null;
+    }
+
+    /**
+     * Returns the hit counts of downsampled and full resolution detection, or {@code null} if
+     * downsampling is disabled.
+     */
+    PyramidFrameDetector.Stats getPyramidStats() {
+        return mPyramidStats;
+    }
+
+    /**
+     * Returns the counts of frames passed and dropped for being blurry, or {@code null} if the
+     * sharpness threshold is disabled.
+     */
+    SharpnessStage.Stats getSharpnessStats() {
+        return mSharpnessStats;
+    }
+
+    /**
+     * Returns the counts of frames detected on and skipped for showing an unchanged scene, or
+     * {@code null} if the scene change threshold is disabled.
+     */
+    SceneChangeStage.Stats getSceneChangeStats() {
+        return mSceneChangeStats;
+    }
+
+    /**
+     * Returns the counters and latencies of the frame pipeline, which are recorded for the
+     * lifetime of this camera source.
      */
-    @RequiresPermission(Manifest.permission.CAMERA)
-    public CameraSource start() throws IOException {
-        synchronized (cameraLock) {
-            if (camera != null) {
-                return this;
-            }
-
-            camera = createCamera();
-
-            // SurfaceTexture was introduced in Honeycomb (11), so if we are running and
-            // old version of Android. fall back to use SurfaceView.
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                mDummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
-                camera.setPreviewTexture(mDummySurfaceTexture);
-            } else {
-                mDummySurfaceView = new SurfaceView(context);
-                camera.setPreviewDisplay(mDummySurfaceView.getHolder());
-            }
-            camera.startPreview();
-
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
-        }
-        return this;
+    public ScannerMetrics getScannerMetrics() {
+        return mFrameProcessor.getMetrics();
     }
 
     /**
-     * Opens the camera and starts sending preview frames to the underlying detector.  The supplied
-     * surface holder is used for the preview so frames can be displayed to the user.
+     * Starts recording the events of every frame, such as its arrival, detection and delivery,
+     * into a ring of the given size, discarding any events recorded before.  Once the ring is
+     * full, the oldest events are overwritten.  Recording doesn't allocate, so it can be left on
+     * while reproducing a problem.
      *
-     * @param surfaceHolder the surface holder to use for the preview frames
-     * @throws IOException if the supplied surface holder could not be used as the preview display
+     * @param maxEvents the number of events kept, about eight per frame
      */
-    @RequiresPermission(Manifest.permission.CAMERA)
-    public CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
-        synchronized (cameraLock) {
-            if (camera != null) {
-                return this;
-            }
+    public void startFrameTrace(int maxEvents) {
+        mFrameProcessor.getTracer().start(maxEvents);
+    }
 
-            camera = createCamera();
-            camera.setPreviewDisplay(surfaceHolder);
-            camera.startPreview();
+    /**
+     * Stops recording frame events.  The events recorded are kept until tracing is started again.
+     */
+    public void stopFrameTrace() {
+        mFrameProcessor.getTracer().stop();
+    }
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+    /**
+     * Writes the frame events recorded as a Chrome trace event JSON file, which can be opened in
+     * chrome://tracing or Perfetto.  Tracing should be stopped first, as events recorded while
+     * writing may be inconsistent.
+     */
+    public void writeFrameTrace(File file) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            mFrameProcessor.getTracer().write(out);
+        } finally {
+            out.close();
         }
-        return this;
     }
 
     /**
-     * Closes the camera and stops sending frames to the underlying frame detector.
-     * This camera source may be restarted again by calling {@link #start()} or
-     * {@link #start(SurfaceHolder)}.
-     * Call {@link #release()} instead to completely shut down this camera source and release the
-     * resources of the underlying detector.
+     * Returns the preview size that is currently in use by the underlying camera, which the
+     * preview display is laid out for.
      */
-    void stop() {
-        synchronized (cameraLock) {
-            mFrameProcessor.setActive(false);
-            if (mProcessingThread != null) {
-                try {
-                    // Wait for the thread to complete to ensure that we can't have multiple threads
-                    // executing at the same time (i.e., which would happen if we called start too
-                    // quickly after stop).
-                    mProcessingThread.join();
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "Frame processing thread interrupted on release.");
-                }
-                mProcessingThread = null;
-            }
-
-            // clear the buffer to prevent oom exceptions
-            mBytesToByteBuffer.clear();
+    Size getPreviewSize() {
+        return previewSize;
+    }
 
-            if (camera != null) {
-                camera.stopPreview();
-                camera.setPreviewCallbackWithBuffer(null);
-                try {
-                    // We want to be compatible back to Gingerbread, but SurfaceTexture
-                    // wasn't introduced until Honeycomb.  Since the interface cannot use a SurfaceTexture, if the
-                    // developer wants to display a preview we must use a SurfaceHolder.  If the developer doesn't
-                    // want to display a preview we use a SurfaceTexture if we are running at least Honeycomb.
-
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                        camera.setPreviewTexture(null);
-
-                    } else {
-                        camera.setPreviewDisplay(null);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to clear camera preview: " + e);
-                }
-                camera.release();
-                camera = null;
-            }
-        }
+    /**
+     * Returns the size of the frames detection currently runs on, which the positions of the
+     * detected items refer to.  With camera1, this is the preview size; with camera2, it is the
+     * analysis size, see {@link Camera2Backend}.
+     */
+    Size getAnalysisSize() {
+        return analysisSize;
     }
 
     /**
-     * Returns the current frame capture by the camera.
+     * Returns the number of preview buffers currently allocated, whether handed to the camera or
+     * kept for the next start.
      */
-    Frame getOutputFrame() {
-        return outputFrame;
+    public int getPreviewBufferCount() {
+        return mFrameProcessor.getBufferCount();
     }
 
     /**
-     * Returns the preview size that is currently in use by the underlying camera.
+     * Returns how often the camera was left without a preview buffer for longer than a frame
+     * interval since the preview buffers were allocated, in which case it most likely dropped a
+     * frame.
      */
-    Size getPreviewSize() {
-        return previewSize;
+    public int getPreviewBufferStarvedCount() {
+        return mFrameProcessor.getStarvedCount();
     }
 
     /**
@@ -439,36 +1360,22 @@ class CameraSource {
         return cameraFacing;
     }
 
+    /**
+     * Scales the zoom of the running camera.  The change is applied without restarting the
+     * preview, together with other changes made within the same frame interval.
+     *
+     * @return the new zoom value, or 0 if the camera is not open or doesn't support zoom.  With
+     * camera2 the value is the zoom ratio in percent.
+     */
     public int doZoom(float scale) {
         synchronized (cameraLock) {
+            if (mCamera2 != null) {
+                return mCamera2.zoom(scale);
+            }
             if (camera == null) {
                 return 0;
             }
-            int currentZoom = 0;
-            int maxZoom;
-            Camera.Parameters parameters = camera.getParameters();
-            if (!parameters.isZoomSupported()) {
-                Log.w(TAG, "Zoom is not supported on this device");
-                return currentZoom;
-            }
-            maxZoom = parameters.getMaxZoom();
-
-            currentZoom = parameters.getZoom() + 1;
-            float newZoom;
-            if (scale > 1) {
-                newZoom = currentZoom + scale * (maxZoom / 10);
-            } else {
-                newZoom = currentZoom * scale;
-            }
-            currentZoom = Math.round(newZoom) - 1;
-            if (currentZoom < 0) {
-                currentZoom = 0;
-            } else if (currentZoom > maxZoom) {
-                currentZoom = maxZoom;
-            }
-            parameters.setZoom(currentZoom);
-            camera.setParameters(parameters);
-            return currentZoom;
+            return mCameraControl.zoom(scale);
         }
     }
 
@@ -476,21 +1383,31 @@ class CameraSource {
      * Initiates taking a picture, which happens asynchronously.  The camera source should have been
      * activated previously with {@link #start()} or {@link #start(SurfaceHolder)}.  The camera
      * preview is suspended while the picture is being taken, but will resume once picture taking is
-     * done.
+     * done.  Not supported with camera2.
      *
      * @param shutter the callback for image capture moment, or null
      * @param jpeg    the callback for JPEG image data, or null
      */
-    public void takePicture(ShutterCallback shutter, PictureCallback jpeg) {
-        synchronized (cameraLock) {
-            if (camera != null) {
-                PictureStartCallback startCallback = new PictureStartCallback();
-                startCallback.mDelegate = shutter;
-                PictureDoneCallback doneCallback = new PictureDoneCallback();
-                doneCallback.mDelegate = jpeg;
-                camera.takePicture(startCallback, null, null, doneCallback);
+    public void takePicture(final ShutterCallback shutter, final PictureCallback jpeg) {
+        submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                synchronized (cameraLock) {
+                    if (mCamera2 != null) {
+                        Log.w(TAG, "Taking pictures is not supported with camera2.");
+                    } else if (camera != null) {
+                        // The picture has to be taken with e.g. the flash mode just set.
+                        mCameraControl.flush();
+                        PictureStartCallback startCallback = new PictureStartCallback();
+                        startCallback.mDelegate = shutter;
+                        PictureDoneCallback doneCallback = new PictureDoneCallback();
+                        doneCallback.mDelegate = jpeg;
+                        camera.takePicture(startCallback, null, null, doneCallback);
+                    }
+                }
+                return null;
             }
-        }
+        }, null);
     }
 
     /**
@@ -514,7 +1431,7 @@ class CameraSource {
     }
 
     /**
-     * Sets the focus mode.
+     * Sets the focus mode.  It is applied to the running camera without restarting the preview.
      *
      * @param mode the focus mode
      * @return {@code true} if the focus mode is set, {@code false} otherwise
@@ -522,14 +1439,10 @@ class CameraSource {
      */
     public boolean setFocusMode(@FocusMode String mode) {
         synchronized (cameraLock) {
-            if (camera != null && mode != null) {
-                Camera.Parameters parameters = camera.getParameters();
-                if (parameters.getSupportedFocusModes().contains(mode)) {
-                    parameters.setFocusMode(mode);
-                    camera.setParameters(parameters);
-                    focusMode = mode;
-                    return true;
-                }
+            if (mode != null && (mCamera2 != null ? mCamera2.setFocusMode(mode)
+                    : camera != null && mCameraControl.setFocusMode(mode))) {
+                focusMode = mode;
+                return true;
             }
 
             return false;
@@ -554,7 +1467,8 @@ class CameraSource {
     }
 
     /**
-     * Sets the flash mode.
+     * Sets the flash mode, e.g. to toggle the torch.  It is applied to the running camera without
+     * restarting the preview.
      *
      * @param mode flash mode.
      * @return {@code true} if the flash mode is set, {@code false} otherwise
@@ -562,15 +1476,10 @@ class CameraSource {
      */
     boolean setFlashMode(@FlashMode String mode) {
         synchronized (cameraLock) {
-            if (camera != null && mode != null) {
-                Camera.Parameters parameters = camera.getParameters();
-                final List<String> supportedFlashModes = parameters.getSupportedFlashModes();
-                if (supportedFlashModes != null && supportedFlashModes.contains(mode)) {
-                    parameters.setFlashMode(mode);
-                    camera.setParameters(parameters);
-                    flashMode = mode;
-                    return true;
-                }
+            if (mode != null && (mCamera2 != null ? mCamera2.setFlashMode(mode)
+                    : camera != null && mCameraControl.setFlashMode(mode))) {
+                flashMode = mode;
+                return true;
             }
 
             return false;
@@ -658,6 +1567,126 @@ class CameraSource {
     private CameraSource() {
     }
 
+    /**
+     * Submits a command to the camera thread.  It fails right away if the camera source was
+     * released.
+     */
+    private <T> Future<T> submit(Callable<T> command, @Nullable CommandCallback<T> callback) {
+        CameraCommand<T> cameraCommand = new CameraCommand<>(command, callback);
+        if (mReleased || !mCameraHandler.post(cameraCommand)) {
+            cameraCommand.fail(new IllegalStateException("Camera source was released."));
+        }
+        return cameraCommand;
+    }
+
+    /**
+     * A command run on the camera thread, which passes its outcome to a callback on the main
+     * thread.
+     */
+    private class CameraCommand<T> extends FutureTask<T> {
+        private final CommandCallback<T> mCallback;
+
+        CameraCommand(Callable<T> command, @Nullable CommandCallback<T> callback) {
+            super(command);
+            mCallback = callback;
+        }
+
+        void fail(Exception e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null || isCancelled()) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    T result;
+                    try {
+                        result = get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        mCallback.onFailed(cause instanceof Exception ? (Exception) cause : e);
+                        return;
+                    } catch (InterruptedException e) {
+                        // Not possible, the command is done.
+                        return;
+                    }
+                    mCallback.onCompleted(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens and closes the camera for the pipeline lifecycle, which is only ever driven with
+     * cameraLock held.
+     */
+    private class CameraPipeline implements PipelineLifecycle.Pipeline {
+        @Override
+        @SuppressWarnings("MissingPermission")
+        public void open() throws IOException {
+            mCameraHandler.removeCallbacks(mPrewarmTimeout);
+            if (mCamera2 != null) {
+                openCamera2();
+                mFrameProcessor.setActive(true);
+                return;
+            }
+            if (camera == null) {
+                camera = createCamera();
+            }
+
+            if (mPreviewDisplay != null) {
+                camera.setPreviewDisplay(mPreviewDisplay);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                // SurfaceTexture was introduced in Honeycomb (11), so if we are running and
+                // old version of Android. fall back to use SurfaceView.
+                mDummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
+                camera.setPreviewTexture(mDummySurfaceTexture);
+            } else {
+                mDummySurfaceView = new SurfaceView(context);
+                camera.setPreviewDisplay(mDummySurfaceView.getHolder());
+            }
+            camera.startPreview();
+            mFrameProcessor.setActive(true);
+        }
+
+        @Override
+        public void close() {
+            mFrameProcessor.setActive(false);
+            if (mCamera2 != null) {
+                mFrameProcessor.detach();
+                mCamera2.close();
+            } else {
+                closeCamera();
+            }
+        }
+
+        @Override
+        public void release() {
+            mFrameProcessor.release();
+            if (mOcrStage != null) {
+                // The recognizer is released once the recognition running, if any, is done.
+                mOcrStage.release();
+            }
+            if (mDerivedFramePool != null) {
+                // No frame is in detection anymore, so every leased frame should be back.
+                int leaked = mDerivedFramePool.checkLeaks(new DerivedFramePool.LeakReporter() {
+                    @Override
+                    public void onLeak(int width, int height, Throwable leaseSite) {
+                        Log.w(TAG, "Derived frame of " + width + "x" + height
+                                + " was never returned.", leaseSite);
+                    }
+                });
+                if (leaked > 0) {
+                    Log.w(TAG, leaked + " derived frames were never returned.");
+                }
+            }
+        }
+    }
+
     /**
      * Wraps the camera1 shutter callback so that the deprecated API isn't exposed.
      */
@@ -721,6 +1750,37 @@ class CameraSource {
         }
     }
 
+    /**
+     * Opens the camera with camera2, attaches its frames for detection and starts capturing.  The
+     * frames for detection are of the analysis size, which may differ from the preview size.
+     * Must be called with cameraLock held.
+     */
+    @SuppressWarnings("MissingPermission")
+    private void openCamera2() throws IOException {
+        mCamera2.open(cameraFacing, requestedPreviewWidth, requestedPreviewHeight,
+                requestedAnalysisWidth > 0 ? requestedAnalysisWidth : requestedPreviewWidth,
+                requestedAnalysisHeight > 0 ? requestedAnalysisHeight : requestedPreviewHeight);
+        boolean started = false;
+        try {
+            rotation = getFrameAngle(mCamera2.getSensorOrientation(),
+                    cameraFacing == CAMERA_FACING_FRONT, getDisplayDegrees()) / 90;
+            previewSize = mCamera2.getPreviewSize();
+            analysisSize = mCamera2.getAnalysisSize();
+            mFrameProcessor.attach(mCamera2.getFrameSource(), analysisSize.getWidth(),
+                    analysisSize.getHeight(), rotation);
+            updateRegionOfInterest();
+            mCamera2.startCapture(mPreviewDisplay,
+                    focusMode != null ? focusMode : requestedFocusMode,
+                    flashMode != null ? flashMode : requestedFlashMode);
+            started = true;
+        } finally {
+            if (!started) {
+                mFrameProcessor.detach();
+                mCamera2.close();
+            }
+        }
+    }
+
     /**
      * Opens the camera and applies the user settings.
      *
@@ -734,70 +1794,130 @@ class CameraSource {
         }
         Camera camera = Camera.open(requestedCameraId);
 
-        SizePair sizePair = selectSizePair(camera, requestedPreviewWidth, requestedPreviewHeight);
+        // Apply the configuration negotiated in an earlier session if there is one, which saves
+        // querying the camera for its capabilities.  It is only validated by the camera accepting
+        // it; if it doesn't, it is negotiated again.
+        String configKey = CameraConfig.getKey(requestedCameraId, requestedPreviewWidth,
+                requestedPreviewHeight, requestedFps, requestedFocusMode, requestedFlashMode);
+        CameraConfig config = mConfigCache != null ? mConfigCache.get(configKey) : null;
+        Camera.Parameters parameters = camera.getParameters();
+        if (config != null) {
+            try {
+                applyConfig(camera, parameters, config, requestedCameraId);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Cached camera configuration " + config + " was rejected.", e);
+                mConfigCache.remove(configKey);
+                config = null;
+                parameters = camera.getParameters();
+            }
+        }
+        if (config == null) {
+            config = negotiateConfig(parameters);
+            applyConfig(camera, parameters, config, requestedCameraId);
+            if (mConfigCache != null) {
+                mConfigCache.put(configKey, config);
+            }
+        }
+
+        previewSize = new Size(config.getPreviewWidth(), config.getPreviewHeight());
+        analysisSize = previewSize;
+        // setting focusMode and flashMode to the ones set in the params
+        String changedFocusMode = focusMode;
+        String changedFlashMode = flashMode;
+        focusMode = config.getFocusMode();
+        flashMode = config.getFlashMode();
+        mCameraControl = new CameraControl(camera, parameters, mCameraHandler, config.getMaxFps());
+        // Modes changed while an earlier session was running carry over to this one.  They are
+        // applied on top of the configuration, so that they don't change its cache key.
+        if (changedFocusMode != null && !changedFocusMode.equals(focusMode)
+                && mCameraControl.setFocusMode(changedFocusMode)) {
+            focusMode = changedFocusMode;
+        }
+        if (changedFlashMode != null && !changedFlashMode.equals(flashMode)
+                && mCameraControl.setFlashMode(changedFlashMode)) {
+            flashMode = changedFlashMode;
+        }
+
+        mFrameSource = new CameraFrameSource(camera);
+        mFrameProcessor.attach(mFrameSource, previewSize.getWidth(),
+                previewSize.getHeight(), rotation);
+        updateRegionOfInterest();
+
+        return camera;
+    }
+
+    /**
+     * Selects the preview and picture size, the preview frame rate range and the focus and flash
+     * modes closest to the requested ones which the camera supports.
+     *
+     * @throws RuntimeException if there is no suitable preview size or frame rate range
+     */
+    private CameraConfig negotiateConfig(Camera.Parameters parameters) {
+        SizePair sizePair = selectSizePair(parameters, requestedPreviewWidth,
+                requestedPreviewHeight);
         if (sizePair == null) {
             throw new RuntimeException("Could not find suitable preview size.");
         }
         Size pictureSize = sizePair.pictureSize();
-        previewSize = sizePair.previewSize();
+        Size preview = sizePair.previewSize();
 
-        int[] previewFpsRange = selectPreviewFpsRange(camera, requestedFps);
+        int[] previewFpsRange = selectPreviewFpsRange(parameters, requestedFps);
         if (previewFpsRange == null) {
             throw new RuntimeException("Could not find suitable preview frames per second range.");
         }
 
-        Camera.Parameters parameters = camera.getParameters();
-
-        if (pictureSize != null) {
-            parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
-        }
-
-        parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
-        parameters.setPreviewFpsRange(
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
-        parameters.setPreviewFormat(ImageFormat.NV21);
-
-        setRotation(camera, parameters, requestedCameraId);
-
-        if (focusMode != null) {
-            if (parameters.getSupportedFocusModes().contains(
-                    focusMode)) {
-                parameters.setFocusMode(focusMode);
+        String selectedFocusMode = parameters.getFocusMode();
+        if (requestedFocusMode != null) {
+            if (parameters.getSupportedFocusModes().contains(requestedFocusMode)) {
+                selectedFocusMode = requestedFocusMode;
             } else {
-                Log.i(TAG, "Camera focus mode: " + focusMode + " is not supported on this device.");
+                Log.i(TAG, "Camera focus mode: " + requestedFocusMode
+                        + " is not supported on this device.");
             }
         }
 
-        // setting focusMode to the one set in the params
-        focusMode = parameters.getFocusMode();
-
-        if (flashMode != null) {
-            if (parameters.getSupportedFlashModes().contains(
-                    flashMode)) {
-                parameters.setFlashMode(flashMode);
+        String selectedFlashMode = parameters.getFlashMode();
+        if (requestedFlashMode != null) {
+            List<String> supportedFlashModes = parameters.getSupportedFlashModes();
+            if (supportedFlashModes != null && supportedFlashModes.contains(requestedFlashMode)) {
+                selectedFlashMode = requestedFlashMode;
             } else {
-                Log.i(TAG, "Camera flash mode: " + flashMode + " is not supported on this device.");
+                Log.i(TAG, "Camera flash mode: " + requestedFlashMode
+                        + " is not supported on this device.");
             }
         }
 
-        // setting flashMode to the one set in the params
-        flashMode = parameters.getFlashMode();
+        return new CameraConfig(preview.getWidth(), preview.getHeight(),
+                pictureSize != null ? pictureSize.getWidth() : 0,
+                pictureSize != null ? pictureSize.getHeight() : 0,
+                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX],
+                selectedFocusMode, selectedFlashMode);
+    }
 
-        camera.setParameters(parameters);
+    /**
+     * Sets the given configuration and the rotation on the camera.
+     *
+     * @throws RuntimeException if the camera rejects the configuration
+     */
+    private void applyConfig(Camera camera, Camera.Parameters parameters, CameraConfig config,
+                             int cameraId) {
+        if (config.getPictureWidth() > 0) {
+            parameters.setPictureSize(config.getPictureWidth(), config.getPictureHeight());
+        }
+        parameters.setPreviewSize(config.getPreviewWidth(), config.getPreviewHeight());
+        parameters.setPreviewFpsRange(config.getMinFps(), config.getMaxFps());
+        parameters.setPreviewFormat(ImageFormat.NV21);
 
-        // Four frame buffers are needed for working with the camera:
-        //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
-        //   two for the frames that the camera uses to populate future preview images
-        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(previewSize));
+        setRotation(camera, parameters, cameraId);
 
-        return camera;
+        if (config.getFocusMode() != null) {
+            parameters.setFocusMode(config.getFocusMode());
+        }
+        if (config.getFlashMode() != null) {
+            parameters.setFlashMode(config.getFlashMode());
+        }
+        camera.setParameters(parameters);
     }
 
     /**
@@ -824,13 +1944,14 @@ class CameraSource {
      * ratio.  On some hardware, if you would only set the preview size, you will get a distorted
      * image.
      *
-     * @param camera        the camera to select a preview size from
+     * @param parameters    the parameters of the camera to select a preview size from
      * @param desiredWidth  the desired width of the camera preview frames
      * @param desiredHeight the desired height of the camera preview frames
      * @return the selected preview and picture size pair
      */
-    private static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
-        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
+    private static SizePair selectSizePair(Camera.Parameters parameters, int desiredWidth,
+                                           int desiredHeight) {
+        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(parameters);
 
         // The method for selecting the best size is to minimize the sum of the differences between
         // the desired values and the actual values for width and height.  This is certainly not the
@@ -887,8 +2008,7 @@ class CameraSource {
      * set to a size that is the same aspect ratio as the preview size we choose.  Otherwise, the
      * preview images may be distorted on some devices.
      */
-    private static List<SizePair> generateValidPreviewSizeList(Camera camera) {
-        Camera.Parameters parameters = camera.getParameters();
+    private static List<SizePair> generateValidPreviewSizeList(Camera.Parameters parameters) {
         List<android.hardware.Camera.Size> supportedPreviewSizes =
                 parameters.getSupportedPreviewSizes();
         List<android.hardware.Camera.Size> supportedPictureSizes =
@@ -927,11 +2047,13 @@ class CameraSource {
      * Selects the most suitable preview frames per second range, given the desired frames per
      * second.
      *
-     * @param camera            the camera to select a frames per second range from
+     * @param parameters        the parameters of the camera to select a frames per second range
+     *                          from
      * @param desiredPreviewFps the desired frames per second for the camera preview frames
      * @return the selected preview frames per second range
      */
-    private int[] selectPreviewFpsRange(Camera camera, float desiredPreviewFps) {
+    private static int[] selectPreviewFpsRange(Camera.Parameters parameters,
+                                               float desiredPreviewFps) {
         // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
         // rates.
         int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
@@ -943,7 +2065,7 @@ class CameraSource {
         // range (15, 30).
         int[] selectedFpsRange = null;
         int minDiff = Integer.MAX_VALUE;
-        List<int[]> previewFpsRangeList = camera.getParameters().getSupportedPreviewFpsRange();
+        List<int[]> previewFpsRangeList = parameters.getSupportedPreviewFpsRange();
         for (int[] range : previewFpsRangeList) {
             int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
             int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
@@ -964,6 +2086,25 @@ class CameraSource {
      * @param cameraId   the camera id to set rotation based on
      */
     private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
+        CameraInfo cameraInfo = new CameraInfo();
+        Camera.getCameraInfo(cameraId, cameraInfo);
+
+        boolean front = cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        int angle = getFrameAngle(cameraInfo.orientation, front, getDisplayDegrees());
+        // compensate for the front camera being mirrored
+        int displayAngle = front ? (360 - angle) % 360 : angle;
+
+        // This corresponds to the rotation constants in {@link Frame}.
+        this.rotation = angle / 90;
+
+        camera.setDisplayOrientation(displayAngle);
+        parameters.setRotation(angle);
+    }
+
+    /**
+     * Returns the clockwise rotation of the display from its natural orientation, in degrees.
+     */
+    private int getDisplayDegrees() {
         WindowManager windowManager =
                 (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         int degrees = 0;
@@ -984,211 +2125,21 @@ class CameraSource {
             default:
                 Log.e(TAG, "Bad rotation value: " + rotation);
         }
-
-        CameraInfo cameraInfo = new CameraInfo();
-        Camera.getCameraInfo(cameraId, cameraInfo);
-
-        int angle;
-        int displayAngle;
-        if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            angle = (cameraInfo.orientation + degrees) % 360;
-            displayAngle = (360 - angle); // compensate for it being mirrored
-        } else {  // back-facing
-            angle = (cameraInfo.orientation - degrees + 360) % 360;
-            displayAngle = angle;
-        }
-
-        // This corresponds to the rotation constants in {@link Frame}.
-        this.rotation = angle / 90;
-
-        camera.setDisplayOrientation(displayAngle);
-        parameters.setRotation(angle);
+        return degrees;
     }
 
     /**
-     * Creates one buffer for the camera preview callback.  The size of the buffer is based off of
-     * the camera preview size and the format of the camera image.
+     * Returns the clockwise angle by which the camera frames have to be rotated to appear upright
+     * on the display.
      *
-     * @return a new preview buffer of the appropriate size for the current camera settings
-     */
-    private byte[] createPreviewBuffer(Size previewSize) {
-        int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
-        long sizeInBits = previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-        int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
-
-        //
-        // NOTICE: This code only works when using play services v. 8.1 or higher.
-        //
-
-        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-        // should guarantee that there will be an array to work with.
-        byte[] byteArray = new byte[bufferSize];
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-            // I don't think that this will ever happen.  But if it does, then we wouldn't be
-            // passing the preview content to the underlying detector later.
-            throw new IllegalStateException("Failed to create valid buffer for camera source.");
-        }
-
-        mBytesToByteBuffer.put(byteArray, buffer);
-        return byteArray;
-    }
-
-    //==============================================================================================
-    // Frame processing
-    //==============================================================================================
-
-    /**
-     * Called when the camera has a new preview frame.
-     */
-    private class CameraPreviewCallback implements Camera.PreviewCallback {
-        @Override
-        public void onPreviewFrame(byte[] data, Camera camera) {
-            mFrameProcessor.setNextFrame(data, camera);
-        }
-    }
-
-    /**
-     * This runnable controls access to the underlying receiver, calling it to process frames when
-     * available from the camera.  This is designed to run detection on frames as fast as possible
-     * (i.e., without unnecessary context switching or waiting on the next frame).
-     * While detection is running on a frame, new frames may be received from the camera.  As these
-     * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
-     * associated processing are done for the previous frame, detection on the mostly recently
-     * received frame will immediately start on the same thread.
+     * @param sensorOrientation the orientation of the camera sensor, in degrees
+     * @param front             whether the camera is front-facing
+     * @param displayDegrees    the rotation of the display, in degrees
      */
-    private class FrameProcessingRunnable implements Runnable {
-        private Detector<?> mDetector;
-        private long mStartTimeMillis = SystemClock.elapsedRealtime();
-
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
-        private boolean mActive = true;
-
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private ByteBuffer mPendingFrameData;
-
-        FrameProcessingRunnable(Detector<?> detector) {
-            mDetector = detector;
-        }
-
-        /**
-         * Releases the underlying receiver.  This is only safe to do after the associated thread
-         * has completed, which is managed in camera source's release method above.
-         */
-        @SuppressLint("Assert")
-        void release() {
-            assert (mProcessingThread.getState() == State.TERMINATED);
-            mDetector.release();
-            mDetector = null;
-        }
-
-        /**
-         * Marks the runnable as active/not active.  Signals any blocked threads to continue.
-         */
-        void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
-            }
-        }
-
-        /**
-         * Sets the frame data received from the camera.  This adds the previous unused frame buffer
-         * (if present) back to the camera, and keeps a pending reference to the frame data for
-         * future use.
-         */
-        void setNextFrame(byte[] data, Camera camera) {
-            synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    camera.addCallbackBuffer(mPendingFrameData.array());
-                    mPendingFrameData = null;
-                }
-
-                if (!mBytesToByteBuffer.containsKey(data)) {
-                    Log.d(TAG,
-                            "Skipping frame.  Could not find ByteBuffer associated with the image " +
-                                    "data from the camera.");
-                    return;
-                }
-
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingFrameData = mBytesToByteBuffer.get(data);
-
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
-            }
-        }
-
-        /**
-         * As long as the processing thread is active, this executes detection on frames
-         * continuously.  The next pending frame is either immediately available or hasn't been
-         * received yet.  Once it is available, we transfer the frame info to local variables and
-         * run detection on that frame.  It immediately loops back for the next frame without
-         * pausing.
-         * If detection takes longer than the time in between new frames from the camera, this will
-         * mean that this loop will run without ever waiting on a frame, avoiding any context
-         * switching or frame acquisition time latency.
-         * If you find that this is using more CPU than you'd like, you should probably decrease the
-         * FPS setting above to allow for some idle time in between frames.
-         */
-        @Override
-        public void run() {
-            ByteBuffer data;
-
-            while (true) {
-                synchronized (mLock) {
-                    while (mActive && (mPendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
-                    }
-
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
-                    }
-
-                    outputFrame = new Frame.Builder()
-                            .setImageData(mPendingFrameData, previewSize.getWidth(),
-                                    previewSize.getHeight(), ImageFormat.NV21)
-                            .setId(mPendingFrameId)
-                            .setTimestampMillis(mPendingTimeMillis)
-                            .setRotation(rotation)
-                            .build();
-
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = mPendingFrameData;
-                    mPendingFrameData = null;
-                }
-
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
-
-                try {
-                    mDetector.receiveFrame(outputFrame);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Exception thrown from receiver.", t);
-                } finally {
-                    camera.addCallbackBuffer(data.array());
-                }
-            }
+    private static int getFrameAngle(int sensorOrientation, boolean front, int displayDegrees) {
+        if (front) {
+            return (sensorOrientation + displayDegrees) % 360;
         }
+        return (sensorOrientation - displayDegrees + 360) % 360;
     }
 }
@@ -18,12 +18,16 @@ package com.edwardvanraak.materialbarcodescanner;
 import android.Manifest;
 import android.content.Context;
 import android.content.res.Configuration;
+import android.graphics.Rect;
+import android.os.Build;
 import android.support.annotation.RequiresPermission;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 
 import com.google.android.gms.common.images.Size;
 
@@ -41,6 +45,16 @@ public class CameraSourcePreview extends ViewGroup {
     private boolean startRequested;
     private boolean surfaceAvailable;
 
+    private View regionOfInterest;
+    private boolean regionOfInterestListenerAdded;
+    private final ViewTreeObserver.OnGlobalLayoutListener regionOfInterestListener =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+                @Override
+                public void onGlobalLayout() {
+                    updateRegionOfInterest();
+                }
+            };
+
     public CameraSourcePreview(Context context, AttributeSet attrs) {
         super(context, attrs);
         this.context = context;
@@ -71,36 +85,56 @@ public class CameraSourcePreview extends ViewGroup {
         start(cameraSource);
     }
 
+    /**
+     * Stops the camera on its own thread, without waiting for it.
+     */
     public void stop() {
         if (cameraSource != null) {
-            cameraSource.stop();
+            cameraSource.stopAsync();
         }
     }
 
+    /**
+     * Releases the camera source on the camera thread, without waiting for it.
+     */
     public void release() {
         if (cameraSource != null) {
-            cameraSource.release();
+            cameraSource.releaseAsync();
         }
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    private void startIfReady() throws IOException, SecurityException {
+    private void startIfReady() throws SecurityException {
         if (startRequested && surfaceAvailable) {
-            cameraSource.start(surfaceView.getHolder());
-            if (graphicOverlay != null) {
-                Size size = cameraSource.getPreviewSize();
-                int min = Math.min(size.getWidth(), size.getHeight());
-                int max = Math.max(size.getWidth(), size.getHeight());
-                if (isPortraitMode()) {
-                    // Swap width and height sizes when in portrait, since it will be rotated by
-                    // 90 degrees
-                    graphicOverlay.setCameraInfo(min, max, cameraSource.getCameraFacing());
-                } else {
-                    graphicOverlay.setCameraInfo(max, min, cameraSource.getCameraFacing());
-                }
-                graphicOverlay.clear();
-            }
             startRequested = false;
+            final CameraSource startedSource = cameraSource;
+            startedSource.startAsync(surfaceView.getHolder(), new CameraSource.CommandCallback<Size>() {
+                @Override
+                public void onCompleted(Size previewSize) {
+                    // The detected items are located within the frames for detection.
+                    Size size = startedSource.getAnalysisSize();
+                    if (graphicOverlay != null) {
+                        int min = Math.min(size.getWidth(), size.getHeight());
+                        int max = Math.max(size.getWidth(), size.getHeight());
+                        if (isPortraitMode()) {
+                            // Swap width and height sizes when in portrait, since it will be
+                            // rotated by 90 degrees
+                            graphicOverlay.setCameraInfo(min, max, startedSource.getCameraFacing());
+                        } else {
+                            graphicOverlay.setCameraInfo(max, min, startedSource.getCameraFacing());
+                        }
+                        graphicOverlay.clear();
+                    }
+                    // The preview is laid out for the preview size.
+                    requestLayout();
+                    updateRegionOfInterest();
+                }
+
+                @Override
+                public void onFailed(Exception e) {
+                    Log.e(TAG, "Could not start camera source.", e);
+                }
+            });
         }
     }
 
@@ -112,8 +146,6 @@ public class CameraSourcePreview extends ViewGroup {
                 startIfReady();
             } catch (SecurityException se) {
                 Log.e(TAG, "Do not have permission to start the camera", se);
-            } catch (IOException e) {
-                Log.e(TAG, "Could not start camera source.", e);
             }
         }
 
@@ -129,6 +161,33 @@ public class CameraSourcePreview extends ViewGroup {
 
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        Rect previewRect = getPreviewRect(right - left, bottom - top);
+        for (int i = 0; i < getChildCount(); ++i) {
+            // One dimension will be cropped.  We shift child over or up by this offset and adjust
+            // the size to maintain the proper aspect ratio.
+            getChildAt(i).layout(
+                    previewRect.left, previewRect.top, previewRect.right, previewRect.bottom);
+        }
+
+        startIfReady();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        setRegionOfInterestListenerAdded(regionOfInterest != null);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        setRegionOfInterestListenerAdded(false);
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Returns where the camera preview is laid out within a view of the given size.
+     */
+    private Rect getPreviewRect(int viewWidth, int viewHeight) {
         int previewWidth = 320;
         int previewHeight = 240;
         if (cameraSource != null) {
@@ -146,9 +205,6 @@ public class CameraSourcePreview extends ViewGroup {
             previewHeight = tmp;
         }
 
-        final int viewWidth = right - left;
-        final int viewHeight = bottom - top;
-
         int childWidth;
         int childHeight;
         int childXOffset = 0;
@@ -169,22 +225,63 @@ public class CameraSourcePreview extends ViewGroup {
             childHeight = viewHeight;
             childXOffset = (childWidth - viewWidth) / 2;
         }
+        return new Rect(-1 * childXOffset, -1 * childYOffset,
+                childWidth - childXOffset, childHeight - childYOffset);
+    }
 
-        for (int i = 0; i < getChildCount(); ++i) {
-            // One dimension will be cropped.  We shift child over or up by this offset and adjust
-            // the size to maintain the proper aspect ratio.
-            getChildAt(i).layout(
-                    -1 * childXOffset, -1 * childYOffset,
-                    childWidth - childXOffset, childHeight - childYOffset);
-        }
+    /**
+     * Restricts detection to the part of the preview covered by the given view, such as a
+     * reticle, or lifts the restriction if the view is {@code null}.  The region follows the view
+     * whenever the layout changes.
+     */
+    public void setRegionOfInterest(View view) {
+        regionOfInterest = view;
+        setRegionOfInterestListenerAdded(view != null);
+        updateRegionOfInterest();
+    }
 
-        try {
-            startIfReady();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not start camera source.", e);
+    @SuppressWarnings("deprecation")
+    private void setRegionOfInterestListenerAdded(boolean added) {
+        if (regionOfInterestListenerAdded == added) {
+            return;
+        }
+        regionOfInterestListenerAdded = added;
+        ViewTreeObserver observer = getViewTreeObserver();
+        if (added) {
+            observer.addOnGlobalLayoutListener(regionOfInterestListener);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            observer.removeOnGlobalLayoutListener(regionOfInterestListener);
+        } else {
+            observer.removeGlobalOnLayoutListener(regionOfInterestListener);
         }
     }
 
+    private void updateRegionOfInterest() {
+        if (cameraSource == null) {
+            return;
+        }
+        View view = regionOfInterest;
+        if (view == null || view.getWidth() == 0 || getWidth() == 0) {
+            cameraSource.setRegionOfInterest(null);
+            return;
+        }
+
+        int[] viewLocation = new int[2];
+        int[] previewLocation = new int[2];
+        view.getLocationInWindow(viewLocation);
+        getLocationInWindow(previewLocation);
+        int left = viewLocation[0] - previewLocation[0];
+        int top = viewLocation[1] - previewLocation[1];
+
+        Rect previewRect = getPreviewRect(getWidth(), getHeight());
+        float width = previewRect.width();
+        float height = previewRect.height();
+        cameraSource.setRegionOfInterest(new FrameRegion(
+                (left - previewRect.left) / width,
+                (top - previewRect.top) / height,
+                (left + view.getWidth() - previewRect.left) / width,
+                (top + view.getHeight() - previewRect.top) / height));
+    }
 
     private boolean isPortraitMode() {
         int orientation = context.getResources().getConfiguration().orientation;
@@ -0,0 +1,150 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame stage which crops frames to a region of interest, so that detection only runs on the
+ * part of the frame the user is aiming at.  This is both cheaper than running detection on the
+ * whole frame and keeps codes outside of the region from being detected.
+ * The crop is copied into a buffer kept by the stage, which is only reallocated when the size of
+ * the crop changes, or into a frame leased from a {@link DerivedFramePool}.  The cropped frame
+ * records its position within the camera frame, so that detection results can be mapped back to
+ * camera frame coordinates.
+ * Without a region, or with a region covering the whole frame, frames are passed on unchanged.
+ */
+class CropStage implements FrameStage {
+
+    private final DerivedFramePool mPool;
+    private volatile FrameRegion mRegion;
+
+    // Only accessed by the processing thread.
+    private FrameBuffer mOutput;
+    private final int[] mBounds = new int[4];
+
+    CropStage() {
+        this(null);
+    }
+
+    /**
+     * @param pool the pool to lease the cropped frames from, or {@code null} to keep a buffer in
+     *             this stage
+     */
+    CropStage(DerivedFramePool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Sets the region frames are cropped to, or {@code null} to pass on whole frames.  This may be
+     * called from any thread, and applies from the next frame on.
+     */
+    void setRegion(FrameRegion region) {
+        mRegion = region;
+    }
+
+    FrameRegion getRegion() {
+        return mRegion;
+    }
+
+    @Override
+    public FrameBuffer process(FrameBuffer frame) {
+        FrameRegion region = mRegion;
+        if (region == null || region.isFullFrame()) {
+            return frame;
+        }
+
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        if (!getBounds(region, frameWidth, frameHeight, mBounds)) {
+            return null;
+        }
+        int left = mBounds[0];
+        int top = mBounds[1];
+        int width = mBounds[2] - left;
+        int height = mBounds[3] - top;
+
+        FrameBuffer output;
+        if (mPool != null) {
+            output = mPool.lease(width, height, frame);
+        } else {
+            output = mOutput;
+            if (output == null || output.getWidth() != width || output.getHeight() != height) {
+                output = new FrameBuffer(width, height);
+                mOutput = output;
+            }
+        }
+        crop(frame.getData(), frameWidth, frameHeight, left, top, output.getData(), width,
+                height);
+        int scale = frame.getScale();
+        output.setDerivedFrame(frame, frame.getLeft() + left * scale, frame.getTop() + top * scale,
+                scale);
+        return output;
+    }
+
+    /**
+     * Computes the pixel bounds of a region within a frame as left, top, right and bottom.  NV21
+     * stores one pair of chroma samples per 2x2 block of pixels, so the bounds are aligned to even
+     * coordinates.
+     *
+     * @return false if the region holds no pixels
+     */
+    static boolean getBounds(FrameRegion region, int frameWidth, int frameHeight, int[] bounds) {
+        bounds[0] = (int) (region.getLeft() * frameWidth) & ~1;
+        bounds[1] = (int) (region.getTop() * frameHeight) & ~1;
+        bounds[2] = Math.min(frameWidth,
+                ((int) Math.ceil(region.getRight() * frameWidth) + 1) & ~1);
+        bounds[3] = Math.min(frameHeight,
+                ((int) Math.ceil(region.getBottom() * frameHeight) + 1) & ~1);
+        return bounds[2] > bounds[0] && bounds[3] > bounds[1];
+    }
+
+    /**
+     * Copies a rectangle of an NV21 image, with even position and size, into another NV21 image,
+     * either of which may be in a direct buffer.
+     */
+    static void crop(ByteBuffer src, int srcWidth, int srcHeight, int left, int top,
+                     ByteBuffer dst, int width, int height) {
+        if (src.hasArray() && dst.hasArray()) {
+            crop(src.array(), srcWidth, srcHeight, left, top, dst.array(), width, height);
+            return;
+        }
+        ByteBuffer in = src.duplicate();
+        ByteBuffer out = dst.duplicate();
+        for (int y = 0; y < height; y++) {
+            copy(in, (top + y) * srcWidth + left, out, y * width, width);
+        }
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            copy(in, srcChroma + (top / 2 + y) * srcWidth + left, out, dstChroma + y * width,
+                    width);
+        }
+    }
+
+    private static void copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex,
+                             int length) {
+        src.clear();
+        src.position(srcIndex);
+        src.limit(srcIndex + length);
+        dst.position(dstIndex);
+        dst.put(src);
+    }
+
+    /**
+     * Copies a rectangle of an NV21 image, with even position and size, into another NV21 image.
+     */
+    static void crop(byte[] src, int srcWidth, int srcHeight, int left, int top,
+                     byte[] dst, int width, int height) {
+        // Luma plane, one byte per pixel.
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(src, (top + y) * srcWidth + left, dst, y * width, width);
+        }
+        // Interleaved chroma plane, one V/U byte pair per 2x2 block, i.e. one row per two rows of
+        // pixels with as many bytes as the row has pixels.
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            System.arraycopy(src, srcChroma + (top / 2 + y) * srcWidth + left,
+                    dst, dstChroma + y * width, width);
+        }
+    }
+}
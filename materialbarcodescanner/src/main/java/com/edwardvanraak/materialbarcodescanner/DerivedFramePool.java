@@ -0,0 +1,182 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of frames in direct byte buffers, for the frames which stages derive from camera frames,
+ * such as crops and downsampled copies.  Keeping their pixels outside of the Java heap spares the
+ * garbage collector from tracking megabytes of short lived image data, and the frames are shared
+ * by all stages and workers instead of each keeping buffers of its own.
+ * A frame is leased for one size and must be returned exactly once.  A frame leased against
+ * another frame is returned along with that frame's camera frame when the camera frame is
+ * recycled, which is after the results of the camera frame have been delivered.  A frame leased
+ * on its own, e.g. a snapshot kept past delivery, is returned with {@link FrameBuffer#recycle()}.
+ * Returned frames are kept for the next lease of the same size, up to a budget of free bytes;
+ * frames beyond it are dropped and left to the garbage collector.
+ * With lease tracking, the site of every lease is recorded so that frames which were never
+ * returned can be reported by {@link #checkLeaks(LeakReporter)}.  Tracking allocates on every
+ * lease, so it is meant for debug builds.
+ * The pool may be used from any thread.
+ */
+class DerivedFramePool {
+
+    /**
+     * Receives the frames which were leased and never returned.
+     */
+    interface LeakReporter {
+        /**
+         * @param leaseSite where the frame was leased
+         */
+        void onLeak(int width, int height, Throwable leaseSite);
+    }
+
+    private final int maxFreeBytes;
+    private final boolean trackLeases;
+
+    // Guarded by this.
+    private final List<ArrayDeque<FrameBuffer>> freeFrames = new ArrayList<>();
+    private final Map<FrameBuffer, Throwable> leaseSites = new IdentityHashMap<>();
+    private int freeBytes;
+    private int leasedCount;
+    private int allocatedCount;
+
+    /**
+     * @param maxFreeBytes the number of bytes of returned frames kept for future leases
+     * @param trackLeases  whether to record the site of every lease, see
+     *                     {@link #checkLeaks(LeakReporter)}
+     */
+    DerivedFramePool(int maxFreeBytes, boolean trackLeases) {
+        if (maxFreeBytes < 0) {
+            throw new IllegalArgumentException("Invalid free byte budget: " + maxFreeBytes);
+        }
+        this.maxFreeBytes = maxFreeBytes;
+        this.trackLeases = trackLeases;
+    }
+
+    /**
+     * Leases a frame of the given size, to be returned with {@link FrameBuffer#recycle()}.  The
+     * content of the frame is undefined.
+     */
+    FrameBuffer lease(int width, int height) {
+        return lease(width, height, null);
+    }
+
+    /**
+     * Leases a frame of the given size which is returned along with the camera frame the given
+     * frame was derived from, or the given frame itself if it is a camera frame.  The content of
+     * the frame is undefined.  Must be called by the thread processing the given frame.
+     */
+    FrameBuffer lease(int width, int height, FrameBuffer from) {
+        FrameBuffer frame;
+        synchronized (this) {
+            ArrayDeque<FrameBuffer> free = findFreeFrames(width, height);
+            frame = free != null ? free.pollLast() : null;
+            if (frame != null) {
+                freeBytes -= frame.getData().capacity();
+            } else {
+                frame = new FrameBuffer(this, width, height);
+                allocatedCount++;
+            }
+            frame.setLeased(true);
+            leasedCount++;
+            if (trackLeases) {
+                leaseSites.put(frame, new Throwable("Frame of " + width + "x" + height
+                        + " leased here"));
+            }
+        }
+        if (from != null) {
+            from.addLease(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Takes back a leased frame.  Called by {@link FrameBuffer#recycle()}.
+     *
+     * @throws IllegalStateException if the frame isn't leased from this pool
+     */
+    synchronized void recycle(FrameBuffer frame) {
+        if (frame.getDerivedPool() != this || !frame.isLeased()) {
+            throw new IllegalStateException("Frame returned which is not leased from this pool.");
+        }
+        frame.setLeased(false);
+        leasedCount--;
+        if (trackLeases) {
+            leaseSites.remove(frame);
+        }
+
+        int size = frame.getData().capacity();
+        if (freeBytes + size > maxFreeBytes) {
+            return;
+        }
+        ArrayDeque<FrameBuffer> free = findFreeFrames(frame.getWidth(), frame.getHeight());
+        if (free == null) {
+            free = new ArrayDeque<>();
+            freeFrames.add(free);
+        }
+        free.addLast(frame);
+        freeBytes += size;
+    }
+
+    /**
+     * Returns the number of frames currently leased.
+     */
+    synchronized int getLeasedCount() {
+        return leasedCount;
+    }
+
+    /**
+     * Returns the number of frames allocated since this pool was created.  Once the sizes in use
+     * stay the same, it stops growing.
+     */
+    synchronized int getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    /**
+     * Returns the number of bytes of returned frames kept for future leases.
+     */
+    synchronized int getFreeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     * Reports the frames still leased, which are leaks once no frame is being processed anymore.
+     * Without lease tracking, only their number is known and nothing is reported.
+     *
+     * @return the number of frames still leased
+     */
+    synchronized int checkLeaks(LeakReporter reporter) {
+        for (Map.Entry<FrameBuffer, Throwable> entry : leaseSites.entrySet()) {
+            reporter.onLeak(entry.getKey().getWidth(), entry.getKey().getHeight(),
+                    entry.getValue());
+        }
+        return leasedCount;
+    }
+
+    /**
+     * Drops all returned frames, e.g. when the system is running low on memory.
+     */
+    synchronized void trim() {
+        freeFrames.clear();
+        freeBytes = 0;
+    }
+
+    private ArrayDeque<FrameBuffer> findFreeFrames(int width, int height) {
+        // Only a handful of sizes are ever in use at once, so a scan is cheaper than hashing.
+        for (int i = 0; i < freeFrames.size(); i++) {
+            ArrayDeque<FrameBuffer> free = freeFrames.get(i);
+            FrameBuffer frame = free.peekLast();
+            if (frame == null) {
+                freeFrames.remove(i--);
+            } else if (frame.getWidth() == width && frame.getHeight() == height) {
+                return free;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,315 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One of the preallocated buffers of a {@link FrameBufferPool}, together with the metadata of the
+ * frame it currently holds.  Each buffer is reused for every frame the source writes into it, and
+ * keeps the same index within its pool, so that per buffer state can be kept with the buffer
+ * instead of being allocated for every frame.
+ * The metadata is written by the thread delivering frames before the frame is handed off, and is
+ * only valid while the frame is being processed.
+ * Frame stages derive frames of their own, such as a crop of a camera frame, which live either in
+ * buffers kept by the stage or in direct buffers leased from a {@link DerivedFramePool}.  Those
+ * keep track of where they are located within the camera frame, see {@link #getLeft()},
+ * {@link #getTop()} and {@link #getScale()}, and, for the items detected on them, where they are
+ * located within the upright camera frame, see {@link #getUprightLeft()}.
+ */
+class FrameBuffer {
+
+    private final int index;
+    private final FrameBufferPool pool;
+    private final DerivedFramePool derivedPool;
+    private final ByteBuffer data;
+    private final int width;
+    private final int height;
+
+    private int frameId;
+    private long timestampMillis;
+    private long receivedNanos;
+    private int rotation;
+    private int left;
+    private int top;
+    private int scale = 1;
+    private int cameraWidth;
+    private int cameraHeight;
+    private volatile Object tag;
+
+    // Guarded by the derived pool.
+    private boolean leased;
+
+    // The frames leased against this frame, linked through nextLease.  Only accessed by the
+    // thread processing the frame.
+    private FrameBuffer leases;
+    private FrameBuffer nextLease;
+    private FrameBuffer origin;
+
+    /**
+     * Creates a buffer for frames derived by a frame stage, which doesn't belong to a pool.
+     */
+    FrameBuffer(int width, int height) {
+        this(-1, null, width, height);
+    }
+
+    FrameBuffer(int index, FrameBufferPool pool, int width, int height) {
+        this.index = index;
+        this.pool = pool;
+        this.derivedPool = null;
+        this.width = width;
+        this.height = height;
+
+        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
+        // should guarantee that there will be an array to work with.
+        byte[] byteArray = new byte[FrameBufferPool.getBufferSize(width, height)];
+        data = ByteBuffer.wrap(byteArray);
+        if (!data.hasArray() || (data.array() != byteArray)) {
+            // I don't think that this will ever happen.  But if it does, then we wouldn't be
+            // passing the preview content to the underlying detector later.
+            throw new IllegalStateException("Failed to create valid buffer for camera source.");
+        }
+    }
+
+    /**
+     * Creates a derived frame in a direct buffer, to be leased from the given pool.
+     */
+    FrameBuffer(DerivedFramePool derivedPool, int width, int height) {
+        this.index = -1;
+        this.pool = null;
+        this.derivedPool = derivedPool;
+        this.width = width;
+        this.height = height;
+        data = ByteBuffer.allocateDirect(FrameBufferPool.getBufferSize(width, height));
+    }
+
+    /**
+     * Returns the index of this buffer within its pool, or -1 for a derived frame.
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the pool this buffer belongs to, or {@code null} for a derived frame.
+     */
+    FrameBufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the pool of direct buffers this derived frame is leased from, or {@code null}.
+     */
+    DerivedFramePool getDerivedPool() {
+        return derivedPool;
+    }
+
+    /**
+     * Returns the NV21 image data.  The byte buffer wraps the array handed to the source, except
+     * for frames leased from a {@link DerivedFramePool}, whose direct buffers have no array.
+     */
+    ByteBuffer getData() {
+        return data;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the rotation of the frame, see {@code Frame.Metadata#getRotation()}.
+     */
+    int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * Returns the horizontal position of this frame within the camera frame it was derived from.
+     */
+    int getLeft() {
+        return left;
+    }
+
+    /**
+     * Returns the vertical position of this frame within the camera frame it was derived from.
+     */
+    int getTop() {
+        return top;
+    }
+
+    /**
+     * Returns the horizontal position of this frame within the camera frame it was derived from,
+     * with both frames turned upright by their rotation.  Detectors report the items found on a
+     * rotated frame in upright coordinates, so this, and not {@link #getLeft()}, is the offset to
+     * map them back to the camera frame with.
+     */
+    int getUprightLeft() {
+        switch (rotation) {
+            case 1:
+                return getCameraHeight() - top - height * scale;
+            case 2:
+                return getCameraWidth() - left - width * scale;
+            case 3:
+                return top;
+            default:
+                return left;
+        }
+    }
+
+    /**
+     * Returns the vertical position of this frame within the camera frame it was derived from,
+     * with both frames turned upright by their rotation, see {@link #getUprightLeft()}.
+     */
+    int getUprightTop() {
+        switch (rotation) {
+            case 1:
+                return left;
+            case 2:
+                return getCameraHeight() - top - height * scale;
+            case 3:
+                return getCameraWidth() - left - width * scale;
+            default:
+                return top;
+        }
+    }
+
+    /**
+     * Returns the width of the camera frame this frame was derived from, or of this frame if it is
+     * a camera frame.
+     */
+    int getCameraWidth() {
+        return cameraWidth > 0 ? cameraWidth : width;
+    }
+
+    /**
+     * Returns the height of the camera frame this frame was derived from, or of this frame if it
+     * is a camera frame.
+     */
+    int getCameraHeight() {
+        return cameraHeight > 0 ? cameraHeight : height;
+    }
+
+    /**
+     * Returns the number of camera frame pixels per pixel of this frame along either axis, e.g. 2
+     * for a frame downsampled to half the resolution.
+     */
+    int getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns the id of the frame, increasing by one for every frame received.
+     */
+    int getFrameId() {
+        return frameId;
+    }
+
+    /**
+     * Returns the time the frame was received, relative to the start of the pipeline.
+     */
+    long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the camera frame was received, for measuring
+     * latencies.
+     */
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    void setFrame(int frameId, long timestampMillis, int rotation) {
+        this.frameId = frameId;
+        this.timestampMillis = timestampMillis;
+        this.rotation = rotation;
+    }
+
+    void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Sets the metadata of a frame derived from the given frame, located at the given position
+     * within the camera frame and with the given scale.
+     */
+    void setDerivedFrame(FrameBuffer frame, int left, int top, int scale) {
+        setFrame(frame.frameId, frame.timestampMillis, frame.rotation);
+        this.receivedNanos = frame.receivedNanos;
+        this.cameraWidth = frame.getCameraWidth();
+        this.cameraHeight = frame.getCameraHeight();
+        this.left = left;
+        this.top = top;
+        this.scale = scale;
+    }
+
+    /**
+     * Returns the object attached to this buffer by a detector, see {@link #setTag(Object)}.
+     */
+    Object getTag() {
+        return tag;
+    }
+
+    /**
+     * Attaches an object to this buffer, which lives as long as the buffer does.  Detectors use
+     * this to keep per buffer state, such as a wrapper around the image data.  A buffer is only
+     * ever processed by one detector at a time.
+     */
+    void setTag(Object tag) {
+        this.tag = tag;
+    }
+
+    boolean isLeased() {
+        return leased;
+    }
+
+    void setLeased(boolean leased) {
+        this.leased = leased;
+        if (!leased) {
+            origin = null;
+        }
+    }
+
+    /**
+     * Returns the frame the frames leased against this frame are returned with: the camera frame
+     * this frame was derived from, or this frame itself.
+     */
+    private FrameBuffer getOrigin() {
+        return origin != null ? origin : this;
+    }
+
+    /**
+     * Ties a frame leased from a {@link DerivedFramePool} to the camera frame of this frame, so
+     * that it is returned when the camera frame is recycled.
+     */
+    void addLease(FrameBuffer frame) {
+        FrameBuffer owner = getOrigin();
+        frame.origin = owner;
+        frame.nextLease = owner.leases;
+        owner.leases = frame;
+    }
+
+    /**
+     * Hands the buffer back to its pool, to be filled with a future frame, together with the
+     * frames leased against it.  A frame leased on its own goes back to its
+     * {@link DerivedFramePool}.  Other derived frames are either returned with their camera frame,
+     * or kept by the stage which created them.
+     */
+    void recycle() {
+        FrameBuffer lease = leases;
+        leases = null;
+        while (lease != null) {
+            FrameBuffer next = lease.nextLease;
+            lease.nextLease = null;
+            lease.derivedPool.recycle(lease);
+            lease = next;
+        }
+        if (pool != null) {
+            pool.recycle(this);
+        } else if (derivedPool != null && origin == null) {
+            derivedPool.recycle(this);
+        }
+    }
+}
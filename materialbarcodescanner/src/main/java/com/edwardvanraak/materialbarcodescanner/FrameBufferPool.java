@@ -0,0 +1,287 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Set of preallocated NV21 frame buffers for frames of one size.  Buffers are identified by
+ * their index, and the buffer belonging to an array received from the source is found by an
+ * identity scan, which for the handful of buffers in flight is cheaper than hashing and does not
+ * allocate.
+ * The number of buffers is either fixed, or adapted to the detectors while frames are received:
+ * the pool keeps as many buffers as the measured detection latency versus frame interval calls
+ * for, and grows when the source was left without a buffer for longer than a frame interval
+ * (counted as starvation, see {@link #getStarvedCount()}).  Buffers which are no longer needed
+ * are dropped when they are recycled, so that their memory can be reclaimed.
+ * The pool outlives a single source: when a source is detached, its buffers stay with the pool and
+ * are handed to the next source attached, so that restarting the camera doesn't reallocate them.
+ */
+class FrameBufferPool {
+
+    /**
+     * NV21 uses 12 bits per pixel: a full resolution luma plane followed by interleaved chroma
+     * samples at a quarter of the resolution.
+     */
+    private static final int NV21_BITS_PER_PIXEL = 12;
+
+    // Besides the frames being executed upon in doing detection, buffers are needed for:
+    //
+    //   the frames that the source uses to populate future images (two)
+    //   the next pending frame to process immediately upon completing detection (one)
+    private static final int SOURCE_BUFFER_COUNT = 2;
+    private static final int PENDING_BUFFER_COUNT = 1;
+
+    /**
+     * Number of frames between two adjustments of an adaptive pool.
+     */
+    private static final int ADJUST_INTERVAL = 30;
+
+    /**
+     * Number of adjustments without starvation before the pool shrinks by one buffer, which keeps
+     * it from oscillating around the size at which the source starts to starve.
+     */
+    private static final int SHRINK_DELAY = 10;
+
+    /**
+     * The moving averages move by 1/AVERAGE_WEIGHT of the difference to every new sample.
+     */
+    private static final int AVERAGE_WEIGHT = 8;
+
+    private final int width;
+    private final int height;
+    private final int minCount;
+    private final int workerCount;
+    private final AtomicReferenceArray<FrameBuffer> buffers;
+
+    private final AtomicInteger bufferCount = new AtomicInteger();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicInteger starvedCount = new AtomicInteger();
+    private volatile FrameSource source;
+    private volatile int rotation;
+    private volatile int targetCount;
+    private volatile long emptySinceNanos;
+    private volatile long frameIntervalNanos;
+    private volatile long detectionNanos;
+
+    // Only accessed by the thread delivering frames from the source.
+    private long lastFrameNanos;
+    private int framesUntilAdjust = ADJUST_INTERVAL;
+    private int adjustsUntilShrink = SHRINK_DELAY;
+    private int lastStarvedCount;
+
+    /**
+     * Creates a pool for frames of the given dimensions.  The pool is adaptive if the maximum
+     * number of buffers is larger than the minimum, in which case it starts out with the minimum.
+     *
+     * @param minCount    the minimum number of buffers
+     * @param maxCount    the maximum number of buffers
+     * @param workerCount the number of frames which may be in detection at the same time
+     */
+    FrameBufferPool(int width, int height, int minCount, int maxCount, int workerCount) {
+        if (minCount < 1 || maxCount < minCount) {
+            throw new IllegalArgumentException(
+                    "Invalid buffer count: " + minCount + " to " + maxCount);
+        }
+        this.width = width;
+        this.height = height;
+        this.minCount = minCount;
+        this.workerCount = workerCount;
+        buffers = new AtomicReferenceArray<>(maxCount);
+        targetCount = minCount;
+        for (int i = 0; i < minCount; i++) {
+            buffers.set(i, new FrameBuffer(i, this, width, height));
+        }
+        bufferCount.set(minCount);
+    }
+
+    /**
+     * Returns the size in bytes of a buffer able to hold one NV21 frame of the given dimensions.
+     */
+    static int getBufferSize(int width, int height) {
+        long sizeInBits = (long) width * height * NV21_BITS_PER_PIXEL;
+        return (int) Math.ceil(sizeInBits / 8.0d) + 1;
+    }
+
+    /**
+     * Returns the number of buffers needed to keep the source supplied while the given number of
+     * workers are running detection.
+     */
+    static int getDefaultCount(int workerCount) {
+        return SOURCE_BUFFER_COUNT + PENDING_BUFFER_COUNT + workerCount;
+    }
+
+    /**
+     * Returns whether this pool holds buffers for frames of the given dimensions.
+     */
+    boolean hasFrameSize(int width, int height) {
+        return this.width == width && this.height == height;
+    }
+
+    /**
+     * Hands all buffers to a new source.  This must be called after the source has been set up to
+     * deliver its frames to the pool's owner, and while none of the buffers are in use.
+     *
+     * @param rotation the rotation of the frames, see {@code Frame.Metadata#getRotation()}
+     */
+    void attach(FrameSource source, int rotation) {
+        this.rotation = rotation;
+        queuedCount.set(0);
+        // The frame interval and the time the last source ran empty belong to the last session;
+        // starvation is only counted once the new source has delivered two frames.
+        lastFrameNanos = 0;
+        frameIntervalNanos = 0;
+        emptySinceNanos = System.nanoTime();
+        this.source = source;
+        for (int i = 0; i < buffers.length(); i++) {
+            FrameBuffer buffer = buffers.get(i);
+            if (buffer != null) {
+                recycle(buffer);
+            }
+        }
+    }
+
+    /**
+     * Takes the buffers back from the current source.  Buffers recycled from now on stay with the
+     * pool until the next source is attached.
+     */
+    void detach() {
+        source = null;
+    }
+
+    /**
+     * Returns the rotation of the frames of the current source.
+     */
+    int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * Returns the number of buffers currently allocated by this pool.
+     */
+    int size() {
+        return bufferCount.get();
+    }
+
+    /**
+     * Returns how often a source was left without a buffer for longer than a frame interval,
+     * which means that it most likely had to drop a frame, since the pool was created.
+     */
+    int getStarvedCount() {
+        return starvedCount.get();
+    }
+
+    /**
+     * Returns the buffer wrapping the given array, or {@code null} if the array doesn't belong to
+     * this pool.
+     */
+    FrameBuffer find(byte[] data) {
+        for (int i = 0; i < buffers.length(); i++) {
+            FrameBuffer buffer = buffers.get(i);
+            if (buffer != null && buffer.getData().array() == data) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records that the source has written a frame into the given buffer.  This is called by the
+     * thread delivering frames, which also adjusts the size of an adaptive pool from time to time.
+     */
+    void onFrameReceived(FrameBuffer buffer) {
+        long now = System.nanoTime();
+        emptySinceNanos = now;
+        queuedCount.decrementAndGet();
+
+        if (lastFrameNanos != 0) {
+            frameIntervalNanos = average(frameIntervalNanos, now - lastFrameNanos);
+        }
+        lastFrameNanos = now;
+
+        if (buffers.length() > minCount && --framesUntilAdjust == 0) {
+            framesUntilAdjust = ADJUST_INTERVAL;
+            adjust();
+        }
+    }
+
+    /**
+     * Records the time detection took on a frame of this pool.  This may be called by several
+     * workers at once; an occasional lost sample doesn't matter for the average.
+     */
+    void onFrameDetected(long latencyNanos) {
+        detectionNanos = average(detectionNanos, latencyNanos);
+    }
+
+    /**
+     * Hands a buffer back to the source, or drops it if the pool is larger than needed.  Without
+     * a source, the buffer is kept for the next one.
+     */
+    void recycle(FrameBuffer buffer) {
+        int count;
+        while ((count = bufferCount.get()) > targetCount) {
+            if (bufferCount.compareAndSet(count, count - 1)) {
+                buffers.set(buffer.getIndex(), null);
+                return;
+            }
+        }
+
+        FrameSource source = this.source;
+        if (source == null) {
+            return;
+        }
+        if (queuedCount.getAndIncrement() == 0) {
+            long interval = frameIntervalNanos;
+            if (interval > 0 && System.nanoTime() - emptySinceNanos > interval) {
+                starvedCount.incrementAndGet();
+            }
+        }
+        source.addBuffer(buffer.getData().array());
+    }
+
+    /**
+     * Sizes the pool for the number of frames which are in detection at the same time on
+     * average, and grows it beyond that as long as the source keeps starving.
+     */
+    private void adjust() {
+        int target = targetCount;
+        long interval = frameIntervalNanos;
+        if (interval > 0) {
+            long inDetection = (detectionNanos + interval - 1) / interval;
+            int needed = getDefaultCount((int) Math.max(1, Math.min(workerCount, inDetection)));
+
+            int starved = starvedCount.get();
+            if (starved != lastStarvedCount) {
+                target = Math.max(needed, target + 1);
+                adjustsUntilShrink = SHRINK_DELAY;
+            } else if (needed >= target) {
+                target = needed;
+                adjustsUntilShrink = SHRINK_DELAY;
+            } else if (--adjustsUntilShrink == 0) {
+                target--;
+                adjustsUntilShrink = SHRINK_DELAY;
+            }
+            lastStarvedCount = starved;
+        }
+        resize(Math.max(minCount, Math.min(buffers.length(), target)));
+    }
+
+    /**
+     * Allocates buffers up to the given count right away, while surplus buffers are dropped as
+     * they come back.
+     */
+    private void resize(int count) {
+        targetCount = count;
+        for (int i = 0; i < buffers.length() && bufferCount.get() < count; i++) {
+            if (buffers.get(i) == null) {
+                FrameBuffer buffer = new FrameBuffer(i, this, width, height);
+                buffers.set(i, buffer);
+                bufferCount.incrementAndGet();
+                recycle(buffer);
+            }
+        }
+    }
+
+    private static long average(long average, long sample) {
+        return average == 0 ? sample : average + (sample - average) / AVERAGE_WEIGHT;
+    }
+}
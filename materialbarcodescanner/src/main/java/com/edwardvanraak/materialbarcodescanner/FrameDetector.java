@@ -0,0 +1,34 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+/**
+ * Receives the frames picked up by a {@link FrameProcessingRunnable}.  On a device this wraps a
+ * {@link com.google.android.gms.vision.Detector} (see {@link VisionFrameDetector}); on a plain JVM
+ * any decoder or a simple counter can stand in for it.
+ * Detection and delivery of the results are split, so that several detector instances can run
+ * detection on different frames at the same time while their results are still delivered one at a
+ * time and in frame order.
+ *
+ * @param <T> the type of the detection results
+ */
+interface FrameDetector<T> {
+
+    /**
+     * Runs detection on a single NV21 frame.  This is called on a processing thread; the frame
+     * stays valid until its results have been delivered, after which the buffer is recycled.
+     *
+     * @param frame the frame buffer, see {@link FrameBuffer} for the data and metadata
+     * @return the detection results, or {@code null} if there is nothing to deliver
+     */
+    T detect(FrameBuffer frame);
+
+    /**
+     * Delivers the results of {@link #detect}.  Deliveries never overlap and happen in the order
+     * of the frame ids, even when several detectors run in parallel.
+     */
+    void deliver(T results);
+
+    /**
+     * Releases the resources held by the detector.
+     */
+    void release();
+}
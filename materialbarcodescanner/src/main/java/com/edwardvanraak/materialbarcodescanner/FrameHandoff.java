@@ -0,0 +1,89 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single slot for handing frames from a single producer (the camera callback thread) to
+ * a single consumer (the processing thread).  The latest frame wins: offering a frame while the
+ * previous one hasn't been taken yet replaces it and returns the replaced frame to the producer,
+ * so that it can recycle its buffer.
+ * The producer never blocks or acquires a monitor; it only unparks the consumer if the consumer is
+ * actually waiting.  The consumer parks while the slot is empty.
+ *
+ * @param <T> the type of the frames handed off
+ */
+class FrameHandoff<T> {
+
+    private final AtomicReference<T> pending = new AtomicReference<>();
+
+    // The consumer thread while it is parked waiting on the next frame.
+    private volatile Thread waiter;
+    private volatile boolean closed;
+
+    /**
+     * Makes a frame available to the consumer.  Called by the producer only.
+     *
+     * @return the frame which was still pending and has now been replaced, or {@code null}
+     */
+    T offer(T frame) {
+        T replaced = pending.getAndSet(frame);
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        return replaced;
+    }
+
+    /**
+     * Waits for the next frame.  Called by the consumer only.
+     *
+     * @return the next frame, or {@code null} if the handoff was closed or the consumer interrupted
+     */
+    T take() {
+        Thread current = Thread.currentThread();
+        while (true) {
+            if (closed || current.isInterrupted()) {
+                return null;
+            }
+            T frame = pending.getAndSet(null);
+            if (frame != null) {
+                return frame;
+            }
+
+            // Publish the waiter before checking the slot again, so that a producer either sees
+            // the waiter and unparks it, or its frame is seen here.  A stale unpark only causes a
+            // spurious wake up, which the loop handles.
+            waiter = current;
+            if (pending.get() == null && !closed) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+        }
+    }
+
+    /**
+     * Removes the pending frame, if any, without waiting.
+     */
+    T poll() {
+        return pending.getAndSet(null);
+    }
+
+    /**
+     * Makes {@link #take()} return {@code null} from now on and wakes up a waiting consumer.
+     */
+    void close() {
+        closed = true;
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Lets {@link #take()} wait for frames again after {@link #close()}.
+     */
+    void open() {
+        closed = false;
+    }
+}
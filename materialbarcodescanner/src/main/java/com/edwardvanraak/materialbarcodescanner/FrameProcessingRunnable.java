@@ -0,0 +1,564 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This runnable controls access to the underlying receiver, calling it to process frames when
+ * available from the frame source.  This is designed to run detection on frames as fast as possible
+ * (i.e., without unnecessary context switching or waiting on the next frame).
+ * While detection is running on a frame, new frames may be received from the source.  As these
+ * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
+ * associated processing are done for the previous frame, detection on the mostly recently
+ * received frame will immediately start on the same thread.
+ * Frames are handed from the source to the processing thread through a lock-free
+ * {@link FrameHandoff}, so the thread delivering frames never waits on a monitor.  Frames live in
+ * the preallocated buffers of a {@link FrameBufferPool}, which also carry the frame metadata, so
+ * that the frame loop itself does not allocate once it is running.
+ * When more than one detector is supplied, each detector gets a worker thread of its own and the
+ * thread running this runnable dispatches frames to the workers round-robin, handing out the most
+ * recent frame as soon as the next worker in line is idle.  Results are re-sequenced by frame so
+ * that they are still delivered in order, one at a time.
+ * Frames received, dropped, processed and delivered, and the time they spend in each step, are
+ * recorded in a {@link ScannerMetrics} instance, and while tracing is on, the events of each
+ * frame are recorded by a {@link FrameTracer}.
+ * This class does not depend on the Android framework, so the same frame loop that runs on a
+ * device can be driven by a {@link SyntheticFrameSource} on a plain JVM.
+ */
+class FrameProcessingRunnable implements Runnable, FrameSource.Callback {
+
+    /**
+     * Receives the exceptions thrown while detecting or delivering, which the frame loop catches
+     * so that a failing frame doesn't stop it.  Called on the thread the exception was thrown on.
+     */
+    interface ErrorListener {
+        void onError(String message, RuntimeException e);
+    }
+
+    private final List<FrameDetector<?>> mDetectors;
+    private int mMinBufferCount;
+    private int mMaxBufferCount;
+    private long mStartTimeMillis = currentTimeMillis();
+    private volatile ScannerMetrics mMetrics = new ScannerMetrics();
+    private final FrameTracer mTracer = new FrameTracer();
+    private volatile ErrorListener mErrorListener;
+
+    /**
+     * Holds the most recent frame received from the source until the processing thread picks it
+     * up.  The handoff is open while the runnable is active.
+     */
+    private final FrameHandoff<FrameBuffer> mHandoff = new FrameHandoff<>();
+
+    /**
+     * The buffers handed to the current source.  We use byte buffers internally because this is a
+     * more efficient way to call into native code later (avoids a potential copy).  The pool is
+     * kept while no source is attached, and reused by the next source producing frames of the
+     * same size.
+     */
+    private volatile FrameBufferPool mPool;
+    private volatile FrameSource mSource;
+
+    // Only accessed by the thread delivering frames from the source.
+    private int mFrameId = 0;
+
+    FrameProcessingRunnable(FrameDetector<?> detector) {
+        this(Collections.<FrameDetector<?>>singletonList(detector));
+    }
+
+    /**
+     * Creates a runnable which runs detection on one worker per supplied detector.
+     */
+    FrameProcessingRunnable(List<? extends FrameDetector<?>> detectors) {
+        if (detectors.isEmpty()) {
+            throw new IllegalArgumentException("No detector supplied.");
+        }
+        mDetectors = new ArrayList<FrameDetector<?>>(detectors);
+        mMinBufferCount = FrameBufferPool.getDefaultCount(mDetectors.size());
+        mMaxBufferCount = mMinBufferCount;
+    }
+
+    /**
+     * Sets the number of frame buffers handed to the sources attached from now on.  If the
+     * maximum is larger than the minimum, the number of buffers is adapted to the detection
+     * latency, see {@link FrameBufferPool}.  Default: as many as the workers need to keep a
+     * source supplied.
+     */
+    void setBufferCount(int minCount, int maxCount) {
+        if (minCount < 1 || maxCount < minCount) {
+            throw new IllegalArgumentException(
+                    "Invalid buffer count: " + minCount + " to " + maxCount);
+        }
+        mMinBufferCount = minCount;
+        mMaxBufferCount = maxCount;
+    }
+
+    /**
+     * Returns the number of buffers currently allocated for the attached source, or kept for the
+     * next one.
+     */
+    int getBufferCount() {
+        FrameBufferPool pool = mPool;
+        return pool != null ? pool.size() : 0;
+    }
+
+    /**
+     * Returns how often the attached source ran out of buffers, see
+     * {@link FrameBufferPool#getStarvedCount()}.
+     */
+    int getStarvedCount() {
+        FrameBufferPool pool = mPool;
+        return pool != null ? pool.getStarvedCount() : 0;
+    }
+
+    /**
+     * Sets the metrics frames are recorded in, such as metrics shared with the frame stages.
+     * This is only safe to do while the processing thread is not running.
+     */
+    void setMetrics(ScannerMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets the listener reporting the exceptions of detectors and their processors, or
+     * {@code null} to drop them.  This is only safe to do while the processing thread is not
+     * running.
+     */
+    void setErrorListener(ErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    ScannerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the tracer recording the events of every frame, which is off until started.
+     */
+    FrameTracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Returns the number of detection workers.
+     */
+    int getWorkerCount() {
+        return mDetectors.size();
+    }
+
+    /**
+     * Attaches a frame source to this runnable and hands it the buffers to write frames into.
+     * Frames received from the source are sent to the detector while the runnable is active.
+     * The buffers of the previous source are reused if its frames had the same size.
+     *
+     * @param source   the source of the frames
+     * @param width    the width of the frames produced by the source
+     * @param height   the height of the frames produced by the source
+     * @param rotation the rotation of the frames, see {@code Frame.Metadata#getRotation()}
+     */
+    void attach(FrameSource source, int width, int height, int rotation) {
+        FrameBufferPool pool = mPool;
+        if (pool == null || !pool.hasFrameSize(width, height)) {
+            pool = new FrameBufferPool(width, height, mMinBufferCount, mMaxBufferCount,
+                    mDetectors.size());
+        }
+        mSource = source;
+        mPool = pool;
+
+        mMetrics.onStarted();
+        source.setCallback(this);
+        pool.attach(source, rotation);
+    }
+
+    /**
+     * Detaches the current frame source and takes back the buffers handed to it, which are kept
+     * for the next source.  This may be done once the runnable is no longer active, while the
+     * processing thread completes the frame it is still working on; that frame's buffer then stays
+     * with the pool.  The next source must not be attached before the processing thread has
+     * completed, see {@link PipelineLifecycle}.
+     */
+    void detach() {
+        FrameSource source = mSource;
+        mSource = null;
+        if (mHandoff.poll() != null) {
+            mMetrics.onFrameDropped();
+        }
+        FrameBufferPool pool = mPool;
+        if (pool != null) {
+            pool.detach();
+        }
+        if (source != null) {
+            source.setCallback(null);
+        }
+    }
+
+    /**
+     * Drops the buffers kept for the next source, so that they can be garbage collected.  This
+     * has no effect while a source is attached.
+     */
+    void releaseBuffers() {
+        if (mSource == null) {
+            // clear the buffer to prevent oom exceptions
+            mPool = null;
+        }
+    }
+
+    /**
+     * Releases the underlying receivers.  This is only safe to do after the associated thread
+     * has completed, which is managed by {@link PipelineLifecycle}.
+     */
+    void release() {
+        for (FrameDetector<?> detector : mDetectors) {
+            detector.release();
+        }
+        mDetectors.clear();
+        mPool = null;
+    }
+
+    /**
+     * Marks the runnable as active/not active.  Signals any blocked threads to continue.
+     */
+    void setActive(boolean active) {
+        if (active) {
+            mHandoff.open();
+        } else {
+            mHandoff.close();
+        }
+    }
+
+    /**
+     * Sets the frame data received from the source.  This adds the previous unused frame buffer
+     * (if present) back to the source, and keeps a pending reference to the frame data for
+     * future use.
+     */
+    @Override
+    public void onFrame(byte[] data) {
+        long nanos = System.nanoTime();
+        ScannerMetrics metrics = mMetrics;
+        metrics.onFrameReceived(nanos);
+        FrameBufferPool pool = mSource != null ? mPool : null;
+        FrameBuffer frame = pool != null ? pool.find(data) : null;
+        if (frame == null) {
+            // Skipping frame.  Could not find the buffer associated with the image data from
+            // the source.
+            metrics.onFrameDropped();
+            return;
+        }
+        pool.onFrameReceived(frame);
+
+        // Timestamp and frame ID are maintained here, which will give downstream code some
+        // idea of the timing of frames received and when frames were dropped along the way.
+        // The buffer belongs to this thread until it is offered below.
+        frame.setFrame(++mFrameId, TimeUnit.NANOSECONDS.toMillis(nanos) - mStartTimeMillis,
+                pool.getRotation());
+        frame.setReceivedNanos(nanos);
+        mTracer.record(FrameTracer.FRAME_RECEIVED, mFrameId);
+
+        // Wakes up the processor thread if it is waiting on the next frame (see below).  A frame
+        // that is still pending was never picked up, so its buffer goes back to the source.
+        FrameBuffer replaced = mHandoff.offer(frame);
+        mTracer.record(FrameTracer.FRAME_HANDED_OFF, frame.getFrameId());
+        if (replaced != null) {
+            metrics.onFrameDropped();
+            mTracer.record(FrameTracer.FRAME_DROPPED, replaced.getFrameId());
+            recycle(replaced, mTracer);
+        }
+    }
+
+    /**
+     * As long as the processing thread is active, this executes detection on frames
+     * continuously.  The next pending frame is either immediately available or hasn't been
+     * received yet.  Once it is available, we take it out of the handoff and run detection on
+     * that frame.  It immediately loops back for the next frame without pausing.
+     * If detection takes longer than the time in between new frames from the source, this will
+     * mean that this loop will run without ever waiting on a frame, avoiding any context
+     * switching or frame acquisition time latency.
+     * If you find that this is using more CPU than you'd like, you should probably decrease the
+     * FPS setting of the camera to allow for some idle time in between frames.
+     */
+    @Override
+    public void run() {
+        if (mDetectors.size() == 1) {
+            runSerial(mDetectors.get(0));
+        } else {
+            runParallel();
+        }
+    }
+
+    /**
+     * Runs detection and delivery for every frame on the current thread.
+     */
+    private void runSerial(FrameDetector<?> detector) {
+        ScannerMetrics metrics = mMetrics;
+        ErrorListener errors = mErrorListener;
+        FrameBuffer frame;
+        // Wait for the next frame to be received from the source, unless we already have it.  The
+        // handoff returns null once this camera source is stopped or released, even if a frame is
+        // pending, which terminates the loop.  Taking the frame out of the handoff ensures that
+        // its buffer isn't recycled back to the source before we are done using that data.
+        while ((frame = mHandoff.take()) != null) {
+            // The source keeps adding pending frame(s) while we are running detection on the
+            // current frame.
+            try {
+                Object results = detect(detector, frame, metrics, mTracer, errors);
+                if (results != null) {
+                    deliver(detector, frame, results, metrics, mTracer, errors);
+                }
+            } finally {
+                recycle(frame, mTracer);
+            }
+        }
+    }
+
+    /**
+     * Dispatches frames round-robin to one worker per detector until this runnable is stopped,
+     * then waits for all workers to complete.
+     */
+    private void runParallel() {
+        int workerCount = mDetectors.size();
+        ScannerMetrics metrics = mMetrics;
+        ErrorListener errors = mErrorListener;
+        ResultSequencer sequencer = new ResultSequencer(workerCount, metrics, mTracer, errors);
+        Worker[] workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(mDetectors.get(i), sequencer, metrics, mTracer, errors, i);
+            workers[i].start();
+        }
+
+        try {
+            long sequence = 0;
+            while (true) {
+                Worker worker = workers[(int) (sequence % workerCount)];
+                // Only pick up a frame once the worker is free, so that it always receives the
+                // most recent frame.
+                if (!worker.awaitIdle()) {
+                    return;
+                }
+                FrameBuffer frame = mHandoff.take();
+                if (frame == null) {
+                    return;
+                }
+                worker.dispatch(frame, sequence++);
+            }
+        } finally {
+            for (Worker worker : workers) {
+                worker.shutdown();
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+        }
+    }
+
+    /**
+     * Runs detection on a frame.  A detector failing on a single frame must not stop the frame
+     * loop, so in that case the error is reported and there are simply no results for this frame.
+     */
+    private static Object detect(FrameDetector<?> detector, FrameBuffer frame,
+                                 ScannerMetrics metrics, FrameTracer tracer,
+                                 ErrorListener errors) {
+        tracer.record(FrameTracer.DETECT_BEGIN, frame.getFrameId());
+        long startNanos = System.nanoTime();
+        try {
+            return detector.detect(frame);
+        } catch (RuntimeException e) {
+            if (errors != null) {
+                errors.onError("Exception thrown from detector.", e);
+            }
+            return null;
+        } finally {
+            long detectNanos = System.nanoTime() - startNanos;
+            frame.getPool().onFrameDetected(detectNanos);
+            metrics.onFrameProcessed(startNanos - frame.getReceivedNanos(), detectNanos);
+            tracer.record(FrameTracer.DETECT_END, frame.getFrameId());
+        }
+    }
+
+    /**
+     * Delivers results returned by the detect method of the same detector.  Like detection, a
+     * failing delivery must not stop the frame loop.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void deliver(FrameDetector<T> detector, FrameBuffer frame, Object results,
+                                    ScannerMetrics metrics, FrameTracer tracer,
+                                    ErrorListener errors) {
+        tracer.record(FrameTracer.DELIVER_BEGIN, frame.getFrameId());
+        long startNanos = System.nanoTime();
+        try {
+            detector.deliver((T) results);
+        } catch (RuntimeException e) {
+            if (errors != null) {
+                errors.onError("Exception thrown from receiver.", e);
+            }
+        } finally {
+            long endNanos = System.nanoTime();
+            metrics.onResultsDelivered(endNanos - startNanos, endNanos - frame.getReceivedNanos());
+            tracer.record(FrameTracer.DELIVER_END, frame.getFrameId());
+        }
+    }
+
+    /**
+     * Hands the buffer of a frame back to the source.
+     */
+    private static void recycle(FrameBuffer frame, FrameTracer tracer) {
+        tracer.record(FrameTracer.BUFFER_RETURNED, frame.getFrameId());
+        frame.recycle();
+    }
+
+    private static long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Delivers the results of the workers in dispatch order, recycling each frame once its results
+     * have been delivered.  As frames are dispatched round-robin and the dispatcher waits for a
+     * worker to be idle before handing it the next frame, at most one result per worker can be
+     * waiting for delivery, so a ring with one entry per worker is enough.
+     */
+    private static class ResultSequencer {
+        private final FrameDetector<?>[] mDetectors;
+        private final FrameBuffer[] mFrames;
+        private final Object[] mResults;
+        private final ScannerMetrics mMetrics;
+        private final FrameTracer mTracer;
+        private final ErrorListener mErrors;
+        private long mNextSequence = 0;
+
+        ResultSequencer(int size, ScannerMetrics metrics, FrameTracer tracer,
+                        ErrorListener errors) {
+            mDetectors = new FrameDetector<?>[size];
+            mFrames = new FrameBuffer[size];
+            mResults = new Object[size];
+            mMetrics = metrics;
+            mTracer = tracer;
+            mErrors = errors;
+        }
+
+        /**
+         * Records the results of a frame and delivers all results which are next in line.
+         */
+        synchronized void complete(long sequence, FrameDetector<?> detector, FrameBuffer frame,
+                                   Object results) {
+            int slot = (int) (sequence % mFrames.length);
+            if (mFrames[slot] != null) {
+                throw new IllegalStateException("Frame " + sequence + " completed out of turn.");
+            }
+            mDetectors[slot] = detector;
+            mFrames[slot] = frame;
+            mResults[slot] = results;
+
+            slot = (int) (mNextSequence % mFrames.length);
+            while (mFrames[slot] != null) {
+                if (mResults[slot] != null) {
+                    deliver(mDetectors[slot], mFrames[slot], mResults[slot], mMetrics, mTracer,
+                            mErrors);
+                }
+                recycle(mFrames[slot], mTracer);
+                mDetectors[slot] = null;
+                mFrames[slot] = null;
+                mResults[slot] = null;
+                mNextSequence++;
+                slot = (int) (mNextSequence % mFrames.length);
+            }
+        }
+    }
+
+    /**
+     * Runs detection for the frames dispatched to it on a thread of its own.
+     */
+    private static class Worker implements Runnable {
+        private final FrameDetector<?> mDetector;
+        private final ResultSequencer mSequencer;
+        private final ScannerMetrics mMetrics;
+        private final FrameTracer mTracer;
+        private final ErrorListener mErrors;
+        private final Thread mThread;
+
+        // Guarded by this worker.
+        private FrameBuffer mFrame;
+        private long mSequence;
+        private boolean mShutdown;
+
+        Worker(FrameDetector<?> detector, ResultSequencer sequencer, ScannerMetrics metrics,
+               FrameTracer tracer, ErrorListener errors, int index) {
+            mDetector = detector;
+            mSequencer = sequencer;
+            mMetrics = metrics;
+            mTracer = tracer;
+            mErrors = errors;
+            mThread = new Thread(this, "FrameProcessingWorker-" + index);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        /**
+         * Waits until the worker is done with its previous frame.
+         *
+         * @return false if the waiting thread was interrupted
+         */
+        synchronized boolean awaitIdle() {
+            while (mFrame != null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Starts detection on the given frame.
+         */
+        synchronized void dispatch(FrameBuffer frame, long sequence) {
+            mFrame = frame;
+            mSequence = sequence;
+            notifyAll();
+        }
+
+        synchronized void shutdown() {
+            mShutdown = true;
+            notifyAll();
+        }
+
+        void join() {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                mThread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                FrameBuffer frame;
+                long sequence;
+                synchronized (this) {
+                    while (mFrame == null && !mShutdown) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mFrame == null) {
+                        return;
+                    }
+                    frame = mFrame;
+                    sequence = mSequence;
+                }
+
+                mSequencer.complete(sequence, mDetector, frame,
+                        detect(mDetector, frame, mMetrics, mTracer, mErrors));
+                synchronized (this) {
+                    mFrame = null;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
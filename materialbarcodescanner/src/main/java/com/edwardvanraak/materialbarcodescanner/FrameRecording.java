@@ -0,0 +1,155 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A recorded sequence of NV21 preview frames, read from a memory-mapped file so that sequences
+ * larger than the heap can be replayed.  The file starts with a header of four big-endian ints:
+ * the magic number {@link #MAGIC}, the format version, and the width and height of the frames.
+ * Each frame follows as the {@link System#nanoTime()} it was captured at, a big-endian long,
+ * followed by the NV21 image data.  Frames are only ever appended, so the number of frames
+ * follows from the size of the file.
+ */
+class FrameRecording {
+
+    /**
+     * "NV21" in ASCII.
+     */
+    static final int MAGIC = 0x4E563231;
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int TIMESTAMP_SIZE = 8;
+
+    private final String name;
+    private final MappedByteBuffer data;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final int frameCount;
+
+    private FrameRecording(String name, MappedByteBuffer data, int width, int height) {
+        this.name = name;
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        frameSize = getFrameSize(width, height);
+        frameCount = (data.capacity() - HEADER_SIZE) / (TIMESTAMP_SIZE + frameSize);
+    }
+
+    /**
+     * Maps the recording in the given file.
+     */
+    static FrameRecording open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Recording too large to map: " + file);
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+                throw new IOException("Not a frame recording: " + file);
+            }
+            if (data.getInt(4) != VERSION) {
+                throw new IOException("Unsupported recording version " + data.getInt(4) + ": "
+                        + file);
+            }
+            int width = data.getInt(8);
+            int height = data.getInt(12);
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Invalid frame size " + width + "x" + height + ": " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            return new FrameRecording(file.getName(), data, width, height);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the size in bytes of one NV21 frame of the given dimensions.
+     */
+    static int getFrameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} the given frame was captured at.
+     */
+    long getTimestampNanos(int index) {
+        return data.getLong(offsetOf(index));
+    }
+
+    /**
+     * Copies the NV21 image data of the given frame into a buffer of at least the frame size.
+     */
+    void copyFrame(int index, byte[] buffer) {
+        // A duplicate has a position of its own, so that frames can be copied by several threads.
+        ByteBuffer frame = data.duplicate();
+        frame.position(offsetOf(index) + TIMESTAMP_SIZE);
+        frame.get(buffer, 0, frameSize);
+    }
+
+    private int offsetOf(int index) {
+        if (index < 0 || index >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+        }
+        return HEADER_SIZE + index * (TIMESTAMP_SIZE + frameSize);
+    }
+
+    /**
+     * Writes a recording, one frame at a time.
+     */
+    static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final int frameSize;
+
+        Writer(File file, int width, int height) throws IOException {
+            frameSize = getFrameSize(width, height);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+        }
+
+        /**
+         * Appends a frame captured at the given {@link System#nanoTime()}.
+         */
+        void write(long timestampNanos, byte[] frame) throws IOException {
+            out.writeLong(timestampNanos);
+            out.write(frame, 0, frameSize);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
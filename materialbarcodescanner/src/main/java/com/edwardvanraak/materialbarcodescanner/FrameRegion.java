@@ -0,0 +1,105 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+/**
+ * Immutable rectangle within a camera frame, in fractions of the frame's width and height so that
+ * it applies to any frame size.  The frame is in the orientation of the camera sensor, which
+ * usually differs from the orientation of the image displayed to the user; use
+ * {@link #fromDisplay} to map a region of the displayed image.
+ */
+class FrameRegion {
+
+    private final float left;
+    private final float top;
+    private final float right;
+    private final float bottom;
+
+    /**
+     * Creates a region from fractions of the frame, which are clamped to the frame.
+     */
+    FrameRegion(float left, float top, float right, float bottom) {
+        this.left = clamp(Math.min(left, right));
+        this.top = clamp(Math.min(top, bottom));
+        this.right = clamp(Math.max(left, right));
+        this.bottom = clamp(Math.max(top, bottom));
+    }
+
+    /**
+     * Maps a region of the displayed image, in fractions of its width and height, to the frame.
+     *
+     * @param rotation the rotation of the frames, see {@code Frame.Metadata#getRotation()}: the
+     *                 number of quarter turns clockwise which turn the frame into the displayed
+     *                 image
+     * @param mirrored whether the displayed image is mirrored, as for a front facing camera
+     */
+    static FrameRegion fromDisplay(float left, float top, float right, float bottom,
+                                   int rotation, boolean mirrored) {
+        if (mirrored) {
+            float mirroredLeft = 1 - right;
+            right = 1 - left;
+            left = mirroredLeft;
+        }
+        switch (rotation & 3) {
+            case 1:
+                return new FrameRegion(top, 1 - right, bottom, 1 - left);
+            case 2:
+                return new FrameRegion(1 - right, 1 - bottom, 1 - left, 1 - top);
+            case 3:
+                return new FrameRegion(1 - bottom, left, 1 - top, right);
+            default:
+                return new FrameRegion(left, top, right, bottom);
+        }
+    }
+
+    float getLeft() {
+        return left;
+    }
+
+    float getTop() {
+        return top;
+    }
+
+    float getRight() {
+        return right;
+    }
+
+    float getBottom() {
+        return bottom;
+    }
+
+    /**
+     * Returns whether this region covers the whole frame.
+     */
+    boolean isFullFrame() {
+        return left == 0 && top == 0 && right == 1 && bottom == 1;
+    }
+
+    private static float clamp(float fraction) {
+        return Math.max(0, Math.min(1, fraction));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FrameRegion)) {
+            return false;
+        }
+        FrameRegion other = (FrameRegion) o;
+        return left == other.left && top == other.top && right == other.right
+                && bottom == other.bottom;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(left);
+        result = 31 * result + Float.floatToIntBits(top);
+        result = 31 * result + Float.floatToIntBits(right);
+        return 31 * result + Float.floatToIntBits(bottom);
+    }
+
+    @Override
+    public String toString() {
+        return "FrameRegion[" + left + ", " + top + ", " + right + ", " + bottom + "]";
+    }
+}
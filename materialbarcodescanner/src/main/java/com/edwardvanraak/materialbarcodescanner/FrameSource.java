@@ -0,0 +1,38 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+/**
+ * Supplies NV21 preview frames to a {@link FrameProcessingRunnable}.  A frame source only writes
+ * into buffers that were previously handed to it with {@link #addBuffer(byte[])}, and the frame
+ * processor hands every buffer back the same way once it is done with a frame.  This mirrors the
+ * {@code Camera.setPreviewCallbackWithBuffer} contract, which lets the frame loop be driven by the
+ * camera on a device or by a synthetic source on a plain JVM.
+ * Implementations must not depend on the Android framework beyond what they wrap, so that the
+ * frame loop can be exercised without a device.
+ */
+interface FrameSource {
+
+    /**
+     * Called for every frame written by the source.
+     */
+    interface Callback {
+        /**
+         * Called when a new frame has been written into {@code data}.  The buffer belongs to the
+         * callback until it is handed back with {@link FrameSource#addBuffer(byte[])}.
+         *
+         * @param data one of the buffers previously added to the source
+         */
+        void onFrame(byte[] data);
+    }
+
+    /**
+     * Sets the callback which receives the frames of this source, or {@code null} to stop
+     * delivering frames.
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * Adds a buffer which the source may write the next frame into.  Frames for which no buffer is
+     * available are dropped by the source.
+     */
+    void addBuffer(byte[] buffer);
+}
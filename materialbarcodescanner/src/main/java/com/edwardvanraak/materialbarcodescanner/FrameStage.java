@@ -0,0 +1,24 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+/**
+ * A step run on every frame before detection, such as cropping the frame to a region of interest.
+ * Stages are attached to a detector with a {@link StagedFrameDetector}, so like the detector
+ * itself, a stage instance is normally only ever used by one processing thread and may keep the
+ * buffers of the frames it derives between frames, or lease them from a {@link DerivedFramePool}
+ * against the frame they are derived from.
+ * A stage which documents that it is thread-safe, such as {@link OcrStage}, may instead be shared
+ * by the stage chains of several processing threads.  Such a stage guards its own state, and must
+ * not return a frame it derived, as that frame could be overwritten by another thread meanwhile.
+ */
+interface FrameStage {
+
+    /**
+     * Processes a frame before detection.
+     *
+     * @param frame the frame to process
+     * @return the frame to run detection on: either the given frame, a frame derived from it which
+     * stays valid until the results of the frame have been delivered, or {@code null} to skip
+     * detection on this frame
+     */
+    FrameBuffer process(FrameBuffer frame);
+}
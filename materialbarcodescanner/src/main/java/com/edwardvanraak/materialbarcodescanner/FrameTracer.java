@@ -0,0 +1,162 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the events of every frame passing through the frame pipeline in a fixed-size ring, for
+ * tracking down latency problems which aggregated {@link ScannerMetrics} hide, such as a single
+ * slow frame or a thread being descheduled.  Each event is kept with a nanosecond timestamp and
+ * the id of the thread recording it, and the ring can be written out as Chrome trace event JSON,
+ * to be opened in chrome://tracing or Perfetto.
+ * Tracing is off until {@link #start(int)} is called.  The ring is allocated when tracing starts,
+ * and recording an event only claims a slot and writes primitive values into it, so tracing
+ * neither allocates nor locks while it is active.  Once the ring is full, the oldest events are
+ * overwritten.
+ */
+class FrameTracer {
+
+    /**
+     * A frame was received from the source.
+     */
+    static final int FRAME_RECEIVED = 0;
+
+    /**
+     * A frame was handed to the processing thread.
+     */
+    static final int FRAME_HANDED_OFF = 1;
+
+    /**
+     * A pending frame was replaced by a newer one before being picked up.
+     */
+    static final int FRAME_DROPPED = 2;
+
+    static final int DETECT_BEGIN = 3;
+    static final int DETECT_END = 4;
+
+    /**
+     * Delivery of the results to the processor, which calls the trackers.
+     */
+    static final int DELIVER_BEGIN = 5;
+    static final int DELIVER_END = 6;
+
+    /**
+     * The buffer of a frame was returned to the source.
+     */
+    static final int BUFFER_RETURNED = 7;
+
+    private static final String[] EVENT_NAMES = {
+            "received", "handed off", "dropped", "detect", "detect", "deliver", "deliver",
+            "buffer returned"
+    };
+
+    private static final char[] EVENT_PHASES = {'i', 'i', 'i', 'B', 'E', 'B', 'E', 'i'};
+
+    /**
+     * The events recorded, in one array per field so that a slot holds no object.
+     */
+    private static class Ring {
+        final long[] timestamps;
+        final long[] threadIds;
+        final int[] frameIds;
+        final byte[] events;
+        final AtomicLong next = new AtomicLong();
+        final long startNanos = System.nanoTime();
+
+        Ring(int capacity) {
+            timestamps = new long[capacity];
+            threadIds = new long[capacity];
+            frameIds = new int[capacity];
+            events = new byte[capacity];
+        }
+    }
+
+    private volatile Ring mRing;
+    private volatile boolean mActive;
+
+    /**
+     * Starts recording into a new ring of the given number of events, discarding the events
+     * recorded so far.
+     */
+    void start(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid trace capacity: " + capacity);
+        }
+        mRing = new Ring(capacity);
+        mActive = true;
+    }
+
+    /**
+     * Stops recording.  The events recorded are kept until tracing is started again.
+     */
+    void stop() {
+        mActive = false;
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Records an event of the given frame on the current thread, if tracing is active.
+     */
+    void record(int event, int frameId) {
+        Ring ring = mRing;
+        if (!mActive || ring == null) {
+            return;
+        }
+        int slot = (int) (ring.next.getAndIncrement() % ring.events.length);
+        ring.timestamps[slot] = System.nanoTime();
+        ring.threadIds[slot] = Thread.currentThread().getId();
+        ring.frameIds[slot] = frameId;
+        ring.events[slot] = (byte) event;
+    }
+
+    /**
+     * Returns the number of events held, at most the capacity of the ring.
+     */
+    int size() {
+        Ring ring = mRing;
+        return ring != null ? (int) Math.min(ring.next.get(), ring.events.length) : 0;
+    }
+
+    /**
+     * Writes the events held as a Chrome trace event JSON object, oldest first.  Events recorded
+     * while writing may be torn, so tracing should be stopped first for a consistent trace.
+     */
+    void write(Writer out) throws IOException {
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        Ring ring = mRing;
+        if (ring != null) {
+            long end = ring.next.get();
+            long start = Math.max(0, end - ring.events.length);
+            for (long i = start; i < end; i++) {
+                int slot = (int) (i % ring.events.length);
+                int event = ring.events[slot];
+                if (i > start) {
+                    out.write(',');
+                }
+                out.write("\n{\"name\":\"");
+                out.write(EVENT_NAMES[event]);
+                out.write("\",\"cat\":\"frame\",\"ph\":\"");
+                out.write(EVENT_PHASES[event]);
+                if (EVENT_PHASES[event] == 'i') {
+                    out.write("\",\"s\":\"t");
+                }
+                out.write("\",\"ts\":");
+                // Trace timestamps are in microseconds, here since tracing started.
+                long nanos = Math.max(0, ring.timestamps[slot] - ring.startNanos);
+                out.write(Long.toString(nanos / 1000));
+                out.write('.');
+                out.write(Long.toString(nanos % 1000 + 1000).substring(1));
+                out.write(",\"pid\":0,\"tid\":");
+                out.write(Long.toString(ring.threadIds[slot]));
+                out.write(",\"args\":{\"frame\":");
+                out.write(Integer.toString(ring.frameIds[slot]));
+                out.write("}}");
+            }
+        }
+        out.write("\n]}\n");
+    }
+}
@@ -0,0 +1,149 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies, recorded from any thread without locking.  Latencies are counted in
+ * exponential buckets with four buckets per power of two microseconds, so percentiles are accurate
+ * to within 25% over the whole range from microseconds to minutes, at a fixed size.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values from 2^MAX_EXPONENT microseconds on, more than an hour, share the last bucket.
+     */
+    private static final int MAX_EXPONENT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(bucketCount());
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Records a latency.
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mBuckets.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mSumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = mMaxMicros.get())) {
+            if (mMaxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the mean latency in microseconds, or 0 if nothing was recorded.
+     */
+    public long getMeanMicros() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSumMicros.get() / count;
+    }
+
+    /**
+     * Returns the highest latency recorded in microseconds.
+     */
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    /**
+     * Returns the latency in microseconds below which the given percentage of the recorded
+     * latencies lie, as the upper bound of the bucket holding that percentile, or 0 if nothing
+     * was recorded.
+     *
+     * @param percentile the percentile, from 0 to 100
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = 0;
+        long[] buckets = new long[mBuckets.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBoundOf(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    /**
+     * Clears all recorded latencies.  Latencies recorded at the same time may be partly lost.
+     */
+    public void reset() {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSumMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + getMeanMicros() + "us p50="
+                + getPercentileMicros(50) + "us p95=" + getPercentileMicros(95) + "us p99="
+                + getPercentileMicros(99) + "us max=" + getMaxMicros() + "us";
+    }
+
+    private static int bucketCount() {
+        return SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS + 1;
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each; above, each power of two is split into
+     * {@link #SUB_BUCKETS} buckets by the bits following the highest bit.
+     */
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return bucketCount() - 1;
+        }
+        int subBucket = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest value counted in the given bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket >= bucketCount() - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -6,9 +6,11 @@ import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
+import android.util.SparseArray;
 import android.view.View;
 
 import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.text.TextBlock;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
@@ -73,6 +75,27 @@ public class MaterialBarcodeScanner {
         }
     }
 
+    /**
+     * Prepare the scan in the background, so that {@link #startScan()} opens onto a running
+     * pipeline
+     * <p>
+     * This opens the camera, negotiates its parameters and allocates the preview buffers on a
+     * background thread.  The barcode detector is already being loaded since the scanner was
+     * built.  Call it as soon as a scan is likely, e.g. when the screen offering the scan is shown.
+     * A camera which is not scanned with within a few seconds is released again.  Nothing happens
+     * without the camera permission.
+     */
+    public void prewarm() {
+        if (materialBarcodeScannerBuilder.getActivity() == null
+                || ActivityCompat.checkSelfPermission(materialBarcodeScannerBuilder.getActivity(),
+                Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        // If this fails, the scan opens the camera itself, and reports if that fails again
+        materialBarcodeScannerBuilder.getEngine(materialBarcodeScannerBuilder.getActivity())
+                .getCameraSource().prewarmAsync();
+    }
+
     private void requestCameraPermission() {
         final String[] permissions = new String[]{Manifest.permission.CAMERA};
         if (!ActivityCompat.shouldShowRequestPermissionRationale(materialBarcodeScannerBuilder.getActivity(),
@@ -101,4 +124,27 @@ public class MaterialBarcodeScanner {
         void onResult(Barcode barcode);
     }
 
+    /**
+     * Interface definition for a callback to be invoked with the text recognized after a new
+     * barcode was scanned, or periodically.
+     */
+    public interface OnTextListener {
+        /**
+         * @param textBlocks the recognized text, located within the region text is recognized in
+         */
+        void onText(SparseArray<TextBlock> textBlocks);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked once the barcode detector was loaded after
+     * building the scanner.
+     */
+    public interface OnDetectorReadyListener {
+        /**
+         * @param operational false if the detector's dependencies are not yet available, in which
+         *                    case nothing is detected until they have been downloaded
+         */
+        void onDetectorReady(boolean operational);
+    }
+
 }
@@ -1,8 +1,7 @@
 package com.edwardvanraak.materialbarcodescanner;
 
-import android.annotation.SuppressLint;
 import android.app.Dialog;
-import android.content.Context;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.Camera;
@@ -19,11 +18,11 @@ import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.MultiProcessor;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 import com.google.android.gms.vision.text.TextBlock;
-import com.google.android.gms.vision.text.TextRecognizer;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
@@ -43,6 +42,7 @@ public class MaterialBarcodeScannerActivity extends AppCompatActivity {
     private static final int RC_HANDLE_GMS = 9001;
 
     private MaterialBarcodeScannerBuilder materialBarcodeScannerBuilder;
+    private ScannerEngine engine;
     private BarcodeDetector barcodeDetector;
 
     private CameraSourcePreview cameraSourcePreview;
@@ -69,6 +69,11 @@ public class MaterialBarcodeScannerActivity extends AppCompatActivity {
     @Subscribe(sticky = true, threadMode = ThreadMode.MAIN)
     public void onMaterialBarcodeScanner(MaterialBarcodeScanner materialBarcodeScanner) {
         materialBarcodeScannerBuilder = materialBarcodeScanner.getMaterialBarcodeScannerBuilder();
+        if (engine == null) {
+            // Keeps the detector and camera source of this configuration for the next scan
+            engine = materialBarcodeScannerBuilder.getEngine(this);
+            engine.acquire();
+        }
         barcodeDetector = materialBarcodeScanner.getMaterialBarcodeScannerBuilder().getBarcodeDetector();
         startBarcodeCameraSource();
         setupLayout();
@@ -97,7 +102,7 @@ public class MaterialBarcodeScannerActivity extends AppCompatActivity {
                 if (barcodes != null) {
                     barcodes.add(barcode.displayValue);
                     setScannersQuantity(barcodes.size());
-                    startOcrCameraDetector();
+                    materialBarcodeScannerBuilder.getCameraSource().requestTextRecognition();
                 }
                 EventBus.getDefault().postSticky(barcode);
                 updateCenterTrackerAfterDetectedState();
@@ -108,48 +113,76 @@ public class MaterialBarcodeScannerActivity extends AppCompatActivity {
         };
         BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(barcodeGraphicOverlay, listener,
                 materialBarcodeScannerBuilder.getTrackerColor());
-        barcodeDetector.setProcessor(new MultiProcessor.Builder<>(barcodeFactory).build());
         CameraSource cameraSource = materialBarcodeScannerBuilder.getCameraSource();
         if (cameraSource != null) {
+            cameraSource.setProcessor(new MultiProcessor.Builder<>(barcodeFactory).build());
+            TextProcessor textProcessor = new TextProcessor();
+            cameraSource.setTextProcessor(textProcessor);
+            cameraSource.setDetectorProcessor(MaterialBarcodeScannerBuilder.TEXT_DETECTOR_NAME, textProcessor);
+            cameraSource.setTextRegionOfInterest(materialBarcodeScannerBuilder.getTextRecognitionRegion());
             try {
                 cameraSourcePreview = (CameraSourcePreview) findViewById(R.id.preview);
                 cameraSourcePreview.start(cameraSource, barcodeGraphicOverlay);
+                if (materialBarcodeScannerBuilder.getScannerMode() == MaterialBarcodeScanner.SCANNER_MODE_CENTER) {
+                    // Only codes within the reticle are detected
+                    cameraSourcePreview.setRegionOfInterest(findViewById(R.id.barcode_square));
+                }
             } catch (IOException e) {
                 Log.e(TAG, getString(R.string.barcode_camera_source_error), e);
-                cameraSource.release();
             }
         }
     }
 
     /**
-     * Starts OCR detector on frame returned from camera.
+     * Receives the text recognized on a snapshot of the frame after a new barcode was scanned, on
+     * the recognition thread, and the text recognized periodically, on the processing thread.
      */
-    @SuppressLint("InlinedApi")
-    private void startOcrCameraDetector() {
-        Context context = getApplicationContext();
-
-        TextRecognizer textRecognizer = new TextRecognizer.Builder(context).build();
-        SparseArray<TextBlock> sparseArray = textRecognizer.detect(materialBarcodeScannerBuilder
-                .getCameraSource().getOutputFrame());
-
-        //TODO: Make actions based on text values found
-        if (sparseArray.size() > 0) {
-            for (int i = 0; i < sparseArray.size(); i++) {
-                Log.d(TAG, sparseArray.valueAt(i).getValue());
+    private class TextProcessor implements Detector.Processor<TextBlock> {
+        private boolean notOperationalReported;
+
+        @Override
+        public void receiveDetections(Detector.Detections<TextBlock> detections) {
+            final SparseArray<TextBlock> textBlocks = detections.getDetectedItems();
+            //TODO: Make actions based on text values found
+            for (int i = 0; i < textBlocks.size(); i++) {
+                Log.d(TAG, textBlocks.valueAt(i).getValue());
+            }
+            if (!detections.detectorIsOperational() && !notOperationalReported) {
+                notOperationalReported = true;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        reportTextRecognizerNotOperational();
+                    }
+                });
+            }
+            final MaterialBarcodeScanner.OnTextListener textListener =
+                    materialBarcodeScannerBuilder.getTextListener();
+            if (textListener != null && textBlocks.size() > 0) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        textListener.onText(textBlocks);
+                    }
+                });
             }
         }
 
-        if (!textRecognizer.isOperational()) {
-            Log.w(TAG, getString(R.string.text_recognizer_dependencies_error));
+        @Override
+        public void release() {
+        }
+    }
 
-            // Check for low storage.  If there is low storage, the native library will not be
-            // downloaded, so detection will not become operational.
-            IntentFilter lowStorageFilter = new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW);
-            boolean hasLowStorage = registerReceiver(null, lowStorageFilter) != null;
+    private void reportTextRecognizerNotOperational() {
+        Log.w(TAG, getString(R.string.text_recognizer_dependencies_error));
 
-            if (hasLowStorage) {
-                Toast.makeText(this, R.string.low_storage_error, Toast.LENGTH_LONG).show();
-            }
+        // Check for low storage.  If there is low storage, the native library will not be
+        // downloaded, so detection will not become operational.
+        IntentFilter lowStorageFilter = new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW);
+        boolean hasLowStorage = registerReceiver(null, lowStorageFilter) != null;
+
+        if (hasLowStorage) {
+            Toast.makeText(this, R.string.low_storage_error, Toast.LENGTH_LONG).show();
         }
     }
 
@@ -237,22 +270,14 @@ public class MaterialBarcodeScannerActivity extends AppCompatActivity {
         }
     }
 
-    private void enableTorch() throws SecurityException {
-        materialBarcodeScannerBuilder.getCameraSource().setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
-        try {
-            materialBarcodeScannerBuilder.getCameraSource().start();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private void enableTorch() {
+        materialBarcodeScannerBuilder.getCameraSource()
+                .setFlashModeAsync(Camera.Parameters.FLASH_MODE_TORCH, null);
     }
 
-    private void disableTorch() throws SecurityException {
-        materialBarcodeScannerBuilder.getCameraSource().setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-        try {
-            materialBarcodeScannerBuilder.getCameraSource().start();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private void disableTorch() {
+        materialBarcodeScannerBuilder.getCameraSource()
+                .setFlashModeAsync(Camera.Parameters.FLASH_MODE_OFF, null);
     }
 
     private void clean() {
@@ -261,15 +286,30 @@ public class MaterialBarcodeScannerActivity extends AppCompatActivity {
             barcodes.clear();
         }
         if (cameraSourcePreview != null) {
-            cameraSourcePreview.release();
+            cameraSourcePreview.stop();
             cameraSourcePreview = null;
         }
+        releaseEngine();
         if (soundPoolPlayer != null) {
             soundPoolPlayer.release();
             soundPoolPlayer = null;
         }
     }
 
+    private void releaseEngine() {
+        if (engine != null) {
+            // The camera source outlives this activity; it must not hold on to its views
+            CameraSource cameraSource = engine.getCameraSource();
+            cameraSource.setProcessor(null);
+            cameraSource.setRegionOfInterest(null);
+            cameraSource.setTextProcessor(null);
+            cameraSource.setDetectorProcessor(MaterialBarcodeScannerBuilder.TEXT_DETECTOR_NAME, null);
+            cameraSource.setTextRegionOfInterest(null);
+            engine.release();
+            engine = null;
+        }
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -283,25 +323,62 @@ public class MaterialBarcodeScannerActivity extends AppCompatActivity {
     }
 
     /**
-     * Stops the camera.
+     * Stops the camera.  When the scan is done, the flash is set back to its default first, as the
+     * camera source is kept for the next scan.
      */
     @Override
     protected void onPause() {
         super.onPause();
         if (cameraSourcePreview != null) {
+            if (isFinishing() && materialBarcodeScannerBuilder != null) {
+                materialBarcodeScannerBuilder.getCameraSource().setFlashModeAsync(
+                        materialBarcodeScannerBuilder.isFlashEnabledByDefault()
+                                ? Camera.Parameters.FLASH_MODE_TORCH
+                                : Camera.Parameters.FLASH_MODE_OFF, null);
+            }
             cameraSourcePreview.stop();
         }
     }
 
     /**
-     * Releases the resources associated with the camera source, the associated detectors, and the
-     * rest of the processing pipeline.
+     * Frees the preview buffers kept while the camera is stopped when memory is running low.
+     * Hiding the UI alone keeps them, so that coming back doesn't have to allocate them again.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            releasePreviewBuffers();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        releasePreviewBuffers();
+    }
+
+    private void releasePreviewBuffers() {
+        CameraSource cameraSource = materialBarcodeScannerBuilder != null
+                ? materialBarcodeScannerBuilder.getCameraSource() : null;
+        if (cameraSource != null) {
+            cameraSource.releasePreviewBuffers();
+        }
+    }
+
+    /**
+     * Hands the camera source, the associated detectors and the rest of the processing pipeline
+     * back to the scanner engine, which keeps them for the next scan for a while.
      */
     @Override
     protected void onDestroy() {
         super.onDestroy();
         if (isFinishing()) {
             clean();
+        } else {
+            // Recreated, e.g. on rotation; the new instance acquires the engine again
+            releaseEngine();
         }
     }
 
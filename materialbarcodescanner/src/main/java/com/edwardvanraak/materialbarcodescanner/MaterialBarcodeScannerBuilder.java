@@ -1,23 +1,58 @@
 package com.edwardvanraak.materialbarcodescanner;
 
 import android.app.Activity;
+import android.content.Context;
 import android.graphics.Color;
+import android.graphics.Point;
 import android.hardware.Camera;
 import android.support.annotation.NonNull;
+import android.util.Log;
 import android.view.ViewGroup;
 
+import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
+import com.google.android.gms.vision.text.TextRecognizer;
 
 public class MaterialBarcodeScannerBuilder {
 
+    private static final String TAG = "MaterialBarcodeScannerBuilder";
+
+    /**
+     * By default, the minimum time between two text recognitions, in milliseconds of frame time
+     */
+    private static final long TEXT_RECOGNITION_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The name periodic text recognition is recorded under in the metrics
+     */
+    static final String TEXT_DETECTOR_NAME = "text";
+
+    /**
+     * With downsampled detection, every how many frames detection runs at full resolution right away
+     */
+    private static final int FULL_RESOLUTION_INTERVAL = 10;
+
+    /**
+     * With the blurry frame filter, the fraction of the recent sharpest frame a frame must reach
+     */
+    private static final float SHARPNESS_THRESHOLD = 0.35f;
+
+    /**
+     * With static scene skipping, the mean change in luma from which the scene counts as changed
+     */
+    private static final float SCENE_CHANGE_THRESHOLD = 4f;
+
     private Activity activity;
     ViewGroup rootView;
 
+    private ScannerEngine engine;
     private CameraSource cameraSource;
     private BarcodeDetector barcodeDetector;
 
     private MaterialBarcodeScanner.OnResultListener onResultListener;
+    private MaterialBarcodeScanner.OnDetectorReadyListener onDetectorReadyListener;
+    private MaterialBarcodeScanner.OnTextListener onTextListener;
 
     private int barcodeFormats = Barcode.ALL_FORMATS;
     private int scannerMode = MaterialBarcodeScanner.SCANNER_MODE_FREE;
@@ -26,6 +61,21 @@ public class MaterialBarcodeScannerBuilder {
     private int trackerDetectedResourceID = R.drawable.material_barcode_square_512_green;
 
     private int cameraFacing = CameraSource.CAMERA_FACING_BACK;
+    private int detectionWorkers = 1;
+    private int minPreviewBuffers = 0;
+    private int maxPreviewBuffers = 0;
+    private boolean downsampledDetection = false;
+    private boolean blurryFrameFilterEnabled = false;
+    private boolean staticSceneSkippingEnabled = false;
+    private boolean camera2Enabled = false;
+    private boolean offHeapFrameBuffers = false;
+    private int analysisWidth = 0;
+    private int analysisHeight = 0;
+    private boolean textRecognitionEnabled = true;
+    private long textRecognitionIntervalMillis = TEXT_RECOGNITION_INTERVAL_MILLIS;
+    private FrameRegion textRecognitionRegion;
+    private int periodicTextRecognitionInterval = 0;
+    private long frameBudgetMillis = 0;
     private int trackerColor = Color.parseColor("#F44336"); //Material Red 500
 
     private boolean autoFocusEnabled = false;
@@ -50,6 +100,27 @@ public class MaterialBarcodeScannerBuilder {
         return this;
     }
 
+    /**
+     * Called with the text recognized around a newly scanned barcode, on the main thread
+     *
+     * @param onTextListener
+     */
+    public MaterialBarcodeScannerBuilder withTextListener(@NonNull MaterialBarcodeScanner.OnTextListener onTextListener) {
+        this.onTextListener = onTextListener;
+        return this;
+    }
+
+    /**
+     * Called once the barcode detector was loaded, which starts in the background as soon as the
+     * scanner is built
+     *
+     * @param onDetectorReadyListener
+     */
+    public MaterialBarcodeScannerBuilder withDetectorReadyListener(@NonNull MaterialBarcodeScanner.OnDetectorReadyListener onDetectorReadyListener) {
+        this.onDetectorReadyListener = onDetectorReadyListener;
+        return this;
+    }
+
     /**
      * Construct a MaterialBarcodeScannerBuilder by passing the activity to use for the generation
      *
@@ -97,6 +168,162 @@ public class MaterialBarcodeScannerBuilder {
         return this;
     }
 
+    /**
+     * Sets the number of workers running barcode detection in parallel, each with its own barcode
+     * detector. Detected barcodes are still reported in the order of the camera frames. By default
+     * a single worker is used.
+     *
+     * @param workers the number of detection workers, at least 1
+     */
+    public MaterialBarcodeScannerBuilder withDetectionWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Invalid number of detection workers: " + workers);
+        }
+        detectionWorkers = workers;
+        return this;
+    }
+
+    /**
+     * Sets a fixed number of preview buffers handed to the camera. By default this is derived from
+     * the number of detection workers.
+     */
+    public MaterialBarcodeScannerBuilder withPreviewBuffers(int buffers) {
+        return withAdaptivePreviewBuffers(buffers, buffers);
+    }
+
+    /**
+     * Lets the number of preview buffers adapt to the detection latency between the given bounds.
+     * Slow detectors get more buffers so that the camera doesn't stall, fast ones get fewer so
+     * that no memory is wasted on buffers that are never used.
+     */
+    public MaterialBarcodeScannerBuilder withAdaptivePreviewBuffers(int min, int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid number of preview buffers: " + min + " to " + max);
+        }
+        minPreviewBuffers = min;
+        maxPreviewBuffers = max;
+        return this;
+    }
+
+    /**
+     * Enables detecting on frames at half the resolution first, falling back to the full resolution
+     * when nothing was found. Most 1D barcodes are found at half the resolution, at a fraction of
+     * the cost; every tenth frame is still decoded at full resolution right away.
+     */
+    public MaterialBarcodeScannerBuilder withDownsampledDetection(boolean enabled) {
+        downsampledDetection = enabled;
+        return this;
+    }
+
+    /**
+     * Enables skipping detection on blurry frames, e.g. while the device is being moved around.
+     * This frees up time for the frames which can actually be decoded and saves battery.
+     */
+    public MaterialBarcodeScannerBuilder withBlurryFrameFilter(boolean enabled) {
+        blurryFrameFilterEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Enables skipping detection while the scene doesn't change, e.g. for a fixed mount scanner
+     * pointed at an empty counter. Detection resumes at the full rate as soon as something moves.
+     */
+    public MaterialBarcodeScannerBuilder withStaticSceneSkipping(boolean enabled) {
+        staticSceneSkippingEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Keeps the cropped and downsampled copies of camera frames outside of the Java heap, which
+     * eases garbage collection on low-memory devices. In debuggable apps, copies which are never
+     * handed back are logged when the scanner is released.
+     */
+    public MaterialBarcodeScannerBuilder withOffHeapFrameBuffers(boolean enabled) {
+        offHeapFrameBuffers = enabled;
+        return this;
+    }
+
+    /**
+     * Enables using the camera2 API on Lollipop and later, which delivers frames for detection
+     * independently of the preview. Taking pictures is not supported with camera2.
+     */
+    public MaterialBarcodeScannerBuilder withCamera2(boolean enabled) {
+        camera2Enabled = enabled;
+        return this;
+    }
+
+    /**
+     * Runs detection on frames of about the given size, e.g. 640x480, while the preview keeps its
+     * own resolution. Lower resolutions decode faster; only supported with camera2.
+     */
+    public MaterialBarcodeScannerBuilder withAnalysisResolution(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid analysis resolution: " + width + "x" + height);
+        }
+        analysisWidth = width;
+        analysisHeight = height;
+        return this;
+    }
+
+    /**
+     * Enables or disables recognizing text whenever a new barcode is scanned. Recognition runs on
+     * a snapshot of the frame on a thread of its own, so scanning goes on meanwhile.
+     */
+    public MaterialBarcodeScannerBuilder withTextRecognition(boolean enabled) {
+        textRecognitionEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Limits text recognition to once per the given time, 1 second by default, however many new
+     * barcodes are scanned meanwhile.
+     */
+    public MaterialBarcodeScannerBuilder withTextRecognitionInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid text recognition interval: " + millis);
+        }
+        textRecognitionIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * Recognizes text on every given number of frames as well, e.g. printed lot numbers next to
+     * the barcodes, on the same frames the barcodes are detected on. Text is recognized on the
+     * whole frame, after barcode detection. 0 disables periodic recognition, which is the default.
+     */
+    public MaterialBarcodeScannerBuilder withPeriodicTextRecognition(int frameInterval) {
+        if (frameInterval < 0) {
+            throw new IllegalArgumentException("Invalid text recognition frame interval: " + frameInterval);
+        }
+        periodicTextRecognitionInterval = frameInterval;
+        return this;
+    }
+
+    /**
+     * Limits the time spent per frame with periodic text recognition: once barcode detection
+     * took longer, text recognition waits for the next frame. 0, the default, sets no limit.
+     */
+    public MaterialBarcodeScannerBuilder withFrameBudget(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid frame budget: " + millis);
+        }
+        frameBudgetMillis = millis;
+        return this;
+    }
+
+    /**
+     * Limits text recognition to a region of the preview, in fractions of its width and height,
+     * e.g. 0, 0.5, 1, 1 for its lower half. By default, text is recognized on the whole preview.
+     */
+    public MaterialBarcodeScannerBuilder withTextRecognitionRegion(float left, float top, float right, float bottom) {
+        if (!(left >= 0 && left < right && right <= 1 && top >= 0 && top < bottom && bottom <= 1)) {
+            throw new IllegalArgumentException("Invalid text recognition region: "
+                    + left + ", " + top + ", " + right + ", " + bottom);
+        }
+        textRecognitionRegion = new FrameRegion(left, top, right, bottom);
+        return this;
+    }
+
     /**
      * Enables or disables auto focusing on the camera
      */
@@ -176,7 +403,8 @@ public class MaterialBarcodeScannerBuilder {
 
     /**
      * Enables the default center tracker. This tracker is always visible and turns green when a barcode is found.\n
-     * Please note that you can still scan a barcode outside the center tracker! This is purely a visual change.
+     * Only barcodes within the center tracker are scanned: detection runs on the part of the camera frame
+     * it covers, which also makes detection faster.
      *
      * @return
      */
@@ -187,7 +415,8 @@ public class MaterialBarcodeScannerBuilder {
 
     /**
      * Enables the center tracker with a custom drawable resource. This tracker is always visible.\n
-     * Please note that you can still scan a barcode outside the center tracker! This is purely a visual change.
+     * Only barcodes within the center tracker are scanned: detection runs on the part of the camera frame
+     * it covers, which also makes detection faster.
      *
      * @param trackerResourceId         a drawable resource id
      * @param detectedTrackerResourceId a drawable resource id for the detected tracker state
@@ -221,21 +450,129 @@ public class MaterialBarcodeScannerBuilder {
     }
 
     /**
-     * Build a barcode scanner using the Mobile Vision Barcode API
+     * Build a barcode scanner using the Mobile Vision Barcode API, or reuse the one a previous
+     * scanner with the same configuration left behind
      */
     private void buildMobileVisionBarcodeDetector() {
+        getEngine(activity);
+        // Load a new detector while the camera is being opened, not on the first preview frame
+        final MaterialBarcodeScanner.OnDetectorReadyListener readyListener = onDetectorReadyListener;
+        engine.warmUp(new CameraSource.CommandCallback<Boolean>() {
+            @Override
+            public void onCompleted(Boolean operational) {
+                if (!operational) {
+                    Log.w(TAG, "Barcode detector dependencies are not yet available");
+                }
+                if (readyListener != null) {
+                    readyListener.onDetectorReady(operational);
+                }
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                Log.w(TAG, "Barcode detector warm-up failed", e);
+            }
+        });
+    }
+
+    /**
+     * Get the scanner engine of this builder's configuration, building it again if it was evicted
+     * since the scanner was built
+     *
+     * @param context used to build the engine, of which only the application context is kept
+     * @return
+     */
+    ScannerEngine getEngine(Context context) {
+        if (engine == null || engine.isEvicted()) {
+            engine = ScannerEngine.obtain(context, getEngineKey(), new ScannerEngine.Factory() {
+                @Override
+                public ScannerEngine create(Context applicationContext) {
+                    return createEngine(applicationContext);
+                }
+            });
+            cameraSource = engine.getCameraSource();
+            barcodeDetector = engine.getBarcodeDetector();
+        }
+        return engine;
+    }
+
+    /**
+     * Get the key of the engine cache, made of every setting the detector and camera source are
+     * built with
+     */
+    private String getEngineKey() {
+        return barcodeFormats + "/" + cameraFacing
+                + "/" + analysisWidth + "x" + analysisHeight
+                + "/" + detectionWorkers + "/" + minPreviewBuffers + "-" + maxPreviewBuffers
+                + "/" + downsampledDetection + "/" + blurryFrameFilterEnabled
+                + "/" + staticSceneSkippingEnabled + "/" + camera2Enabled
+                + "/" + offHeapFrameBuffers + "/" + autoFocusEnabled + "/" + flashEnabledByDefault
+                + "/" + (textRecognitionEnabled ? textRecognitionIntervalMillis : -1)
+                + "/" + periodicTextRecognitionInterval + "/" + frameBudgetMillis;
+    }
+
+    private ScannerEngine createEngine(final Context context) {
         String focusMode = Camera.Parameters.FOCUS_MODE_FIXED;
         if (autoFocusEnabled) {
             focusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
         }
-        barcodeDetector = new BarcodeDetector.Builder(activity)
+        BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context)
                 .setBarcodeFormats(barcodeFormats)
                 .build();
-        cameraSource = new CameraSource.Builder(activity, barcodeDetector)
+        final int formats = barcodeFormats;
+        CameraSource.DetectorFactory detectorFactory = new CameraSource.DetectorFactory() {
+            @Override
+            public Detector<?> create() {
+                return new BarcodeDetector.Builder(context)
+                        .setBarcodeFormats(formats)
+                        .build();
+            }
+        };
+        VisionFrameDetector.ItemMapper<Barcode> barcodeMapper = new VisionFrameDetector.ItemMapper<Barcode>() {
+            @Override
+            public void map(Barcode barcode, int left, int top, int scale) {
+                // The bounding box is derived from the corner points, which like the offset are
+                // upright
+                if (barcode.cornerPoints != null) {
+                    for (Point point : barcode.cornerPoints) {
+                        point.set(left + point.x * scale, top + point.y * scale);
+                    }
+                }
+            }
+        };
+        CameraSource.Builder cameraSourceBuilder = new CameraSource.Builder(context, barcodeDetector)
+                .setWorkerCount(detectionWorkers, detectorFactory)
+                .setItemMapper(barcodeMapper)
+                .setDownsampling(downsampledDetection, FULL_RESOLUTION_INTERVAL)
+                .setSharpnessThreshold(blurryFrameFilterEnabled ? SHARPNESS_THRESHOLD : 0)
+                .setSceneChangeThreshold(staticSceneSkippingEnabled ? SCENE_CHANGE_THRESHOLD : 0)
                 .setFacing(cameraFacing)
                 .setFlashMode(flashEnabledByDefault ? Camera.Parameters.FLASH_MODE_TORCH : null)
                 .setFocusMode(focusMode)
-                .build();
+                .setCamera2Enabled(camera2Enabled)
+                .setOffHeapDerivedFrames(offHeapFrameBuffers);
+        if (textRecognitionEnabled) {
+            cameraSourceBuilder.setTextRecognizer(new TextRecognizer.Builder(context).build(),
+                    textRecognitionIntervalMillis);
+        }
+        if (periodicTextRecognitionInterval > 0) {
+            // Lot numbers and the like matter less than the barcodes themselves
+            cameraSourceBuilder
+                    .addDetector(TEXT_DETECTOR_NAME, new CameraSource.DetectorFactory() {
+                        @Override
+                        public Detector<?> create() {
+                            return new TextRecognizer.Builder(context).build();
+                        }
+                    }, periodicTextRecognitionInterval, CameraSource.PRIMARY_DETECTOR_PRIORITY - 1)
+                    .setFrameBudget(frameBudgetMillis);
+        }
+        if (analysisWidth > 0) {
+            cameraSourceBuilder.setRequestedAnalysisSize(analysisWidth, analysisHeight);
+        }
+        if (minPreviewBuffers > 0) {
+            cameraSourceBuilder.setPreviewBufferCount(minPreviewBuffers, maxPreviewBuffers);
+        }
+        return new ScannerEngine(barcodeDetector, cameraSourceBuilder.build());
     }
 
     /**
@@ -256,6 +593,15 @@ public class MaterialBarcodeScannerBuilder {
         return cameraSource;
     }
 
+    /**
+     * Get the metrics of the scanner pipeline, such as frame counts and detection latencies
+     *
+     * @return the metrics, or null if the scanner hasn't been built yet
+     */
+    public ScannerMetrics getScannerMetrics() {
+        return cameraSource != null ? cameraSource.getScannerMetrics() : null;
+    }
+
     /**
      * Get the barcode detector associated with this builder
      *
@@ -265,6 +611,24 @@ public class MaterialBarcodeScannerBuilder {
         return barcodeDetector;
     }
 
+    /**
+     * Get the listener receiving the recognized text
+     *
+     * @return the listener, or null
+     */
+    MaterialBarcodeScanner.OnTextListener getTextListener() {
+        return onTextListener;
+    }
+
+    /**
+     * Get the region of the preview text is recognized in
+     *
+     * @return the region, or null for the whole preview
+     */
+    FrameRegion getTextRecognitionRegion() {
+        return textRecognitionRegion;
+    }
+
     /**
      * Get the scanner mode value associated with this builder
      *
@@ -0,0 +1,222 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame stage which runs a second, slower detector, such as a text recognizer, on snapshots of
+ * the camera frames on an executor of its own, so that it never holds up barcode detection.  The
+ * stage passes every frame on unchanged.
+ * Recognition runs on request, see {@link #request()}, on the next frame at least the given
+ * interval of frame time after the last recognition, and only while no recognition is running.
+ * The region of interest of the frame, or the whole frame, is copied into a snapshot, so that
+ * recognition doesn't read a camera buffer which is handed back to the camera meanwhile.  The
+ * snapshot is leased on its own from a {@link DerivedFramePool}, as it outlives the camera frame,
+ * and returned once recognition is done.  Without a pool, the stage keeps a snapshot buffer of its
+ * own; only one recognition runs at a time, so one buffer is enough, and it is only reallocated
+ * when the size of the snapshot changes.  The results are delivered by the recognizer on the
+ * executor's thread, in the coordinates of the snapshot.
+ * The stage is thread-safe: one instance may be shared by the stage chains of several processing
+ * threads, see {@link FrameStage}.  The snapshot and the rate limiting are guarded by the busy
+ * flag, which only one thread at a time takes.
+ *
+ * @param <T> the type of the recognition results
+ */
+class OcrStage<T> implements FrameStage {
+
+    /**
+     * Counts of the recognitions which returned results and of those which didn't.
+     */
+    static class Stats {
+        private final AtomicLong mRecognized = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+
+        long getRecognizedCount() {
+            return mRecognized.get();
+        }
+
+        /**
+         * Returns the number of recognitions which returned no results, e.g. because the
+         * recognizer threw.
+         */
+        long getFailedCount() {
+            return mFailed.get();
+        }
+    }
+
+    private final FrameDetector<T> mRecognizer;
+    private final long mIntervalMillis;
+    private final ExecutorService mExecutor;
+    private final DerivedFramePool mPool;
+    private final Stats mStats = new Stats();
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    private volatile FrameRegion mRegion;
+    private volatile boolean mRequested;
+    private volatile boolean mReleased;
+
+    // Guarded by mBusy.  Only used without a pool.
+    private FrameBuffer mSnapshot;
+    private long mLastTimestampMillis;
+    private boolean mRecognizedBefore;
+    private final int[] mBounds = new int[4];
+
+    /**
+     * @param recognizer     the detector run on the snapshots, which delivers its own results
+     * @param intervalMillis the minimum frame time between two recognitions
+     * @param executor       the executor to run recognition on, which is shut down on release
+     */
+    OcrStage(FrameDetector<T> recognizer, long intervalMillis, ExecutorService executor) {
+        this(recognizer, intervalMillis, executor, null);
+    }
+
+    /**
+     * @param recognizer     the detector run on the snapshots, which delivers its own results
+     * @param intervalMillis the minimum frame time between two recognitions
+     * @param executor       the executor to run recognition on, which is shut down on release
+     * @param pool           the pool to lease the snapshots from, or {@code null} to keep a
+     *                       snapshot buffer in the stage
+     */
+    OcrStage(FrameDetector<T> recognizer, long intervalMillis, ExecutorService executor,
+             DerivedFramePool pool) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid recognition interval: " + intervalMillis);
+        }
+        mRecognizer = recognizer;
+        mIntervalMillis = intervalMillis;
+        mExecutor = executor;
+        mPool = pool;
+    }
+
+    /**
+     * Sets the region of the camera frames recognition runs on, or {@code null} for whole
+     * frames.  This may be called from any thread, and applies from the next snapshot on.
+     */
+    void setRegion(FrameRegion region) {
+        mRegion = region;
+    }
+
+    /**
+     * Requests recognition on one of the next frames.  Requests made while one is pending, or
+     * while recognition is running, are merged into one.  This may be called from any thread.
+     */
+    void request() {
+        mRequested = true;
+    }
+
+    Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Returns whether a snapshot is being taken or recognized, during which no other is taken.
+     */
+    boolean isRecognizing() {
+        return mBusy.get();
+    }
+
+    @Override
+    public FrameBuffer process(FrameBuffer frame) {
+        if (!mRequested || mReleased || !mBusy.compareAndSet(false, true)) {
+            return frame;
+        }
+        long timestampMillis = frame.getTimestampMillis();
+        if (mRecognizedBefore && timestampMillis - mLastTimestampMillis < mIntervalMillis) {
+            mBusy.set(false);
+            return frame;
+        }
+        final FrameBuffer snapshot = takeSnapshot(frame);
+        if (snapshot == null) {
+            mBusy.set(false);
+            return frame;
+        }
+        mRequested = false;
+        mRecognizedBefore = true;
+        mLastTimestampMillis = timestampMillis;
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recognize(snapshot);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Released meanwhile.
+            snapshot.recycle();
+            mBusy.set(false);
+        }
+        return frame;
+    }
+
+    /**
+     * Releases the recognizer once the recognition running, if any, is done, and shuts the
+     * executor down.  Requests are ignored from now on.
+     */
+    void release() {
+        mReleased = true;
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mRecognizer.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Released before.
+        }
+        mExecutor.shutdown();
+    }
+
+    private FrameBuffer takeSnapshot(FrameBuffer frame) {
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        FrameRegion region = mRegion;
+        if (region == null) {
+            mBounds[0] = 0;
+            mBounds[1] = 0;
+            mBounds[2] = frameWidth;
+            mBounds[3] = frameHeight;
+        } else if (!CropStage.getBounds(region, frameWidth, frameHeight, mBounds)) {
+            return null;
+        }
+        int width = mBounds[2] - mBounds[0];
+        int height = mBounds[3] - mBounds[1];
+
+        FrameBuffer snapshot;
+        if (mPool != null) {
+            snapshot = mPool.lease(width, height);
+        } else {
+            snapshot = mSnapshot;
+            if (snapshot == null || snapshot.getWidth() != width
+                    || snapshot.getHeight() != height) {
+                snapshot = new FrameBuffer(width, height);
+                mSnapshot = snapshot;
+            }
+        }
+        CropStage.crop(frame.getData(), frameWidth, frameHeight, mBounds[0], mBounds[1],
+                snapshot.getData(), width, height);
+        int scale = frame.getScale();
+        snapshot.setDerivedFrame(frame, frame.getLeft() + mBounds[0] * scale,
+                frame.getTop() + mBounds[1] * scale, scale);
+        return snapshot;
+    }
+
+    private void recognize(FrameBuffer snapshot) {
+        try {
+            T results = mRecognizer.detect(snapshot);
+            if (results == null) {
+                mStats.mFailed.incrementAndGet();
+            } else {
+                mStats.mRecognized.incrementAndGet();
+                if (!mReleased) {
+                    mRecognizer.deliver(results);
+                }
+            }
+        } finally {
+            // Returns a leased snapshot to the pool; the stage's own buffer stays with it.
+            snapshot.recycle();
+            mBusy.set(false);
+        }
+    }
+}
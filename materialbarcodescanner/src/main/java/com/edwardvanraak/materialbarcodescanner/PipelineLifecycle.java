@@ -0,0 +1,217 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lifecycle of a scanner pipeline, made of a source of frames and a thread processing them:
+ * {@link #IDLE}, {@link #STARTING}, {@link #RUNNING}, {@link #STOPPING} and finally
+ * {@link #RELEASED}.
+ * Stopping doesn't wait for the frame in detection, if any.  The source is closed right away and
+ * the processing thread completes in the background while the pipeline is stopping.  Only a start
+ * or a release during that time waits for it, and only for a bounded time, as the detectors must
+ * neither run on two threads at once nor be released while detecting.  A release which times out
+ * is completed by the processing thread once it is done.
+ * Transitions may be requested from any thread; they are serialized by this lifecycle.
+ */
+class PipelineLifecycle {
+
+    static final int IDLE = 0;
+    static final int STARTING = 1;
+    static final int RUNNING = 2;
+    static final int STOPPING = 3;
+    static final int RELEASED = 4;
+
+    private static final String[] STATE_NAMES = {
+            "idle", "starting", "running", "stopping", "released"
+    };
+
+    /**
+     * The parts of the pipeline driven by the lifecycle.  Each is called with the lifecycle's
+     * lock held.
+     */
+    interface Pipeline {
+        /**
+         * Opens the source of frames and activates the processing runnable, which is run on a new
+         * processing thread right after.
+         *
+         * @throws IOException if the source could not be opened, which leaves the pipeline idle
+         */
+        void open() throws IOException;
+
+        /**
+         * Closes the source and deactivates the processing runnable, without waiting for the
+         * processing thread to complete.
+         */
+        void close();
+
+        /**
+         * Releases the resources of the pipeline, once the processing thread has completed.
+         */
+        void release();
+    }
+
+    private final Pipeline pipeline;
+    private final Runnable processing;
+    private final String threadName;
+
+    private volatile int state = IDLE;
+
+    // Guarded by this.
+    private Thread processingThread;
+    private boolean releasePending;
+
+    /**
+     * @param processing the runnable processing frames until the pipeline is closed
+     * @param threadName the name of the processing threads
+     */
+    PipelineLifecycle(Pipeline pipeline, Runnable processing, String threadName) {
+        this.pipeline = pipeline;
+        this.processing = processing;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Returns the current state, one of {@link #IDLE}, {@link #STARTING}, {@link #RUNNING},
+     * {@link #STOPPING} or {@link #RELEASED}.
+     */
+    int getState() {
+        return state;
+    }
+
+    static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    /**
+     * Opens the pipeline and starts a processing thread.  While the pipeline is still stopping,
+     * this first waits for the previous processing thread to complete.
+     *
+     * @param timeoutMillis how long to wait for the previous processing thread
+     * @return false if the pipeline is already running
+     * @throws IOException           if the pipeline could not be opened
+     * @throws IllegalStateException if the pipeline was released, or the previous processing
+     *                               thread didn't complete in time
+     */
+    synchronized boolean start(long timeoutMillis) throws IOException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (state == STOPPING) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new IllegalStateException("Processing did not complete within "
+                        + timeoutMillis + " ms of stopping.");
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for processing to "
+                        + "complete.");
+            }
+        }
+        if (state == RELEASED) {
+            throw new IllegalStateException("Pipeline was released.");
+        }
+        if (state != IDLE) {
+            return false;
+        }
+
+        state = STARTING;
+        boolean opened = false;
+        try {
+            pipeline.open();
+            opened = true;
+        } finally {
+            if (!opened) {
+                state = IDLE;
+            }
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processing.run();
+                } finally {
+                    onProcessingCompleted(Thread.currentThread());
+                }
+            }
+        }, threadName);
+        processingThread = thread;
+        state = RUNNING;
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Closes the pipeline without waiting for the processing thread, which completes in the
+     * background.
+     *
+     * @return false if the pipeline wasn't running
+     */
+    synchronized boolean stop() {
+        if (state != RUNNING) {
+            return false;
+        }
+        state = processingThread != null ? STOPPING : IDLE;
+        pipeline.close();
+        return true;
+    }
+
+    /**
+     * Stops the pipeline and releases it once the processing thread has completed.  If it doesn't
+     * complete in time, the processing thread releases the pipeline when it does.  Releasing is
+     * final.
+     *
+     * @param timeoutMillis how long to wait for the processing thread
+     * @return false if the release was left to the processing thread
+     */
+    synchronized boolean release(long timeoutMillis) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (state != RELEASED) {
+            // The pipeline may have been started again by another thread while waiting.
+            stop();
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (processingThread == null || remainingNanos <= 0) {
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (state == RELEASED) {
+            return !releasePending;
+        }
+
+        state = RELEASED;
+        notifyAll();
+        if (processingThread != null) {
+            releasePending = true;
+            return false;
+        }
+        pipeline.release();
+        return true;
+    }
+
+    private synchronized void onProcessingCompleted(Thread thread) {
+        if (processingThread != thread) {
+            return;
+        }
+        processingThread = null;
+        if (state == STOPPING) {
+            state = IDLE;
+        } else if (releasePending) {
+            releasePending = false;
+            pipeline.release();
+        }
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineLifecycle{" + getStateName(state) + "}";
+    }
+}
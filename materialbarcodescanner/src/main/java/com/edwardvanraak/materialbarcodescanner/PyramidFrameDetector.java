@@ -0,0 +1,257 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame detector which first runs detection on a copy of the frame downsampled to half the
+ * resolution, and only runs detection on the frame itself when nothing was found on the copy.
+ * Most 1D codes are still readable at half the resolution, at a quarter of the detection cost.
+ * Codes which only resolve at full resolution are still found on a miss, and every
+ * {@code fullResolutionInterval} frames detection runs at full resolution right away, so that such
+ * codes are not delayed by a downsampled attempt on every frame.
+ * Only the luma plane is downsampled, as detectors work on luma; the chroma plane of the copy is
+ * neutral gray.  The copy is kept in a buffer of this detector, or leased from a
+ * {@link DerivedFramePool}, so like the detector it wraps, an instance must only be used by one
+ * processing thread.  The hits at either level are counted in a
+ * {@link Stats} instance, which may be shared by the detectors of all workers.
+ *
+ * @param <T> the type of the detection results
+ */
+class PyramidFrameDetector<T> implements FrameDetector<T> {
+
+    /**
+     * Frames are not downsampled below this width or height.
+     */
+    private static final int MIN_DOWNSAMPLED_SIZE = 64;
+
+    /**
+     * NV21 chroma value meaning "no color".
+     */
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    /**
+     * Tells whether detection results contain anything.
+     *
+     * @param <T> the type of the detection results
+     */
+    interface ResultCheck<T> {
+        boolean hasResults(T results);
+    }
+
+    /**
+     * Counts detection attempts and hits at either resolution.
+     */
+    static class Stats {
+        private final AtomicLong mDownsampledAttempts = new AtomicLong();
+        private final AtomicLong mDownsampledHits = new AtomicLong();
+        private final AtomicLong mFullAttempts = new AtomicLong();
+        private final AtomicLong mFullHits = new AtomicLong();
+
+        long getDownsampledAttempts() {
+            return mDownsampledAttempts.get();
+        }
+
+        long getDownsampledHits() {
+            return mDownsampledHits.get();
+        }
+
+        long getFullResolutionAttempts() {
+            return mFullAttempts.get();
+        }
+
+        long getFullResolutionHits() {
+            return mFullHits.get();
+        }
+
+        /**
+         * Returns the fraction of downsampled attempts which found something.
+         */
+        float getDownsampledHitRate() {
+            return rate(mDownsampledHits.get(), mDownsampledAttempts.get());
+        }
+
+        /**
+         * Returns the fraction of full resolution attempts which found something.
+         */
+        float getFullResolutionHitRate() {
+            return rate(mFullHits.get(), mFullAttempts.get());
+        }
+
+        private static float rate(long hits, long attempts) {
+            return attempts == 0 ? 0 : (float) hits / attempts;
+        }
+
+        @Override
+        public String toString() {
+            return "downsampled " + getDownsampledHits() + "/" + getDownsampledAttempts()
+                    + ", full resolution " + getFullResolutionHits() + "/"
+                    + getFullResolutionAttempts();
+        }
+    }
+
+    private final FrameDetector<T> mDetector;
+    private final ResultCheck<T> mResultCheck;
+    private final int mFullResolutionInterval;
+    private final Stats mStats;
+    private final DerivedFramePool mPool;
+
+    // Only accessed by the processing thread.
+    private FrameBuffer mOutput;
+    private byte[] mNeutralChroma;
+    private byte[] mRows;
+    private byte[] mOutputRow;
+    private int mFramesUntilFullResolution;
+
+    /**
+     * @param fullResolutionInterval every how many frames detection runs at full resolution right
+     *                               away, or 0 to always try the downsampled frame first
+     */
+    PyramidFrameDetector(FrameDetector<T> detector, ResultCheck<T> resultCheck,
+                         int fullResolutionInterval, Stats stats) {
+        this(detector, resultCheck, fullResolutionInterval, stats, null);
+    }
+
+    /**
+     * @param fullResolutionInterval every how many frames detection runs at full resolution right
+     *                               away, or 0 to always try the downsampled frame first
+     * @param pool                   the pool to lease the downsampled frames from, or
+     *                               {@code null} to keep a buffer in this detector
+     */
+    PyramidFrameDetector(FrameDetector<T> detector, ResultCheck<T> resultCheck,
+                         int fullResolutionInterval, Stats stats, DerivedFramePool pool) {
+        if (fullResolutionInterval < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid full resolution interval: " + fullResolutionInterval);
+        }
+        mDetector = detector;
+        mResultCheck = resultCheck;
+        mFullResolutionInterval = fullResolutionInterval;
+        mFramesUntilFullResolution = fullResolutionInterval;
+        mStats = stats;
+        mPool = pool;
+    }
+
+    @Override
+    public T detect(FrameBuffer frame) {
+        if (mFullResolutionInterval > 0 && --mFramesUntilFullResolution == 0) {
+            mFramesUntilFullResolution = mFullResolutionInterval;
+            return detectFullResolution(frame);
+        }
+
+        FrameBuffer downsampled = downsample(frame);
+        if (downsampled != null) {
+            mStats.mDownsampledAttempts.incrementAndGet();
+            T results = mDetector.detect(downsampled);
+            if (results != null && mResultCheck.hasResults(results)) {
+                mStats.mDownsampledHits.incrementAndGet();
+                return results;
+            }
+        }
+        return detectFullResolution(frame);
+    }
+
+    private T detectFullResolution(FrameBuffer frame) {
+        mStats.mFullAttempts.incrementAndGet();
+        T results = mDetector.detect(frame);
+        if (results != null && mResultCheck.hasResults(results)) {
+            mStats.mFullHits.incrementAndGet();
+        }
+        return results;
+    }
+
+    @Override
+    public void deliver(T results) {
+        mDetector.deliver(results);
+    }
+
+    @Override
+    public void release() {
+        mDetector.release();
+    }
+
+    /**
+     * Returns the frame downsampled into the buffer of this detector or a leased frame, or
+     * {@code null} if the frame is too small to be downsampled.
+     */
+    private FrameBuffer downsample(FrameBuffer frame) {
+        // Keep the dimensions even, as NV21 needs for its chroma plane.
+        int width = (frame.getWidth() / 2) & ~1;
+        int height = (frame.getHeight() / 2) & ~1;
+        if (width < MIN_DOWNSAMPLED_SIZE || height < MIN_DOWNSAMPLED_SIZE) {
+            return null;
+        }
+
+        FrameBuffer output;
+        if (mPool != null) {
+            // A leased frame may hold anything, so its chroma plane is cleared on every lease.
+            output = mPool.lease(width, height, frame);
+            int chromaSize = output.getData().capacity() - width * height;
+            if (mNeutralChroma == null || mNeutralChroma.length != chromaSize) {
+                mNeutralChroma = new byte[chromaSize];
+                Arrays.fill(mNeutralChroma, NEUTRAL_CHROMA);
+            }
+            ByteBuffer chroma = output.getData().duplicate();
+            chroma.position(width * height);
+            chroma.put(mNeutralChroma);
+        } else {
+            output = mOutput;
+            if (output == null || output.getWidth() != width || output.getHeight() != height) {
+                output = new FrameBuffer(width, height);
+                byte[] data = output.getData().array();
+                Arrays.fill(data, width * height, data.length, NEUTRAL_CHROMA);
+                mOutput = output;
+            }
+        }
+        downsampleLuma(frame.getData(), frame.getWidth(), output.getData(), width, height);
+        output.setDerivedFrame(frame, frame.getLeft(), frame.getTop(), frame.getScale() * 2);
+        return output;
+    }
+
+    /**
+     * Downsamples like {@link #downsampleLuma(byte[], int, byte[], int, int)}, where either plane
+     * may be in a direct buffer.  Those are read and written a row at a time through arrays of
+     * this detector, so that the arithmetic runs on arrays either way.
+     */
+    private void downsampleLuma(ByteBuffer src, int srcWidth, ByteBuffer dst, int width,
+                                int height) {
+        if (src.hasArray() && dst.hasArray()) {
+            downsampleLuma(src.array(), srcWidth, dst.array(), width, height);
+            return;
+        }
+        if (mRows == null || mRows.length != 2 * srcWidth) {
+            mRows = new byte[2 * srcWidth];
+        }
+        if (mOutputRow == null || mOutputRow.length != width) {
+            mOutputRow = new byte[width];
+        }
+        ByteBuffer in = src.duplicate();
+        ByteBuffer out = dst.duplicate();
+        for (int y = 0; y < height; y++) {
+            in.position(2 * y * srcWidth);
+            in.get(mRows);
+            downsampleLuma(mRows, srcWidth, mOutputRow, width, 1);
+            out.position(y * width);
+            out.put(mOutputRow);
+        }
+    }
+
+    /**
+     * Averages each 2x2 block of the source luma plane into one pixel of the destination.
+     */
+    static void downsampleLuma(byte[] src, int srcWidth, byte[] dst, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int row = 2 * y * srcWidth;
+            int nextRow = row + srcWidth;
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                int sum = (src[row] & 0xFF) + (src[row + 1] & 0xFF)
+                        + (src[nextRow] & 0xFF) + (src[nextRow + 1] & 0xFF);
+                dst[out + x] = (byte) ((sum + 2) >> 2);
+                row += 2;
+                nextRow += 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame source which plays a {@link FrameRecording} back once, on its own thread.  In real time,
+ * frames are produced at the intervals they were recorded at and, like the camera, dropped when no
+ * buffer is free at the time.  At maximum rate, each frame is produced as soon as a buffer is
+ * free, so that no frame is dropped by the source and the pipeline runs as fast as it can.
+ */
+class ReplayFrameSource implements FrameSource, Runnable {
+
+    private final FrameRecording recording;
+    private final boolean realTime;
+
+    private final BlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile Callback callback;
+    private Thread thread;
+
+    private volatile long framesProduced;
+    private volatile long framesDropped;
+
+    /**
+     * @param realTime whether to produce frames at the recorded rate rather than the maximum rate
+     */
+    ReplayFrameSource(FrameRecording recording, boolean realTime) {
+        if (recording.getFrameCount() == 0) {
+            throw new IllegalArgumentException("Recording holds no frames: "
+                    + recording.getName());
+        }
+        this.recording = recording;
+        this.realTime = realTime;
+    }
+
+    /**
+     * Returns the number of frames written into a buffer and handed to the callback.
+     */
+    long getFramesProduced() {
+        return framesProduced;
+    }
+
+    /**
+     * Returns the number of frames dropped because no buffer was free at the time.
+     */
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+        if (callback == null) {
+            freeBuffers.clear();
+        }
+    }
+
+    @Override
+    public void addBuffer(byte[] buffer) {
+        freeBuffers.add(buffer);
+    }
+
+    /**
+     * Starts playing back the recording on a dedicated thread.
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "ReplayFrameSource");
+        thread.start();
+    }
+
+    /**
+     * Waits until all frames of the recording have been produced or dropped.
+     *
+     * @return false if the timeout elapsed first
+     */
+    boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * Stops playing back and waits for the producing thread to complete.
+     */
+    void stop() throws InterruptedException {
+        Thread toJoin;
+        synchronized (this) {
+            toJoin = thread;
+            thread = null;
+        }
+        if (toJoin != null) {
+            toJoin.interrupt();
+            toJoin.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        long startNanos = System.nanoTime();
+        long firstTimestampNanos = recording.getTimestampNanos(0);
+        try {
+            for (int index = 0; index < recording.getFrameCount(); index++) {
+                byte[] buffer;
+                if (realTime) {
+                    long delay = startNanos + recording.getTimestampNanos(index)
+                            - firstTimestampNanos - System.nanoTime();
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                    buffer = freeBuffers.poll();
+                } else {
+                    buffer = freeBuffers.take();
+                }
+
+                Callback callback = this.callback;
+                if (buffer == null || callback == null) {
+                    framesDropped++;
+                    continue;
+                }
+                recording.copyFrame(index, buffer);
+                framesProduced++;
+                callback.onFrame(buffer);
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The barcode detector and camera source of a scanner configuration, shared process-wide by all
+ * scanners built with that configuration.  Back-to-back scans reuse the loaded detector, the
+ * camera thread and the frame buffers instead of building them again for every scan.
+ * An engine is in use from {@link #acquire()} until {@link #release()}, i.e. while a scan is
+ * shown.  Once it is no longer in use, it is kept for {@link #IDLE_TIMEOUT_MILLIS} and then
+ * evicted, which releases the camera source and with it the detector.  Idle engines are evicted
+ * right away when the system asks the app to trim its memory; engines in use only drop their
+ * frame buffers.
+ * Engines are built with the application context, so that they don't keep an activity alive.
+ * All methods must be called on the main thread.
+ */
+class ScannerEngine {
+
+    private static final String TAG = "ScannerEngine";
+
+    /**
+     * How long an engine is kept after its last scan before it is evicted.
+     */
+    static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Builds the engine for a configuration when there is none cached.
+     */
+    interface Factory {
+        ScannerEngine create(Context context);
+    }
+
+    private static final Map<String, ScannerEngine> engines = new HashMap<>();
+    private static Handler mainHandler;
+    private static boolean trimCallbacksRegistered;
+
+    private final BarcodeDetector barcodeDetector;
+    private final CameraSource cameraSource;
+    private String key;
+    private int useCount;
+    private boolean evicted;
+
+    private final Runnable evictWhenIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (useCount == 0) {
+                Log.d(TAG, "Evicting scanner engine idle for " + IDLE_TIMEOUT_MILLIS + "ms");
+                evict();
+            }
+        }
+    };
+
+    ScannerEngine(BarcodeDetector barcodeDetector, CameraSource cameraSource) {
+        this.barcodeDetector = barcodeDetector;
+        this.cameraSource = cameraSource;
+    }
+
+    /**
+     * Returns the engine cached for the given configuration key, or builds and caches a new one.
+     * A new engine is idle and evicted unless it is acquired within the idle timeout.
+     */
+    static ScannerEngine obtain(Context context, String key, Factory factory) {
+        ScannerEngine engine = engines.get(key);
+        if (engine != null) {
+            return engine;
+        }
+        Context applicationContext = context.getApplicationContext();
+        registerTrimCallbacks(applicationContext);
+        engine = factory.create(applicationContext);
+        engine.key = key;
+        engines.put(key, engine);
+        engine.scheduleEviction();
+        return engine;
+    }
+
+    /**
+     * Evicts the idle engines if the given level asks to free memory, and releases the frame
+     * buffers of the engines in use when memory is running low.  Called for
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    static void trimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Idle engines are evicted on timeout anyway; the user may come right back.
+            return;
+        }
+        List<ScannerEngine> idle = new ArrayList<>();
+        for (ScannerEngine engine : engines.values()) {
+            if (engine.useCount == 0) {
+                idle.add(engine);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                engine.cameraSource.releasePreviewBuffers();
+            }
+        }
+        if (!idle.isEmpty()) {
+            Log.d(TAG, "Evicting " + idle.size() + " idle scanner engines, trim level " + level);
+        }
+        for (ScannerEngine engine : idle) {
+            engine.evict();
+        }
+    }
+
+    BarcodeDetector getBarcodeDetector() {
+        return barcodeDetector;
+    }
+
+    CameraSource getCameraSource() {
+        return cameraSource;
+    }
+
+    /**
+     * Returns whether this engine was evicted, after which its camera source and detector are
+     * released and a new engine has to be obtained.
+     */
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Marks the engine as in use, so that it isn't evicted until released again.
+     */
+    void acquire() {
+        if (evicted) {
+            throw new IllegalStateException("Scanner engine was evicted.");
+        }
+        useCount++;
+        getMainHandler().removeCallbacks(evictWhenIdle);
+    }
+
+    /**
+     * Ends a use started with {@link #acquire()}.  The camera should be stopped by then.
+     */
+    void release() {
+        if (useCount == 0) {
+            throw new IllegalStateException("Scanner engine released more often than acquired.");
+        }
+        if (--useCount == 0 && !evicted) {
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * Loads the detector of a new engine, see {@link CameraSource#warmUpAsync}.  An engine whose
+     * detector is operational already reports so right away; otherwise, the warm-up is repeated,
+     * as the detector's dependencies may have been downloaded since.
+     */
+    void warmUp(final CameraSource.CommandCallback<Boolean> callback) {
+        if (!cameraSource.getScannerMetrics().isDetectorOperational()) {
+            cameraSource.warmUpAsync(callback);
+            return;
+        }
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCompleted(true);
+            }
+        });
+    }
+
+    private void scheduleEviction() {
+        Handler handler = getMainHandler();
+        handler.removeCallbacks(evictWhenIdle);
+        handler.postDelayed(evictWhenIdle, IDLE_TIMEOUT_MILLIS);
+    }
+
+    private void evict() {
+        if (evicted) {
+            return;
+        }
+        evicted = true;
+        getMainHandler().removeCallbacks(evictWhenIdle);
+        if (engines.get(key) == this) {
+            engines.remove(key);
+        }
+        cameraSource.releaseAsync();
+    }
+
+    private static Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
+    private static void registerTrimCallbacks(Context applicationContext) {
+        if (trimCallbacksRegistered
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        trimCallbacksRegistered = true;
+        applicationContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+}
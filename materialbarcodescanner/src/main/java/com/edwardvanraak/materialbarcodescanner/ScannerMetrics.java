@@ -0,0 +1,360 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of every stage a frame passes on its way from the camera to the
+ * barcode listener, for telling where the time goes on a given device.
+ * <ul>
+ * <li>Capture: the interval between two frames received from the camera.</li>
+ * <li>Queue wait: from receiving a frame until a worker picks it up.</li>
+ * <li>Stages: running the frame stages, such as cropping and the blur filter.</li>
+ * <li>Detect: running detection on a frame, including the frame stages.</li>
+ * <li>Dispatch: delivering the results of a frame to the trackers and listeners.</li>
+ * <li>Total: from receiving a frame until its results have been delivered.</li>
+ * </ul>
+ * Of the frames received, frames are dropped when a newer frame arrives before a worker picked
+ * them up, processed when a worker runs detection on them, and skipped when a frame stage decides
+ * against detection.  Recording is lock-free and doesn't allocate, so metrics are always on.
+ * When several detectors run on the same frames, see {@link ScheduledFrameDetector}, the time each
+ * of them takes and the frames it was skipped on are recorded as well.
+ */
+public class ScannerMetrics {
+
+    /**
+     * The detection times of one of several detectors run on the same frames, and the number of
+     * frames it was due on but skipped because the frame's time budget was used up.
+     */
+    public static class DetectorMetrics {
+        private final String mName;
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final AtomicLong mSkipped = new AtomicLong();
+
+        DetectorMetrics(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the detection times of this detector; their count is the number of frames it
+         * ran on.
+         */
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        public long getSkippedCount() {
+            return mSkipped.get();
+        }
+
+        void onDetected(long nanos) {
+            mLatency.record(nanos);
+        }
+
+        void onSkipped() {
+            mSkipped.incrementAndGet();
+        }
+
+        void reset() {
+            mLatency.reset();
+            mSkipped.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mLatency + ", skipped " + getSkippedCount();
+        }
+    }
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mDecoded = new AtomicLong();
+
+    private final LatencyHistogram mCapture = new LatencyHistogram();
+    private final LatencyHistogram mQueueWait = new LatencyHistogram();
+    private final LatencyHistogram mStages = new LatencyHistogram();
+    private final LatencyHistogram mDetect = new LatencyHistogram();
+    private final LatencyHistogram mDispatch = new LatencyHistogram();
+    private final LatencyHistogram mTotal = new LatencyHistogram();
+    private final List<DetectorMetrics> mDetectors = new CopyOnWriteArrayList<>();
+
+    /**
+     * The times the current session started, its first frame was received and its first item
+     * decoded, or 0 if that hasn't happened yet.
+     */
+    private volatile long mStartNanos;
+    private final AtomicLong mFirstFrameNanos = new AtomicLong();
+    private final AtomicLong mFirstDecodeNanos = new AtomicLong();
+
+    /**
+     * How long warming up the detectors took, or -1 if they haven't been warmed up yet, and whether
+     * they reported to be operational afterwards.
+     */
+    private volatile long mWarmUpNanos = -1;
+    private volatile boolean mDetectorOperational;
+
+    // Only accessed by the thread delivering frames from the source.
+    private long mLastFrameNanos;
+
+    ScannerMetrics() {
+    }
+
+    /**
+     * Returns the number of frames received from the camera.
+     */
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    /**
+     * Returns the number of frames dropped without detection running on them, because a newer
+     * frame replaced them or the camera stopped before a worker was free.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the number of frames handed to a worker.
+     */
+    public long getProcessedCount() {
+        return mProcessed.get();
+    }
+
+    /**
+     * Returns the number of processed frames a frame stage skipped detection on, such as blurry
+     * frames or frames of a static scene.
+     */
+    public long getSkippedCount() {
+        return mSkipped.get();
+    }
+
+    /**
+     * Returns the number of frames whose results were delivered.
+     */
+    public long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /**
+     * Returns the number of frames whose results held at least one item.
+     */
+    public long getDecodedCount() {
+        return mDecoded.get();
+    }
+
+    /**
+     * Returns the intervals between frames received from the camera.
+     */
+    public LatencyHistogram getCaptureLatency() {
+        return mCapture;
+    }
+
+    /**
+     * Returns the times frames waited between being received and being picked up by a worker.
+     */
+    public LatencyHistogram getQueueWaitLatency() {
+        return mQueueWait;
+    }
+
+    /**
+     * Returns the times spent in the frame stages in front of the detector.
+     */
+    public LatencyHistogram getStageLatency() {
+        return mStages;
+    }
+
+    /**
+     * Returns the detection times per frame, including the frame stages.
+     */
+    public LatencyHistogram getDetectLatency() {
+        return mDetect;
+    }
+
+    /**
+     * Returns the times spent delivering the results of a frame.
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return mDispatch;
+    }
+
+    /**
+     * Returns the times from receiving a frame until its results were delivered.
+     */
+    public LatencyHistogram getTotalLatency() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the metrics of every detector run on the same frames, in the order the detectors
+     * were added, or an empty list if a single detector runs on every frame.
+     */
+    public List<DetectorMetrics> getDetectorMetrics() {
+        return Collections.unmodifiableList(mDetectors);
+    }
+
+    /**
+     * Returns the time from starting the camera until its first frame was received, in
+     * milliseconds, or -1 if no frame was received since the camera was last started.
+     */
+    public long getTimeToFirstFrameMillis() {
+        return elapsedMillis(mStartNanos, mFirstFrameNanos.get());
+    }
+
+    /**
+     * Returns the time from the first frame received after starting the camera until the first
+     * item was decoded, in milliseconds, or -1 if nothing was decoded since the camera was last
+     * started.
+     */
+    public long getTimeToFirstDecodeMillis() {
+        return elapsedMillis(mFirstFrameNanos.get(), mFirstDecodeNanos.get());
+    }
+
+    /**
+     * Returns how long running the detectors on a synthetic frame took, which includes loading
+     * their native code and models, in milliseconds, or -1 if they haven't been warmed up yet.
+     */
+    public long getDetectorWarmUpMillis() {
+        long nanos = mWarmUpNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Returns whether the detectors reported to be operational when they were warmed up, i.e.
+     * whether their native dependencies were available.  Until then, this returns false.
+     */
+    public boolean isDetectorOperational() {
+        return mDetectorOperational;
+    }
+
+    /**
+     * Clears all counters and histograms.  The times to the first frame and decode are kept until
+     * the camera is started again.
+     */
+    public void reset() {
+        mReceived.set(0);
+        mDropped.set(0);
+        mProcessed.set(0);
+        mSkipped.set(0);
+        mDelivered.set(0);
+        mDecoded.set(0);
+        mCapture.reset();
+        mQueueWait.reset();
+        mStages.reset();
+        mDetect.reset();
+        mDispatch.reset();
+        mTotal.reset();
+        for (DetectorMetrics detector : mDetectors) {
+            detector.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder detectors = new StringBuilder();
+        for (DetectorMetrics detector : mDetectors) {
+            detectors.append('\n').append(detector);
+        }
+        return "received " + getReceivedCount() + ", dropped " + getDroppedCount()
+                + ", processed " + getProcessedCount() + ", skipped " + getSkippedCount()
+                + ", delivered " + getDeliveredCount() + ", decoded " + getDecodedCount()
+                + "\ncapture: " + mCapture
+                + "\nqueue wait: " + mQueueWait
+                + "\nstages: " + mStages
+                + "\ndetect: " + mDetect
+                + "\ndispatch: " + mDispatch
+                + "\ntotal: " + mTotal
+                + detectors
+                + "\nfirst frame: " + getTimeToFirstFrameMillis() + "ms"
+                + ", first decode: " + getTimeToFirstDecodeMillis() + "ms"
+                + "\ndetector warm-up: " + getDetectorWarmUpMillis() + "ms"
+                + (isDetectorOperational() ? "" : " (not operational)");
+    }
+
+    /**
+     * Returns the metrics recorded for the detector of the given name, adding them the first time
+     * the name is seen.  Called while building the pipeline.
+     */
+    DetectorMetrics getDetectorMetrics(String name) {
+        for (DetectorMetrics detector : mDetectors) {
+            if (detector.getName().equals(name)) {
+                return detector;
+            }
+        }
+        DetectorMetrics detector = new DetectorMetrics(name);
+        mDetectors.add(detector);
+        return detector;
+    }
+
+    /**
+     * Starts a new session when a frame source is attached.
+     */
+    void onStarted() {
+        mFirstFrameNanos.set(0);
+        mFirstDecodeNanos.set(0);
+        mLastFrameNanos = 0;
+        mStartNanos = System.nanoTime();
+    }
+
+    void onFrameReceived(long nanos) {
+        mReceived.incrementAndGet();
+        if (mLastFrameNanos != 0) {
+            mCapture.record(nanos - mLastFrameNanos);
+        }
+        mLastFrameNanos = nanos;
+        mFirstFrameNanos.compareAndSet(0, nanos);
+    }
+
+    void onFrameDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    void onFrameProcessed(long queueWaitNanos, long detectNanos) {
+        mProcessed.incrementAndGet();
+        mQueueWait.record(queueWaitNanos);
+        mDetect.record(detectNanos);
+    }
+
+    void onStagesRun(long nanos, boolean skipped) {
+        mStages.record(nanos);
+        if (skipped) {
+            mSkipped.incrementAndGet();
+        }
+    }
+
+    void onResultsDelivered(long dispatchNanos, long totalNanos) {
+        mDelivered.incrementAndGet();
+        mDispatch.record(dispatchNanos);
+        mTotal.record(totalNanos);
+    }
+
+    /**
+     * Called when a frame's results hold at least one item.
+     */
+    void onItemsDecoded() {
+        mDecoded.incrementAndGet();
+        mFirstDecodeNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    void onDetectorWarmedUp(long nanos, boolean operational) {
+        mDetectorOperational = operational;
+        mWarmUpNanos = nanos;
+    }
+
+    private static long elapsedMillis(long startNanos, long endNanos) {
+        if (startNanos == 0 || endNanos == 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+    }
+}
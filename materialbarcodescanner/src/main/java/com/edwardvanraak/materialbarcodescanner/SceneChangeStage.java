@@ -0,0 +1,150 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame stage which skips detection while the scene doesn't change, such as on a fixed mount
+ * scanner pointed at an empty counter, where detecting on every frame would only keep the CPU busy.
+ * Each frame is reduced to a tiny fingerprint: the average luma of each cell of a coarse grid,
+ * sampled sparsely.  Detection is skipped while the fingerprint stays within a threshold of the
+ * fingerprint of the last frame detection ran on; comparing against that frame rather than the
+ * previous one catches slow changes too, such as a shift in lighting.
+ * Once the scene changes, detection runs on every frame for a while, so that an item which comes
+ * to rest after entering the frame is still detected on the frames in which it is in focus.  A
+ * frame is still detected on every so often, in case detection failed on the last one.
+ * Skipped and detected frames are counted in a {@link Stats} instance, which may be shared by the
+ * stages of all workers.
+ */
+class SceneChangeStage implements FrameStage {
+
+    private static final int GRID_COLUMNS = 16;
+    private static final int GRID_ROWS = 12;
+
+    /**
+     * Number of pixels sampled per cell along either axis.
+     */
+    private static final int CELL_SAMPLES = 4;
+
+    /**
+     * Number of frames detection runs on after the scene has changed.
+     */
+    private static final int CHANGE_HOLD_FRAMES = 15;
+
+    /**
+     * Maximum number of frames skipped in a row.
+     */
+    private static final int MAX_SKIPPED_FRAMES = 60;
+
+    /**
+     * Counts frames skipped and detected.
+     */
+    static class Stats {
+        private final AtomicLong mDetected = new AtomicLong();
+        private final AtomicLong mSkipped = new AtomicLong();
+        private volatile float mLastDifference;
+
+        long getDetectedCount() {
+            return mDetected.get();
+        }
+
+        long getSkippedCount() {
+            return mSkipped.get();
+        }
+
+        /**
+         * Returns the mean luma difference of the last frame to the last frame detected on.
+         */
+        float getLastDifference() {
+            return mLastDifference;
+        }
+
+        @Override
+        public String toString() {
+            return "detected " + getDetectedCount() + ", skipped " + getSkippedCount()
+                    + ", last difference " + getLastDifference();
+        }
+    }
+
+    private final float mThreshold;
+    private final Stats mStats;
+
+    // Only accessed by the processing thread.
+    private int[] mFingerprint = new int[GRID_COLUMNS * GRID_ROWS];
+    private int[] mReference = new int[GRID_COLUMNS * GRID_ROWS];
+    private boolean mHasReference;
+    private int mHoldFrames;
+    private int mSkippedFrames;
+
+    /**
+     * @param threshold the mean difference in luma, from 0 to 255, above which the scene counts
+     *                  as changed
+     */
+    SceneChangeStage(float threshold, Stats stats) {
+        if (!(threshold > 0)) {
+            throw new IllegalArgumentException("Invalid scene change threshold: " + threshold);
+        }
+        mThreshold = threshold;
+        mStats = stats;
+    }
+
+    @Override
+    public FrameBuffer process(FrameBuffer frame) {
+        fingerprint(frame.getData(), frame.getWidth(), frame.getHeight(), mFingerprint);
+        float difference = mHasReference ? difference(mFingerprint, mReference) : Float.MAX_VALUE;
+        mStats.mLastDifference = difference;
+
+        if (difference > mThreshold) {
+            mHoldFrames = CHANGE_HOLD_FRAMES;
+        } else if (mHoldFrames > 0) {
+            mHoldFrames--;
+        } else if (mSkippedFrames < MAX_SKIPPED_FRAMES) {
+            mSkippedFrames++;
+            mStats.mSkipped.incrementAndGet();
+            return null;
+        }
+
+        // This frame becomes the reference the next frames are compared against.
+        int[] reference = mReference;
+        mReference = mFingerprint;
+        mFingerprint = reference;
+        mHasReference = true;
+        mSkippedFrames = 0;
+        mStats.mDetected.incrementAndGet();
+        return frame;
+    }
+
+    /**
+     * Computes the sum of the sampled luma values of each cell of the grid.  The luma plane may
+     * be in a direct buffer.
+     */
+    static void fingerprint(ByteBuffer luma, int width, int height, int[] fingerprint) {
+        for (int row = 0; row < GRID_ROWS; row++) {
+            for (int column = 0; column < GRID_COLUMNS; column++) {
+                int sum = 0;
+                for (int sy = 0; sy < CELL_SAMPLES; sy++) {
+                    int y = ((row * CELL_SAMPLES + sy) * 2 + 1) * height
+                            / (2 * GRID_ROWS * CELL_SAMPLES);
+                    int offset = y * width;
+                    for (int sx = 0; sx < CELL_SAMPLES; sx++) {
+                        int x = ((column * CELL_SAMPLES + sx) * 2 + 1) * width
+                                / (2 * GRID_COLUMNS * CELL_SAMPLES);
+                        sum += luma.get(offset + x) & 0xFF;
+                    }
+                }
+                fingerprint[row * GRID_COLUMNS + column] = sum;
+            }
+        }
+    }
+
+    /**
+     * Returns the mean difference in luma between two fingerprints.
+     */
+    static float difference(int[] a, int[] b) {
+        long sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return (float) sum / (a.length * CELL_SAMPLES * CELL_SAMPLES);
+    }
+}
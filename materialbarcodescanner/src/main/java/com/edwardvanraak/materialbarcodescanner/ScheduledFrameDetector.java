@@ -0,0 +1,193 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Frame detector which runs several detectors on the same frame, such as a barcode detector on
+ * every frame and a text recognizer on every tenth, so that they share the camera's frame buffers
+ * instead of each needing a camera stream of its own.
+ * Every detector has a cadence, running once at least its interval of frame ids has passed since
+ * it last ran, and a priority.  Frame ids count the frames received, so the cadence holds however
+ * many frames are dropped before processing.  The detectors due on a frame run in order of
+ * priority, and once the frame's time budget is used up, the remaining ones are skipped.  A
+ * skipped detector stays due, so it runs on the next frame with time to spare.  The detector of
+ * the highest priority always runs.
+ * Each detector's results are delivered to the detector itself, in order of priority.  The time
+ * each detector takes, and the frames it was skipped on, are recorded in its
+ * {@link ScannerMetrics.DetectorMetrics}.
+ * Like any frame detector, an instance is only used by one processing thread, so with several
+ * workers, each has a set of detectors of its own.  The instances of a detector on the workers
+ * share one {@link Cadence}, so that together they run at the detector's cadence.
+ */
+class ScheduledFrameDetector implements FrameDetector<Object[]> {
+
+    /**
+     * The interval of a detector and the frame it last ran on, which may be shared by the
+     * instances of the detector on several processing threads.
+     */
+    static class Cadence {
+        private static final int NEVER = Integer.MIN_VALUE;
+
+        private final int mInterval;
+        private final AtomicInteger mLastFrameId = new AtomicInteger(NEVER);
+
+        /**
+         * @param interval run once every how many frames, 1 for every frame
+         */
+        Cadence(int interval) {
+            if (interval < 1) {
+                throw new IllegalArgumentException("Invalid detector interval: " + interval);
+            }
+            mInterval = interval;
+        }
+
+        private boolean isDue(int frameId) {
+            return isDue(frameId, mLastFrameId.get());
+        }
+
+        /**
+         * Records a run on the given frame, unless the detector no longer is due, e.g. because
+         * another processing thread ran it meanwhile.
+         */
+        private boolean claim(int frameId) {
+            int lastFrameId = mLastFrameId.get();
+            return isDue(frameId, lastFrameId) && mLastFrameId.compareAndSet(lastFrameId, frameId);
+        }
+
+        private boolean isDue(int frameId, int lastFrameId) {
+            return lastFrameId == NEVER || frameId - lastFrameId >= mInterval;
+        }
+    }
+
+    /**
+     * A detector with its cadence and priority.
+     *
+     * @param <T> the type of the detection results
+     */
+    static class Slot<T> {
+        private final FrameDetector<T> mDetector;
+        private final Cadence mCadence;
+        private final int mPriority;
+        private final ScannerMetrics.DetectorMetrics mMetrics;
+
+        /**
+         * @param interval run once every how many frames, 1 for every frame
+         * @param priority detectors of a higher priority run first
+         * @param metrics  where to record the detection times, or {@code null}
+         */
+        Slot(FrameDetector<T> detector, int interval, int priority,
+             ScannerMetrics.DetectorMetrics metrics) {
+            this(detector, new Cadence(interval), priority, metrics);
+        }
+
+        /**
+         * @param cadence  the cadence, shared with the instances of the detector on other
+         *                 processing threads
+         * @param priority detectors of a higher priority run first
+         * @param metrics  where to record the detection times, or {@code null}
+         */
+        Slot(FrameDetector<T> detector, Cadence cadence, int priority,
+             ScannerMetrics.DetectorMetrics metrics) {
+            mDetector = detector;
+            mCadence = cadence;
+            mPriority = priority;
+            mMetrics = metrics;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void deliver(Object results) {
+            mDetector.deliver((T) results);
+        }
+    }
+
+    private final Slot<?>[] mSlots;
+    private final long mBudgetNanos;
+
+    /**
+     * @param slots       the detectors with their cadences and priorities; of detectors of the
+     *                    same priority, the one listed first runs first
+     * @param budgetNanos the time after which the detectors still due on a frame are skipped, or
+     *                    0 to run all detectors due
+     */
+    ScheduledFrameDetector(List<? extends Slot<?>> slots, long budgetNanos) {
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("No detector supplied.");
+        }
+        if (budgetNanos < 0) {
+            throw new IllegalArgumentException("Invalid frame budget: " + budgetNanos);
+        }
+        List<Slot<?>> sorted = new ArrayList<Slot<?>>(slots);
+        // The sort is stable, so slots of the same priority keep their order.
+        Collections.sort(sorted, new Comparator<Slot<?>>() {
+            @Override
+            public int compare(Slot<?> a, Slot<?> b) {
+                return a.mPriority > b.mPriority ? -1 : (a.mPriority == b.mPriority ? 0 : 1);
+            }
+        });
+        mSlots = sorted.toArray(new Slot<?>[sorted.size()]);
+        mBudgetNanos = budgetNanos;
+    }
+
+    /**
+     * Runs the detectors due on the frame.
+     *
+     * @return the results of each detector in order of priority, with {@code null} for the
+     * detectors which didn't run or found nothing, or {@code null} if none did
+     */
+    @Override
+    public Object[] detect(FrameBuffer frame) {
+        long startNanos = System.nanoTime();
+        Object[] results = null;
+        int frameId = frame.getFrameId();
+        for (int i = 0; i < mSlots.length; i++) {
+            Slot<?> slot = mSlots[i];
+            if (!slot.mCadence.isDue(frameId)) {
+                continue;
+            }
+            long slotStartNanos = System.nanoTime();
+            if (i > 0 && mBudgetNanos > 0 && slotStartNanos - startNanos >= mBudgetNanos) {
+                if (slot.mMetrics != null) {
+                    slot.mMetrics.onSkipped();
+                }
+                continue;
+            }
+            if (!slot.mCadence.claim(frameId)) {
+                continue;
+            }
+            Object slotResults = slot.mDetector.detect(frame);
+            if (slot.mMetrics != null) {
+                slot.mMetrics.onDetected(System.nanoTime() - slotStartNanos);
+            }
+            if (slotResults != null) {
+                if (results == null) {
+                    results = new Object[mSlots.length];
+                }
+                results[i] = slotResults;
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void deliver(Object[] results) {
+        if (results == null) {
+            return;
+        }
+        for (int i = 0; i < mSlots.length; i++) {
+            if (results[i] != null) {
+                mSlots[i].deliver(results[i]);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        for (Slot<?> slot : mSlots) {
+            slot.mDetector.release();
+        }
+    }
+}
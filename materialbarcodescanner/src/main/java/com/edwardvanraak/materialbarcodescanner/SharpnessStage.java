@@ -0,0 +1,145 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame stage which skips detection on blurry frames, such as the motion-smeared frames captured
+ * while the device is being moved, where detection would only burn time without finding anything.
+ * The sharpness of a frame is the variance of the Laplacian of its luma plane, sampled on a sparse
+ * grid so that scoring a frame costs a small fraction of detecting on it.
+ * What counts as sharp depends on the scene and the camera, so the threshold adapts: a frame is
+ * dropped if its score is below a fraction of the sharpest score seen recently, which decays with
+ * every frame.  No more than a few frames in a row are dropped, so that detection still runs on
+ * scenes which never get any sharper.
+ * Scores and drops are counted in a {@link Stats} instance, which may be shared by the stages of
+ * all workers.
+ */
+class SharpnessStage implements FrameStage {
+
+    /**
+     * Distance between two sampled pixels, horizontally and vertically.
+     */
+    private static final int SAMPLE_STEP = 4;
+
+    /**
+     * Factor by which the reference score decays with every frame, so that it follows the scene
+     * within a second or so.
+     */
+    private static final float REFERENCE_DECAY = 0.95f;
+
+    /**
+     * Maximum number of frames dropped in a row.
+     */
+    private static final int MAX_CONSECUTIVE_DROPS = 5;
+
+    /**
+     * Counts frames passed and dropped, and holds the last score.
+     */
+    static class Stats {
+        private final AtomicLong mPassed = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private volatile float mLastScore;
+        private volatile float mLastThreshold;
+
+        long getPassedCount() {
+            return mPassed.get();
+        }
+
+        long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        /**
+         * Returns the sharpness score of the last frame.
+         */
+        float getLastScore() {
+            return mLastScore;
+        }
+
+        /**
+         * Returns the threshold the last frame was held against.
+         */
+        float getLastThreshold() {
+            return mLastThreshold;
+        }
+
+        @Override
+        public String toString() {
+            return "passed " + getPassedCount() + ", dropped " + getDroppedCount()
+                    + ", last score " + getLastScore() + " of " + getLastThreshold();
+        }
+    }
+
+    private final float mThresholdRatio;
+    private final Stats mStats;
+
+    // Only accessed by the processing thread.
+    private float mReferenceScore;
+    private int mConsecutiveDrops;
+
+    /**
+     * @param thresholdRatio the fraction of the recent sharpest score below which frames are
+     *                       dropped, between 0 and 1
+     */
+    SharpnessStage(float thresholdRatio, Stats stats) {
+        if (!(thresholdRatio >= 0 && thresholdRatio < 1)) {
+            throw new IllegalArgumentException("Invalid threshold ratio: " + thresholdRatio);
+        }
+        mThresholdRatio = thresholdRatio;
+        mStats = stats;
+    }
+
+    @Override
+    public FrameBuffer process(FrameBuffer frame) {
+        float score = score(frame.getData(), frame.getWidth(), frame.getHeight());
+        mReferenceScore = Math.max(score, mReferenceScore * REFERENCE_DECAY);
+        float threshold = mReferenceScore * mThresholdRatio;
+        mStats.mLastScore = score;
+        mStats.mLastThreshold = threshold;
+
+        if (score < threshold && mConsecutiveDrops < MAX_CONSECUTIVE_DROPS) {
+            mConsecutiveDrops++;
+            mStats.mDropped.incrementAndGet();
+            return null;
+        }
+        mConsecutiveDrops = 0;
+        mStats.mPassed.incrementAndGet();
+        return frame;
+    }
+
+    /**
+     * Returns the variance of the Laplacian of the luma plane, sampled every
+     * {@link #SAMPLE_STEP} pixels.  Sharp edges give a high variance, blur flattens it.
+     */
+    static float score(byte[] luma, int width, int height) {
+        return score(ByteBuffer.wrap(luma), width, height);
+    }
+
+    /**
+     * Like {@link #score(byte[], int, int)}, for a luma plane which may be in a direct buffer.
+     * The grid is sparse enough that reading sample by sample costs next to nothing.
+     */
+    static float score(ByteBuffer luma, int width, int height) {
+        long sum = 0;
+        long sumOfSquares = 0;
+        int count = 0;
+        for (int y = 1; y < height - 1; y += SAMPLE_STEP) {
+            int row = y * width;
+            for (int x = 1; x < width - 1; x += SAMPLE_STEP) {
+                int i = row + x;
+                int laplacian = 4 * (luma.get(i) & 0xFF)
+                        - (luma.get(i - 1) & 0xFF) - (luma.get(i + 1) & 0xFF)
+                        - (luma.get(i - width) & 0xFF) - (luma.get(i + width) & 0xFF);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        float mean = (float) sum / count;
+        return (float) sumOfSquares / count - mean * mean;
+    }
+}
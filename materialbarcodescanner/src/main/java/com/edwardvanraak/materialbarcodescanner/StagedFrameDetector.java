@@ -0,0 +1,62 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Frame detector which runs a chain of {@link FrameStage}s on every frame before handing the
+ * resulting frame on to another detector.  A stage may replace the frame with a derived one, or
+ * skip detection on the frame altogether.  The time spent in the stages, and the frames skipped,
+ * are recorded in the {@link ScannerMetrics} set on this detector, if any.
+ *
+ * @param <T> the type of the detection results
+ */
+class StagedFrameDetector<T> implements FrameDetector<T> {
+
+    private final FrameDetector<T> mDetector;
+    private final FrameStage[] mStages;
+    private volatile ScannerMetrics mMetrics;
+
+    StagedFrameDetector(FrameDetector<T> detector, FrameStage... stages) {
+        this(detector, Arrays.asList(stages));
+    }
+
+    StagedFrameDetector(FrameDetector<T> detector, List<? extends FrameStage> stages) {
+        if (detector == null) {
+            throw new IllegalArgumentException("No detector supplied.");
+        }
+        mDetector = detector;
+        mStages = new ArrayList<FrameStage>(stages).toArray(new FrameStage[stages.size()]);
+    }
+
+    void setMetrics(ScannerMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public T detect(FrameBuffer frame) {
+        long startNanos = System.nanoTime();
+        for (FrameStage stage : mStages) {
+            frame = stage.process(frame);
+            if (frame == null) {
+                break;
+            }
+        }
+        ScannerMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onStagesRun(System.nanoTime() - startNanos, frame == null);
+        }
+        return frame != null ? mDetector.detect(frame) : null;
+    }
+
+    @Override
+    public void deliver(T results) {
+        mDetector.deliver(results);
+    }
+
+    @Override
+    public void release() {
+        mDetector.release();
+    }
+}
@@ -0,0 +1,239 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame source which plays back NV21 frames from memory on its own thread, behaving like the
+ * camera: frames are only written into buffers handed to the source, and frames for which no buffer
+ * is free are dropped.  The frames are either generated (a moving luma gradient) or loaded from a
+ * raw file of concatenated NV21 frames, and are played back in a loop until {@link #stop()} is
+ * called.  This makes it possible to run and benchmark the production frame loop on a plain JVM.
+ */
+class SyntheticFrameSource implements FrameSource, Runnable {
+
+    private final List<byte[]> frames;
+    private final int width;
+    private final int height;
+    private final long frameIntervalNanos;
+
+    private final BlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<>();
+    private volatile Callback callback;
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long framesProduced;
+    private volatile long framesDropped;
+
+    /**
+     * Creates a source generating {@code frameCount} distinct frames of a luma gradient which
+     * shifts by one pixel every frame.
+     *
+     * @param fps the rate at which frames are produced, or 0 to produce a frame as soon as a
+     *            buffer is free
+     */
+    SyntheticFrameSource(int width, int height, int frameCount, float fps) {
+        this(generateFrames(width, height, frameCount), width, height, fps);
+    }
+
+    /**
+     * Creates a source playing back the given NV21 frames.
+     *
+     * @param fps the rate at which frames are produced, or 0 to produce a frame as soon as a
+     *            buffer is free
+     */
+    SyntheticFrameSource(List<byte[]> frames, int width, int height, float fps) {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No frames supplied.");
+        }
+        if (fps < 0) {
+            throw new IllegalArgumentException("Invalid fps: " + fps);
+        }
+        this.frames = Collections.unmodifiableList(new ArrayList<>(frames));
+        this.width = width;
+        this.height = height;
+        frameIntervalNanos = fps == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+    }
+
+    /**
+     * Creates a source playing back a raw file of concatenated NV21 frames of the given size.
+     */
+    static SyntheticFrameSource fromFile(File file, int width, int height, float fps)
+            throws IOException {
+        int frameSize = width * height * 3 / 2;
+        long frameCount = file.length() / frameSize;
+        if (frameCount == 0) {
+            throw new IOException("File does not contain a " + width + "x" + height + " frame: "
+                    + file);
+        }
+        List<byte[]> frames = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            for (long i = 0; i < frameCount; i++) {
+                byte[] frame = new byte[frameSize];
+                in.readFully(frame);
+                frames.add(frame);
+            }
+        } finally {
+            in.close();
+        }
+        return new SyntheticFrameSource(frames, width, height, fps);
+    }
+
+    /**
+     * Generates NV21 frames holding a diagonal luma gradient, shifted by one pixel per frame, with
+     * neutral chroma.
+     */
+    static List<byte[]> generateFrames(int width, int height, int frameCount) {
+        List<byte[]> frames = new ArrayList<>(frameCount);
+        int lumaSize = width * height;
+        for (int f = 0; f < frameCount; f++) {
+            byte[] frame = new byte[lumaSize * 3 / 2];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    frame[y * width + x] = (byte) (x + y + f);
+                }
+            }
+            for (int i = lumaSize; i < frame.length; i++) {
+                frame[i] = (byte) 128;
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * Generates an NV21 frame holding dark bars of varying width on a light background, like a
+     * blurred 1D barcode, with neutral chroma.  Detectors run their full pipeline on such a frame,
+     * which makes it suitable for warming them up.
+     */
+    static byte[] generateBarsFrame(int width, int height) {
+        int lumaSize = width * height;
+        byte[] frame = new byte[lumaSize * 3 / 2];
+        // Bars across the middle half of the frame, one to three modules wide.
+        int left = width / 4;
+        int right = width - width / 4;
+        int module = Math.max(1, (right - left) / 95);
+        byte[] row = new byte[width];
+        for (int x = 0; x < width; x++) {
+            int index = (x - left) / module;
+            boolean bar = x >= left && x < right && (index * 7 % 11) < 5;
+            row[x] = (byte) (bar ? 32 : 224);
+        }
+        for (int y = 0; y < height; y++) {
+            boolean barRow = y >= height / 3 && y < height - height / 3;
+            for (int x = 0; x < width; x++) {
+                frame[y * width + x] = barRow ? row[x] : (byte) 224;
+            }
+        }
+        for (int i = lumaSize; i < frame.length; i++) {
+            frame[i] = (byte) 128;
+        }
+        return frame;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of frames written into a buffer and handed to the callback.
+     */
+    long getFramesProduced() {
+        return framesProduced;
+    }
+
+    /**
+     * Returns the number of frames dropped because no buffer was free at the time.
+     */
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+        if (callback == null) {
+            freeBuffers.clear();
+        }
+    }
+
+    @Override
+    public void addBuffer(byte[] buffer) {
+        freeBuffers.add(buffer);
+    }
+
+    /**
+     * Starts producing frames on a dedicated thread.
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "SyntheticFrameSource");
+        thread.start();
+    }
+
+    /**
+     * Stops producing frames and waits for the producing thread to complete.
+     */
+    void stop() throws InterruptedException {
+        Thread toJoin;
+        synchronized (this) {
+            running = false;
+            toJoin = thread;
+            thread = null;
+        }
+        if (toJoin != null) {
+            toJoin.interrupt();
+            toJoin.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextFrameNanos = System.nanoTime();
+        int index = 0;
+        try {
+            while (running) {
+                byte[] buffer;
+                if (frameIntervalNanos == 0) {
+                    buffer = freeBuffers.take();
+                } else {
+                    long delay = nextFrameNanos - System.nanoTime();
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                    nextFrameNanos += frameIntervalNanos;
+                    buffer = freeBuffers.poll();
+                }
+
+                Callback callback = this.callback;
+                if (buffer == null || callback == null) {
+                    framesDropped++;
+                    continue;
+                }
+                byte[] frame = frames.get(index);
+                index = (index + 1) % frames.size();
+                System.arraycopy(frame, 0, buffer, 0, Math.min(frame.length, buffer.length));
+                framesProduced++;
+                callback.onFrame(buffer);
+            }
+        } catch (InterruptedException e) {
+            // Stopped while waiting on a buffer or the next frame.
+        }
+    }
+}
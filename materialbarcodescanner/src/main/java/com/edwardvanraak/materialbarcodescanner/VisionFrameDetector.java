@@ -0,0 +1,186 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import android.graphics.ImageFormat;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+/**
+ * Frame detector which wraps frames into a Mobile Vision {@link Frame}, runs a {@link Detector} on
+ * them and passes the detections on to a {@link Detector.Processor}.  Detection and delivery are
+ * split so that several instances, each with a detector of its own, can share one processor.
+ * One {@link Frame.Builder} is kept with every frame buffer, with the image data set once.  For every
+ * frame only the metadata is updated, and the builder hands out the frame it holds, so that no
+ * frame or metadata objects are created per frame.
+ * Frames derived by a {@link FrameStage}, such as a crop, are located somewhere within the camera
+ * frame; an {@link ItemMapper} maps the detected items back to camera frame coordinates.  Like the
+ * items, the position of the derived frame is taken in upright coordinates, i.e. after both frames
+ * are turned by their rotation.
+ * Deliveries holding at least one item are counted as decoded in the {@link ScannerMetrics} set
+ * on this detector, if any.
+ * The detector may be warmed up from another thread, see {@link #warmUp(FrameBuffer)}; detection
+ * waits for a warm-up in progress rather than running the detector concurrently.
+ *
+ * @param <T> the type of the detected items
+ */
+class VisionFrameDetector<T> implements FrameDetector<Detector.Detections<T>> {
+
+    private static final String TAG = "VisionFrameDetector";
+
+    private final Object detectorLock = new Object();
+
+    // Guarded by detectorLock.
+    private Detector<T> detector;
+    private volatile Detector.Processor<T> processor;
+    private volatile Frame outputFrame;
+    private volatile ItemMapper<T> itemMapper;
+    private volatile ScannerMetrics metrics;
+
+    /**
+     * Maps items detected on a frame derived from a camera frame back to the coordinates of the
+     * camera frame.
+     *
+     * @param <T> the type of the detected items
+     */
+    interface ItemMapper<T> {
+        /**
+         * Maps the item from the coordinates of a derived frame to those of the camera frame, both
+         * upright, where a point (x, y) of the derived frame is at
+         * (left + x * scale, top + y * scale), see {@link FrameBuffer#getUprightLeft()}.
+         */
+        void map(T item, int left, int top, int scale);
+    }
+
+    VisionFrameDetector(Detector<T> detector) {
+        this.detector = detector;
+    }
+
+    /**
+     * Sets the mapper for items detected on derived frames.  Without a mapper, items keep the
+     * coordinates of the frame they were detected on.
+     */
+    void setItemMapper(ItemMapper<T> itemMapper) {
+        this.itemMapper = itemMapper;
+    }
+
+    void setMetrics(ScannerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the processor receiving the detections of this detector.
+     */
+    void setProcessor(Detector.Processor<T> processor) {
+        this.processor = processor;
+    }
+
+    @Override
+    public Detector.Detections<T> detect(FrameBuffer frameBuffer) {
+        Frame frame = getBuilder(frameBuffer)
+                .setId(frameBuffer.getFrameId())
+                .setTimestampMillis(frameBuffer.getTimestampMillis())
+                .setRotation(frameBuffer.getRotation())
+                .build();
+        outputFrame = frame;
+        try {
+            SparseArray<T> items;
+            boolean operational;
+            synchronized (detectorLock) {
+                items = detector.detect(frame);
+                operational = detector.isOperational();
+            }
+            mapItems(items, frameBuffer.getUprightLeft(), frameBuffer.getUprightTop(),
+                    frameBuffer.getScale());
+            return new Detector.Detections<>(items, frame.getMetadata(), operational);
+        } catch (Throwable t) {
+            Log.e(TAG, "Exception thrown from detector.", t);
+            return null;
+        }
+    }
+
+    /**
+     * Runs the detector on the given frame without delivering the detections, so that it loads its
+     * native code and models before the first camera frame arrives.  Detection on camera frames
+     * waits until this is done.
+     *
+     * @return whether the detector is operational, or false if it was released already
+     */
+    boolean warmUp(FrameBuffer frameBuffer) {
+        Frame frame = new Frame.Builder()
+                .setImageData(frameBuffer.getData(), frameBuffer.getWidth(),
+                        frameBuffer.getHeight(), ImageFormat.NV21)
+                .build();
+        synchronized (detectorLock) {
+            if (detector == null) {
+                return false;
+            }
+            try {
+                detector.detect(frame);
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from detector during warm-up.", t);
+            }
+            return detector.isOperational();
+        }
+    }
+
+    @Override
+    public void deliver(Detector.Detections<T> detections) {
+        Detector.Processor<T> processor = this.processor;
+        if (processor == null) {
+            return;
+        }
+        ScannerMetrics metrics = this.metrics;
+        if (metrics != null && detections.getDetectedItems().size() > 0) {
+            metrics.onItemsDecoded();
+        }
+        try {
+            processor.receiveDetections(detections);
+        } catch (Throwable t) {
+            Log.e(TAG, "Exception thrown from receiver.", t);
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (detectorLock) {
+            detector.release();
+            detector = null;
+        }
+    }
+
+    /**
+     * Returns the last frame handed to the detector.
+     */
+    Frame getOutputFrame() {
+        return outputFrame;
+    }
+
+    private void mapItems(SparseArray<T> items, int left, int top, int scale) {
+        ItemMapper<T> itemMapper = this.itemMapper;
+        if (itemMapper == null || (left == 0 && top == 0 && scale == 1)) {
+            return;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            itemMapper.map(items.valueAt(i), left, top, scale);
+        }
+    }
+
+    /**
+     * Returns the frame builder of the given buffer, creating it when the buffer is seen for the
+     * first time.  The builder is shared by all detectors, as a buffer is only processed by one
+     * detector at a time.
+     */
+    private static Frame.Builder getBuilder(FrameBuffer frameBuffer) {
+        Object tag = frameBuffer.getTag();
+        if (tag instanceof Frame.Builder) {
+            return (Frame.Builder) tag;
+        }
+        Frame.Builder builder = new Frame.Builder()
+                .setImageData(frameBuffer.getData(), frameBuffer.getWidth(),
+                        frameBuffer.getHeight(), ImageFormat.NV21);
+        frameBuffer.setTag(builder);
+        return builder;
+    }
+}
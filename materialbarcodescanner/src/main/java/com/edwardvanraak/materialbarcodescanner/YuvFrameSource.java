@@ -0,0 +1,213 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Frame source for cameras producing YUV 4:2:0 images in three planes, such as an
+ * {@code ImageReader} of {@code YUV_420_888} images.  Each image is packed into one of the NV21
+ * buffers added to the source and released right away, so that the camera never waits for
+ * detection.  Images arriving while no buffer is free are dropped, like the camera1 preview
+ * callbacks do.
+ * Packing is a single bulk copy per plane when the rows are not padded and the chroma planes
+ * are interleaved the way NV21 is, which is the layout most devices produce; otherwise it falls
+ * back to copying row by row and sample by sample.
+ * The luma plane is copied even where it could be handed to detection as it is.  A camera frame
+ * has to stay a full NV21 frame in a buffer of the {@link FrameBufferPool}: the crop and OCR
+ * stages copy its chroma along with its luma, and its buffer is handed back to the source once the
+ * frame is done.  Detecting on the image itself would also keep it from the camera until then,
+ * so that the reader would need an image for every frame in flight, where it now needs two.
+ * This class does not depend on the Android framework, so that it can be driven by a fake camera
+ * on a plain JVM.
+ */
+class YuvFrameSource implements FrameSource {
+
+    static final int PLANE_Y = 0;
+    static final int PLANE_U = 1;
+    static final int PLANE_V = 2;
+
+    /**
+     * A YUV 4:2:0 image, with the planes of {@code android.media.Image}: a full resolution luma
+     * plane and two chroma planes subsampled by two along either axis.
+     */
+    interface Image {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Returns the samples of the given plane, starting at position 0.
+         */
+        ByteBuffer getBuffer(int plane);
+
+        int getRowStride(int plane);
+
+        int getPixelStride(int plane);
+
+        /**
+         * Hands the image back to the camera.
+         */
+        void close();
+    }
+
+    private final int width;
+    private final int height;
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private volatile Callback callback;
+    private volatile boolean closed;
+
+    private volatile long framesProduced;
+    private volatile long framesDropped;
+
+    YuvFrameSource(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of images packed into a buffer and handed to the callback.
+     */
+    long getFramesProduced() {
+        return framesProduced;
+    }
+
+    /**
+     * Returns the number of images dropped because no buffer was free at the time.
+     */
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+        if (callback == null) {
+            freeBuffers.clear();
+        }
+    }
+
+    @Override
+    public void addBuffer(byte[] buffer) {
+        if (!closed) {
+            freeBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * Drops the buffers added from now on, so that the camera can be closed.
+     */
+    void close() {
+        closed = true;
+        freeBuffers.clear();
+    }
+
+    /**
+     * Packs an image into a free buffer and hands it to the callback, or drops it.  The image is
+     * closed either way.  Called by the thread the camera delivers images on.
+     */
+    void onImage(Image image) {
+        Callback callback = this.callback;
+        byte[] buffer = null;
+        try {
+            if (callback != null && image.getWidth() == width && image.getHeight() == height) {
+                buffer = freeBuffers.poll();
+            }
+            if (buffer != null) {
+                toNv21(image, buffer);
+            }
+        } finally {
+            image.close();
+        }
+
+        if (buffer == null) {
+            framesDropped++;
+            return;
+        }
+        framesProduced++;
+        callback.onFrame(buffer);
+    }
+
+    /**
+     * Packs a YUV 4:2:0 image of even width and height into an NV21 buffer: the luma plane
+     * followed by interleaved V and U samples.
+     */
+    static void toNv21(Image image, byte[] nv21) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int lumaSize = width * height;
+
+        ByteBuffer y = image.getBuffer(PLANE_Y).duplicate();
+        int yRowStride = image.getRowStride(PLANE_Y);
+        if (yRowStride == width) {
+            y.get(nv21, 0, lumaSize);
+        } else {
+            for (int row = 0; row < height; row++) {
+                y.position(row * yRowStride);
+                y.get(nv21, row * width, width);
+            }
+        }
+
+        ByteBuffer u = image.getBuffer(PLANE_U);
+        ByteBuffer v = image.getBuffer(PLANE_V);
+        int chromaRowStride = image.getRowStride(PLANE_V);
+        int chromaPixelStride = image.getPixelStride(PLANE_V);
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        if (chromaRowStride == width && chromaPixelStride == 2
+                && image.getRowStride(PLANE_U) == width && image.getPixelStride(PLANE_U) == 2
+                && isInterleavedAfterV(u, v, chromaWidth, lumaSize / 2)) {
+            // The V plane already holds VUVU...; only its last U sample lies beyond it.
+            int chromaSize = lumaSize / 2;
+            ByteBuffer vu = v.duplicate();
+            vu.position(0);
+            vu.get(nv21, lumaSize, chromaSize - 1);
+            nv21[lumaSize + chromaSize - 1] = u.get((chromaHeight - 1) * width
+                    + (chromaWidth - 1) * 2);
+            return;
+        }
+
+        int uRowStride = image.getRowStride(PLANE_U);
+        int uPixelStride = image.getPixelStride(PLANE_U);
+        int vPixelStride = chromaPixelStride;
+        int offset = lumaSize;
+        for (int row = 0; row < chromaHeight; row++) {
+            int uIndex = row * uRowStride;
+            int vIndex = row * chromaRowStride;
+            for (int column = 0; column < chromaWidth; column++) {
+                nv21[offset++] = v.get(vIndex);
+                nv21[offset++] = u.get(uIndex);
+                uIndex += uPixelStride;
+                vIndex += vPixelStride;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the V plane is followed by the U plane one byte later, judged by the first
+     * row, as views of the same memory can't be compared directly.  Only then does the V plane
+     * hold NV21's interleaved VU samples.  Where the first row can't tell the layouts apart, a
+     * wrong guess shifts the U samples by one, which leaves the luma that detection runs on
+     * untouched.
+     */
+    private static boolean isInterleavedAfterV(ByteBuffer u, ByteBuffer v, int chromaWidth,
+                                               int chromaSize) {
+        if (v.capacity() < chromaSize - 1 || u.capacity() < chromaSize - 1) {
+            return false;
+        }
+        for (int i = 0; i < chromaWidth - 1; i++) {
+            if (v.get(i * 2 + 1) != u.get(i * 2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
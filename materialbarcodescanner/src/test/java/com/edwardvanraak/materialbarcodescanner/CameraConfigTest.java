@@ -0,0 +1,43 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class CameraConfigTest {
+
+    @Test
+    public void decodesEncodedConfig() {
+        CameraConfig config = new CameraConfig(1280, 720, 1920, 1080, 15000, 30000,
+                "continuous-picture", "off");
+        assertEquals(config, CameraConfig.decode(config.encode()));
+
+        CameraConfig withoutOptionals = new CameraConfig(640, 480, 0, 0, 30000, 30000, null, null);
+        CameraConfig decoded = CameraConfig.decode(withoutOptionals.encode());
+        assertEquals(withoutOptionals, decoded);
+        assertNull(decoded.getFocusMode());
+        assertNull(decoded.getFlashMode());
+    }
+
+    @Test
+    public void rejectsInvalidEncodings() {
+        assertNull(CameraConfig.decode(null));
+        assertNull(CameraConfig.decode(""));
+        assertNull(CameraConfig.decode("2;1280;720;0;0;15000;30000;;"));
+        assertNull(CameraConfig.decode("1;1280;720;0;0;15000;30000;"));
+        assertNull(CameraConfig.decode("1;1280;x;0;0;15000;30000;;"));
+        assertNull(CameraConfig.decode("1;0;720;0;0;15000;30000;;"));
+        assertNull(CameraConfig.decode("1;1280;720;0;0;30000;15000;;"));
+    }
+
+    @Test
+    public void keysDifferPerRequestedSettings() {
+        String key = CameraConfig.getKey(0, 1600, 1024, 25f, "auto", null);
+        assertEquals(key, CameraConfig.getKey(0, 1600, 1024, 25f, "auto", null));
+        assertFalse(key.equals(CameraConfig.getKey(1, 1600, 1024, 25f, "auto", null)));
+        assertFalse(key.equals(CameraConfig.getKey(0, 1600, 1024, 30f, "auto", null)));
+        assertFalse(key.equals(CameraConfig.getKey(0, 1600, 1024, 25f, "auto", "torch")));
+    }
+}
@@ -0,0 +1,159 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CropStageTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+
+    @Test
+    public void passesWholeFramesWithoutRegion() {
+        CropStage stage = new CropStage();
+        FrameBuffer frame = createFrame();
+        assertSame(frame, stage.process(frame));
+
+        stage.setRegion(new FrameRegion(0, 0, 1, 1));
+        assertSame(frame, stage.process(frame));
+    }
+
+    @Test
+    public void cropsLumaAndChromaToRegion() {
+        CropStage stage = new CropStage();
+        stage.setRegion(new FrameRegion(0.25f, 0.25f, 0.75f, 0.75f));
+        FrameBuffer frame = createFrame();
+
+        FrameBuffer crop = stage.process(frame);
+        assertNotSame(frame, crop);
+        assertEquals(8, crop.getWidth());
+        assertEquals(4, crop.getHeight());
+        assertEquals(4, crop.getLeft());
+        assertEquals(2, crop.getTop());
+        assertEquals(frame.getFrameId(), crop.getFrameId());
+        assertEquals(frame.getTimestampMillis(), crop.getTimestampMillis());
+        assertEquals(frame.getRotation(), crop.getRotation());
+
+        byte[] data = crop.getData().array();
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 8; x++) {
+                assertEquals(luma(x + 4, y + 2), data[y * 8 + x]);
+            }
+        }
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 8; x++) {
+                assertEquals(chroma(x + 4, y + 1), data[8 * 4 + y * 8 + x]);
+            }
+        }
+
+        // The output buffer is kept as long as the size of the crop doesn't change.
+        assertSame(crop, stage.process(frame));
+    }
+
+    @Test
+    public void skipsEmptyRegion() {
+        CropStage stage = new CropStage();
+        stage.setRegion(new FrameRegion(0.5f, 0.5f, 0.5f, 0.5f));
+        assertNull(stage.process(createFrame()));
+    }
+
+    @Test
+    public void mapsDisplayRegionToFrameOrientation() {
+        // A region in the top left corner of the displayed image.
+        assertEquals(new FrameRegion(0, 0, 0.5f, 0.25f),
+                FrameRegion.fromDisplay(0, 0, 0.5f, 0.25f, 0, false));
+        // Rotated by a quarter turn clockwise for display, it is in the bottom left of the frame.
+        assertEquals(new FrameRegion(0, 0.5f, 0.25f, 1),
+                FrameRegion.fromDisplay(0, 0, 0.5f, 0.25f, 1, false));
+        assertEquals(new FrameRegion(0.5f, 0.75f, 1, 1),
+                FrameRegion.fromDisplay(0, 0, 0.5f, 0.25f, 2, false));
+        assertEquals(new FrameRegion(0.75f, 0, 1, 0.5f),
+                FrameRegion.fromDisplay(0, 0, 0.5f, 0.25f, 3, false));
+        assertEquals(new FrameRegion(0.5f, 0, 1, 0.25f),
+                FrameRegion.fromDisplay(0, 0, 0.5f, 0.25f, 0, true));
+    }
+
+    @Test
+    public void locatesRotatedCropsInTheUprightFrame() {
+        for (int rotation = 0; rotation < 4; rotation++) {
+            CropStage stage = new CropStage();
+            // Off center, so that a position taken along the wrong axis shows.
+            stage.setRegion(new FrameRegion(0.25f, 0.25f, 0.5f, 1));
+            FrameBuffer frame = createFrame();
+            frame.setFrame(7, 1234, rotation);
+            FrameBuffer crop = stage.process(frame);
+            assertUprightPosition(frame, crop);
+
+            // Downsampled, as by the pyramid detector.
+            FrameBuffer downsampled = new FrameBuffer(crop.getWidth() / 2, crop.getHeight() / 2);
+            downsampled.setDerivedFrame(crop, crop.getLeft(), crop.getTop(), 2);
+            assertUprightPosition(frame, downsampled);
+        }
+    }
+
+    /**
+     * Checks that the corners of the derived frame, turned upright as a detector reports them,
+     * map to the upright position of the same corners of the camera frame.
+     */
+    private static void assertUprightPosition(FrameBuffer frame, FrameBuffer derived) {
+        int rotation = frame.getRotation();
+        int scale = derived.getScale();
+        int[][] corners = {{0, 0}, {derived.getWidth(), 0}, {0, derived.getHeight()},
+                {derived.getWidth(), derived.getHeight()}};
+        for (int[] corner : corners) {
+            int[] detected = upright(corner[0], corner[1], derived.getWidth(),
+                    derived.getHeight(), rotation);
+            int[] expected = upright(derived.getLeft() + corner[0] * scale,
+                    derived.getTop() + corner[1] * scale, WIDTH, HEIGHT, rotation);
+            String message = "rotation " + rotation + ", scale " + scale;
+            assertEquals(message, expected[0], derived.getUprightLeft() + detected[0] * scale);
+            assertEquals(message, expected[1], derived.getUprightTop() + detected[1] * scale);
+        }
+    }
+
+    /**
+     * Returns where a point of a frame is once the frame is turned upright, i.e. by the given
+     * number of quarter turns clockwise.
+     */
+    private static int[] upright(int x, int y, int width, int height, int rotation) {
+        switch (rotation) {
+            case 1:
+                return new int[]{height - y, x};
+            case 2:
+                return new int[]{width - x, height - y};
+            case 3:
+                return new int[]{y, width - x};
+            default:
+                return new int[]{x, y};
+        }
+    }
+
+    private static FrameBuffer createFrame() {
+        FrameBuffer frame = new FrameBuffer(WIDTH, HEIGHT);
+        byte[] data = frame.getData().array();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                data[y * WIDTH + x] = luma(x, y);
+            }
+        }
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                data[WIDTH * HEIGHT + y * WIDTH + x] = chroma(x, y);
+            }
+        }
+        frame.setFrame(7, 1234, 1);
+        return frame;
+    }
+
+    private static byte luma(int x, int y) {
+        return (byte) (y * WIDTH + x);
+    }
+
+    private static byte chroma(int x, int y) {
+        return (byte) (200 - y * WIDTH - x);
+    }
+}
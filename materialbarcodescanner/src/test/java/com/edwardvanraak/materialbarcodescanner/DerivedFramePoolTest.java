@@ -0,0 +1,176 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DerivedFramePoolTest {
+
+    private static final int WIDTH = 512;
+    private static final int HEIGHT = 384;
+
+    @Test
+    public void derivesTheSameFramesOffHeap() {
+        DerivedFramePool pool = new DerivedFramePool(1 << 20, false);
+        FrameRegion region = new FrameRegion(0.25f, 0.25f, 0.75f, 0.75f);
+        CropStage heapCrop = new CropStage();
+        heapCrop.setRegion(region);
+        CropStage directCrop = new CropStage(pool);
+        directCrop.setRegion(region);
+        Downsampler heapPyramid = new Downsampler(null);
+        Downsampler directPyramid = new Downsampler(pool);
+        FrameBuffer frame = createFrame();
+
+        FrameBuffer heapFrame = heapPyramid.detect(heapCrop.process(frame));
+        FrameBuffer directFrame = directPyramid.detect(directCrop.process(frame));
+
+        assertTrue(directFrame.getData().isDirect());
+        assertEquals(heapFrame.getWidth(), directFrame.getWidth());
+        assertEquals(heapFrame.getHeight(), directFrame.getHeight());
+        assertEquals(heapFrame.getLeft(), directFrame.getLeft());
+        assertEquals(heapFrame.getScale(), directFrame.getScale());
+        assertArrayEquals(heapFrame.getData().array(), toArray(directFrame.getData()));
+        assertEquals(SharpnessStage.score(heapFrame.getData(), heapFrame.getWidth(),
+                heapFrame.getHeight()), SharpnessStage.score(directFrame.getData(),
+                directFrame.getWidth(), directFrame.getHeight()), 0);
+        assertEquals(2, pool.getLeasedCount());
+    }
+
+    @Test
+    public void returnsLeasesWithTheCameraFrame() {
+        DerivedFramePool pool = new DerivedFramePool(1 << 20, false);
+        CropStage crop = new CropStage(pool);
+        crop.setRegion(new FrameRegion(0, 0, 0.5f, 0.5f));
+        Downsampler pyramid = new Downsampler(pool);
+
+        FrameBuffer first = createFrame();
+        FrameBuffer cropped = crop.process(first);
+        FrameBuffer downsampled = pyramid.detect(cropped);
+        assertEquals(2, pool.getLeasedCount());
+        first.recycle();
+        assertEquals(0, pool.getLeasedCount());
+        assertFalse(cropped.isLeased());
+
+        // The next frame reuses the returned frames instead of allocating.
+        FrameBuffer second = createFrame();
+        assertSame(cropped, crop.process(second));
+        assertSame(downsampled, pyramid.detect(cropped));
+        second.recycle();
+        assertEquals(2, pool.getAllocatedCount());
+        assertEquals(0, pool.getLeasedCount());
+    }
+
+    @Test
+    public void reportsFramesNeverReturned() {
+        DerivedFramePool pool = new DerivedFramePool(1 << 20, true);
+        FrameBuffer snapshot = pool.lease(64, 48);
+        FrameBuffer returned = pool.lease(32, 24);
+        returned.recycle();
+        try {
+            returned.recycle();
+            fail("Frame returned twice.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        final List<Throwable> leaseSites = new ArrayList<>();
+        int leaked = pool.checkLeaks(new DerivedFramePool.LeakReporter() {
+            @Override
+            public void onLeak(int width, int height, Throwable leaseSite) {
+                assertEquals(64, width);
+                assertEquals(48, height);
+                leaseSites.add(leaseSite);
+            }
+        });
+        assertEquals(1, leaked);
+        assertEquals(1, leaseSites.size());
+        boolean leasedHere = false;
+        for (StackTraceElement element : leaseSites.get(0).getStackTrace()) {
+            leasedHere |= element.getMethodName().equals("reportsFramesNeverReturned");
+        }
+        assertTrue(leasedHere);
+
+        snapshot.recycle();
+        assertEquals(0, pool.checkLeaks(null));
+    }
+
+    @Test
+    public void keepsReturnedFramesWithinBudget() {
+        int frameSize = FrameBufferPool.getBufferSize(64, 48);
+        DerivedFramePool pool = new DerivedFramePool(frameSize * 2, false);
+        List<FrameBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            frames.add(pool.lease(64, 48));
+        }
+        for (FrameBuffer frame : frames) {
+            frame.recycle();
+        }
+        assertEquals(frameSize * 2, pool.getFreeBytes());
+
+        pool.lease(64, 48);
+        pool.lease(64, 48);
+        pool.lease(64, 48);
+        assertEquals(4, pool.getAllocatedCount());
+
+        pool.trim();
+        assertEquals(0, pool.getFreeBytes());
+    }
+
+    private static FrameBuffer createFrame() {
+        FrameBuffer frame = new FrameBuffer(WIDTH, HEIGHT);
+        new Random(7).nextBytes(frame.getData().array());
+        frame.setFrame(3, 100, 0);
+        return frame;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.capacity()];
+        ByteBuffer copy = buffer.duplicate();
+        copy.clear();
+        copy.get(array);
+        return array;
+    }
+
+    /**
+     * Returns the downsampled frame a pyramid detector tried first.
+     */
+    private static class Downsampler {
+        final PyramidFrameDetector<FrameBuffer> pyramid;
+
+        Downsampler(DerivedFramePool pool) {
+            pyramid = new PyramidFrameDetector<>(new FrameDetector<FrameBuffer>() {
+                @Override
+                public FrameBuffer detect(FrameBuffer frame) {
+                    return frame.getScale() > 1 ? frame : null;
+                }
+
+                @Override
+                public void deliver(FrameBuffer results) {
+                }
+
+                @Override
+                public void release() {
+                }
+            }, new PyramidFrameDetector.ResultCheck<FrameBuffer>() {
+                @Override
+                public boolean hasResults(FrameBuffer results) {
+                    return results != null;
+                }
+            }, 0, new PyramidFrameDetector.Stats(), pool);
+        }
+
+        FrameBuffer detect(FrameBuffer frame) {
+            return pyramid.detect(frame);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameBufferPoolTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void doesNotCountStarvationAcrossRestarts() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(WIDTH, HEIGHT, 3, 6, 1);
+        for (int session = 0; session < 3; session++) {
+            QueueSource source = new QueueSource();
+            pool.attach(source, 0);
+            for (int i = 0; i < 5; i++) {
+                FrameBuffer frame = pool.find(source.buffers.poll());
+                pool.onFrameReceived(frame);
+                Thread.sleep(2);
+                pool.recycle(frame);
+            }
+            pool.detach();
+            // Paused for much longer than a frame interval.
+            Thread.sleep(50);
+        }
+        assertEquals(0, pool.getStarvedCount());
+        assertEquals(3, pool.size());
+    }
+
+    /**
+     * Holds the buffers handed to it, like the camera does.
+     */
+    private static class QueueSource implements FrameSource {
+        final Queue<byte[]> buffers = new ArrayDeque<>();
+
+        @Override
+        public void setCallback(Callback callback) {
+        }
+
+        @Override
+        public void addBuffer(byte[] buffer) {
+            buffers.add(buffer);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameHandoffTest {
+
+    @Test
+    public void latestFrameWins() {
+        FrameHandoff<String> handoff = new FrameHandoff<>();
+        assertNull(handoff.offer("first"));
+        assertSame("first", handoff.offer("second"));
+        assertEquals("second", handoff.take());
+        assertNull(handoff.poll());
+    }
+
+    @Test
+    public void closeReleasesWaitingConsumer() throws Exception {
+        final FrameHandoff<String> handoff = new FrameHandoff<>();
+        final AtomicReference<String> taken = new AtomicReference<>("not returned");
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken.set(handoff.take());
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        handoff.close();
+        consumer.join(5000);
+
+        assertNull(taken.get());
+        handoff.offer("pending");
+        assertNull(handoff.take());
+        handoff.open();
+        assertEquals("pending", handoff.take());
+    }
+
+    @Test
+    public void everyFrameIsEitherTakenOrReplacedExactlyOnce() throws Exception {
+        final int frames = 200000;
+        final FrameHandoff<Integer> handoff = new FrameHandoff<>();
+        final boolean[] seen = new boolean[frames];
+        final int[] taken = new int[1];
+        final boolean[] ordered = {true};
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int last = -1;
+                while (last < frames - 1) {
+                    Integer frame = handoff.take();
+                    if (frame <= last || seen[frame]) {
+                        ordered[0] = false;
+                    }
+                    seen[frame] = true;
+                    last = frame;
+                    taken[0]++;
+                }
+            }
+        });
+        consumer.start();
+
+        int replaced = 0;
+        for (int i = 0; i < frames; i++) {
+            if (handoff.offer(i) != null) {
+                replaced++;
+            }
+        }
+        consumer.join(10000);
+
+        assertTrue(ordered[0]);
+        assertEquals(frames, taken[0] + replaced);
+    }
+}
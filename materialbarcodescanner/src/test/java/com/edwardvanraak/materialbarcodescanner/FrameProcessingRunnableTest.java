@@ -0,0 +1,273 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameProcessingRunnableTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void processesFramesFromSyntheticSource() throws Exception {
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(20);
+        RecordingDetector detector = new RecordingDetector(delivered, done, 0);
+        SyntheticFrameSource source = run(Collections.singletonList(detector), done);
+
+        assertEquals(WIDTH, detector.width);
+        assertEquals(HEIGHT, detector.height);
+        assertEquals(1, detector.rotation);
+        assertTrue(delivered.size() >= 20);
+        assertIncreasing(delivered);
+        assertTrue(source.getFramesProduced() >= delivered.size());
+    }
+
+    @Test
+    public void deliversResultsOfParallelWorkersInFrameOrder() throws Exception {
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(100);
+        List<RecordingDetector> detectors = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            detectors.add(new RecordingDetector(delivered, done, 3));
+        }
+        run(detectors, done);
+
+        assertTrue(delivered.size() >= 100);
+        assertIncreasing(delivered);
+        for (RecordingDetector detector : detectors) {
+            assertTrue(detector.detected > 0);
+        }
+    }
+
+    @Test
+    public void countsStarvationWhenSourceRunsOutOfBuffers() throws Exception {
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(20);
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(
+                new RecordingDetector(delivered, done, 20));
+        // One buffer in detection and one pending leave none for the source.
+        processor.setBufferCount(2, 2);
+        SyntheticFrameSource source = new SyntheticFrameSource(WIDTH, HEIGHT, 8, 200);
+        Thread thread = start(processor, source);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, processor.getBufferCount());
+        assertTrue(processor.getStarvedCount() > 0);
+        stop(processor, source, thread);
+        assertTrue(source.getFramesDropped() > 0);
+    }
+
+    @Test
+    public void growsAdaptivePoolForSlowDetector() throws Exception {
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(60);
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(
+                new RecordingDetector(delivered, done, 20));
+        processor.setBufferCount(2, 6);
+        SyntheticFrameSource source = new SyntheticFrameSource(WIDTH, HEIGHT, 8, 200);
+        Thread thread = start(processor, source);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        int bufferCount = processor.getBufferCount();
+        stop(processor, source, thread);
+        assertTrue(bufferCount >= FrameBufferPool.getDefaultCount(1));
+        assertTrue(bufferCount <= 6);
+        assertIncreasing(delivered);
+    }
+
+    @Test
+    public void reusesBuffersAcrossRestarts() throws Exception {
+        final Set<ByteBuffer> buffers = Collections.newSetFromMap(
+                new IdentityHashMap<ByteBuffer, Boolean>());
+        final CountDownLatch[] done = {new CountDownLatch(10)};
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(
+                new FrameDetector<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer detect(FrameBuffer frame) {
+                        return frame.getData();
+                    }
+
+                    @Override
+                    public void deliver(ByteBuffer data) {
+                        synchronized (buffers) {
+                            buffers.add(data);
+                        }
+                        done[0].countDown();
+                    }
+
+                    @Override
+                    public void release() {
+                    }
+                });
+
+        SyntheticFrameSource source = new SyntheticFrameSource(WIDTH, HEIGHT, 8, 0);
+        Thread thread = start(processor, source);
+        assertTrue(done[0].await(10, TimeUnit.SECONDS));
+        stop(processor, source, thread);
+        int bufferCount = buffers.size();
+
+        done[0] = new CountDownLatch(10);
+        source = new SyntheticFrameSource(WIDTH, HEIGHT, 8, 0);
+        thread = start(processor, source);
+        assertTrue(done[0].await(10, TimeUnit.SECONDS));
+        stop(processor, source, thread);
+        assertEquals(bufferCount, buffers.size());
+
+        processor.releaseBuffers();
+        assertEquals(0, processor.getBufferCount());
+    }
+
+    @Test
+    public void recordsMetricsOfEveryFrame() throws Exception {
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(30);
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(
+                new RecordingDetector(delivered, done, 10));
+        SyntheticFrameSource source = new SyntheticFrameSource(WIDTH, HEIGHT, 8, 200);
+        Thread thread = start(processor, source);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        stop(processor, source, thread);
+
+        ScannerMetrics metrics = processor.getMetrics();
+        assertTrue(metrics.getDroppedCount() > 0);
+        assertEquals(metrics.getReceivedCount(),
+                metrics.getDroppedCount() + metrics.getProcessedCount());
+        assertEquals(delivered.size(), metrics.getDeliveredCount());
+        assertEquals(metrics.getProcessedCount(), metrics.getDetectLatency().getCount());
+        assertEquals(metrics.getProcessedCount(), metrics.getQueueWaitLatency().getCount());
+        assertEquals(metrics.getDeliveredCount(), metrics.getTotalLatency().getCount());
+        assertEquals(metrics.getReceivedCount() - 1, metrics.getCaptureLatency().getCount());
+        assertTrue(metrics.getTotalLatency().getMaxMicros()
+                >= metrics.getDetectLatency().getMaxMicros());
+        assertTrue(metrics.getTimeToFirstFrameMillis() >= 0);
+        assertEquals(-1, metrics.getTimeToFirstDecodeMillis());
+    }
+
+    @Test
+    public void reportsDetectorFailuresAndKeepsRunning() throws Exception {
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(10);
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(
+                new RecordingDetector(delivered, done, 0) {
+                    @Override
+                    public Integer detect(FrameBuffer frame) {
+                        if (frame.getFrameId() % 2 == 1) {
+                            throw new IllegalStateException("Odd frame");
+                        }
+                        return super.detect(frame);
+                    }
+                });
+        processor.setErrorListener(new FrameProcessingRunnable.ErrorListener() {
+            @Override
+            public void onError(String message, RuntimeException e) {
+                errors.add(message + " " + e.getMessage());
+            }
+        });
+        SyntheticFrameSource source = new SyntheticFrameSource(WIDTH, HEIGHT, 8, 0);
+        Thread thread = start(processor, source);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        stop(processor, source, thread);
+
+        assertTrue(!errors.isEmpty());
+        assertEquals("Exception thrown from detector. Odd frame", errors.get(0));
+        synchronized (delivered) {
+            for (int frameId : delivered) {
+                assertEquals(0, frameId % 2);
+            }
+        }
+    }
+
+    private static SyntheticFrameSource run(List<? extends FrameDetector<?>> detectors,
+                                            CountDownLatch done) throws Exception {
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(detectors);
+        SyntheticFrameSource source = new SyntheticFrameSource(WIDTH, HEIGHT, 8, 0);
+        Thread thread = start(processor, source);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        stop(processor, source, thread);
+        return source;
+    }
+
+    private static Thread start(FrameProcessingRunnable processor, SyntheticFrameSource source) {
+        processor.attach(source, WIDTH, HEIGHT, 1);
+
+        Thread thread = new Thread(processor);
+        processor.setActive(true);
+        thread.start();
+        source.start();
+        return thread;
+    }
+
+    private static void stop(FrameProcessingRunnable processor, SyntheticFrameSource source,
+                             Thread thread) throws InterruptedException {
+        source.stop();
+        processor.setActive(false);
+        thread.join();
+        processor.detach();
+    }
+
+    private static void assertIncreasing(List<Integer> frameIds) {
+        synchronized (frameIds) {
+            for (int i = 1; i < frameIds.size(); i++) {
+                assertTrue(frameIds.get(i) > frameIds.get(i - 1));
+            }
+        }
+    }
+
+    private static class RecordingDetector implements FrameDetector<Integer> {
+        final List<Integer> delivered;
+        final CountDownLatch done;
+        final int maxDelayMillis;
+        final Random random = new Random(42);
+        volatile int detected;
+        volatile int width;
+        volatile int height;
+        volatile int rotation;
+
+        RecordingDetector(List<Integer> delivered, CountDownLatch done, int maxDelayMillis) {
+            this.delivered = delivered;
+            this.done = done;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        @Override
+        public Integer detect(FrameBuffer frame) {
+            width = frame.getWidth();
+            height = frame.getHeight();
+            rotation = frame.getRotation();
+            detected++;
+            if (maxDelayMillis > 0) {
+                try {
+                    Thread.sleep(random.nextInt(maxDelayMillis + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return frame.getFrameId();
+        }
+
+        @Override
+        public void deliver(Integer frameId) {
+            delivered.add(frameId);
+            done.countDown();
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
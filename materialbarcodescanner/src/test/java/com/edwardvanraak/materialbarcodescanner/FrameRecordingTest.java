@@ -0,0 +1,91 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRecordingTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void readsBackRecordedFrames() throws Exception {
+        List<byte[]> frames = SyntheticFrameSource.generateFrames(WIDTH, HEIGHT, 5);
+        FrameRecording recording = FrameRecording.open(record(frames));
+
+        assertEquals(WIDTH, recording.getWidth());
+        assertEquals(HEIGHT, recording.getHeight());
+        assertEquals(5, recording.getFrameCount());
+        byte[] buffer = new byte[FrameBufferPool.getBufferSize(WIDTH, HEIGHT)];
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(1000000L + i * 33000000L, recording.getTimestampNanos(i));
+            recording.copyFrame(i, buffer);
+            assertArrayEquals(frames.get(i), Arrays.copyOf(buffer, frames.get(i).length));
+        }
+    }
+
+    @Test
+    public void replaysEveryFrameAtMaximumRate() throws Exception {
+        List<byte[]> frames = SyntheticFrameSource.generateFrames(WIDTH, HEIGHT, 40);
+        FrameRecording recording = FrameRecording.open(record(frames));
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(
+                new FrameDetector<Integer>() {
+                    @Override
+                    public Integer detect(FrameBuffer frame) {
+                        return frame.getFrameId();
+                    }
+
+                    @Override
+                    public void deliver(Integer frameId) {
+                        delivered.add(frameId);
+                    }
+
+                    @Override
+                    public void release() {
+                    }
+                });
+        ReplayFrameSource source = new ReplayFrameSource(recording, false);
+        processor.attach(source, WIDTH, HEIGHT, 0);
+        Thread thread = new Thread(processor);
+        processor.setActive(true);
+        thread.start();
+        source.start();
+
+        assertTrue(source.awaitFinished(10, TimeUnit.SECONDS));
+        source.stop();
+        processor.setActive(false);
+        thread.join();
+        processor.detach();
+
+        assertEquals(40, source.getFramesProduced());
+        assertEquals(0, source.getFramesDropped());
+        ScannerMetrics metrics = processor.getMetrics();
+        assertEquals(40, metrics.getReceivedCount());
+        assertTrue(delivered.size() > 0);
+    }
+
+    private static File record(List<byte[]> frames) throws Exception {
+        File file = File.createTempFile("recording", ".nv21");
+        file.deleteOnExit();
+        FrameRecording.Writer writer = new FrameRecording.Writer(file, WIDTH, HEIGHT);
+        try {
+            for (int i = 0; i < frames.size(); i++) {
+                writer.write(1000000L + i * 33000000L, frames.get(i));
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,46 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTracerTest {
+
+    @Test
+    public void recordsNothingUntilStarted() throws Exception {
+        FrameTracer tracer = new FrameTracer();
+        tracer.record(FrameTracer.FRAME_RECEIVED, 1);
+        assertEquals(0, tracer.size());
+
+        StringWriter out = new StringWriter();
+        tracer.write(out);
+        assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n]}\n", out.toString());
+    }
+
+    @Test
+    public void keepsMostRecentEventsAsChromeTrace() throws Exception {
+        FrameTracer tracer = new FrameTracer();
+        tracer.start(4);
+        for (int frameId = 1; frameId <= 3; frameId++) {
+            tracer.record(FrameTracer.DETECT_BEGIN, frameId);
+            tracer.record(FrameTracer.DETECT_END, frameId);
+        }
+        tracer.stop();
+        tracer.record(FrameTracer.FRAME_DROPPED, 4);
+        assertEquals(4, tracer.size());
+
+        StringWriter out = new StringWriter();
+        tracer.write(out);
+        String trace = out.toString();
+        assertFalse(trace.contains("\"frame\":1}"));
+        assertTrue(trace.contains("{\"name\":\"detect\",\"cat\":\"frame\",\"ph\":\"B\",\"ts\":"));
+        assertTrue(trace.contains("\"tid\":" + Thread.currentThread().getId()
+                + ",\"args\":{\"frame\":2}}"));
+        assertTrue(trace.lastIndexOf("\"ph\":\"E\"") > trace.lastIndexOf("\"ph\":\"B\""));
+        assertEquals(4, trace.split("\\{\"name\"").length - 1);
+    }
+}
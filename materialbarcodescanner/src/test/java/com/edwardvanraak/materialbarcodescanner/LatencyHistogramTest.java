@@ -0,0 +1,47 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void reportsPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMeanMicros());
+        assertEquals(1000, histogram.getMaxMicros());
+        assertWithin(500, histogram.getPercentileMicros(50));
+        assertWithin(990, histogram.getPercentileMicros(99));
+        assertEquals(1000, histogram.getPercentileMicros(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long previousUpperBound = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            long upperBound = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(micros <= upperBound);
+            assertTrue(bucket == 0 || micros > LatencyHistogram.upperBoundOf(bucket - 1));
+            assertTrue(upperBound >= previousUpperBound);
+            previousUpperBound = upperBound;
+        }
+        assertEquals(Long.MAX_VALUE,
+                LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not within 25% of " + expected,
+                actual >= expected && actual <= expected * 5 / 4);
+    }
+}
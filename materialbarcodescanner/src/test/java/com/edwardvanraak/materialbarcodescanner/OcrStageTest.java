@@ -0,0 +1,187 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OcrStageTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void recognizesRequestedFramesAtMostOncePerInterval() throws Exception {
+        Recognizer recognizer = new Recognizer();
+        OcrStage<FrameBuffer> stage = new OcrStage<>(recognizer, 500,
+                Executors.newSingleThreadExecutor());
+
+        FrameBuffer unrequested = createFrame(1, 0);
+        assertSame(unrequested, stage.process(unrequested));
+        assertNull(recognizer.delivered.poll(50, TimeUnit.MILLISECONDS));
+
+        stage.request();
+        FrameBuffer frame = createFrame(2, 1000);
+        assertSame(frame, stage.process(frame));
+        FrameBuffer snapshot = recognizer.delivered.poll(5, TimeUnit.SECONDS);
+        assertEquals(2, snapshot.getFrameId());
+        assertTrue(snapshot != frame);
+        awaitIdle(stage);
+
+        // Requests within the interval wait for the first frame after it.
+        stage.request();
+        stage.request();
+        stage.process(createFrame(3, 1400));
+        assertNull(recognizer.delivered.poll(50, TimeUnit.MILLISECONDS));
+        stage.process(createFrame(4, 1500));
+        assertEquals(4, recognizer.delivered.poll(5, TimeUnit.SECONDS).getFrameId());
+        awaitIdle(stage);
+        stage.process(createFrame(5, 2500));
+        assertNull(recognizer.delivered.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(2, stage.getStats().getRecognizedCount());
+
+        stage.release();
+        assertTrue(recognizer.released.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void skipsFramesWhileRecognizing() throws Exception {
+        Recognizer recognizer = new Recognizer();
+        recognizer.blocked = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        OcrStage<FrameBuffer> stage = new OcrStage<>(recognizer, 0, executor);
+
+        stage.request();
+        stage.process(createFrame(1, 0));
+        stage.request();
+        stage.process(createFrame(2, 100));
+        stage.process(createFrame(3, 200));
+        recognizer.blocked.countDown();
+        assertEquals(1, recognizer.delivered.poll(5, TimeUnit.SECONDS).getFrameId());
+        awaitIdle(stage);
+
+        // The request made meanwhile is served by the next frame.
+        stage.process(createFrame(4, 300));
+        assertEquals(4, recognizer.delivered.poll(5, TimeUnit.SECONDS).getFrameId());
+
+        stage.release();
+        stage.request();
+        stage.process(createFrame(5, 400));
+        assertTrue(recognizer.released.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertNull(recognizer.delivered.poll());
+    }
+
+    @Test
+    public void snapshotsTheRegionOfInterest() throws Exception {
+        Recognizer recognizer = new Recognizer();
+        OcrStage<FrameBuffer> stage = new OcrStage<>(recognizer, 0,
+                Executors.newSingleThreadExecutor());
+        stage.setRegion(new FrameRegion(0.5f, 0.5f, 1, 1));
+
+        FrameBuffer frame = createFrame(1, 0);
+        stage.request();
+        stage.process(frame);
+        FrameBuffer snapshot = recognizer.delivered.poll(5, TimeUnit.SECONDS);
+
+        assertEquals(WIDTH / 2, snapshot.getWidth());
+        assertEquals(HEIGHT / 2, snapshot.getHeight());
+        assertEquals(WIDTH / 2, snapshot.getLeft());
+        assertEquals(HEIGHT / 2, snapshot.getTop());
+        byte[] data = frame.getData().array();
+        assertEquals(data[(HEIGHT / 2) * WIDTH + WIDTH / 2], snapshot.getData().array()[0]);
+        stage.release();
+    }
+
+    @Test
+    public void returnsLeasedSnapshotsToThePool() throws Exception {
+        Recognizer recognizer = new Recognizer();
+        DerivedFramePool pool = new DerivedFramePool(1 << 20, true);
+        OcrStage<FrameBuffer> stage = new OcrStage<>(recognizer, 0,
+                Executors.newSingleThreadExecutor(), pool);
+        stage.setRegion(new FrameRegion(0.5f, 0.5f, 1, 1));
+
+        for (int i = 1; i <= 3; i++) {
+            FrameBuffer frame = createFrame(i, i * 100);
+            stage.request();
+            stage.process(frame);
+            // The camera frame is recycled long before recognition is done.
+            frame.recycle();
+            FrameBuffer snapshot = recognizer.delivered.poll(5, TimeUnit.SECONDS);
+            assertEquals(i, snapshot.getFrameId());
+            byte[] data = frame.getData().array();
+            assertEquals(data[(HEIGHT / 2) * WIDTH + WIDTH / 2], snapshot.getData().array()[0]);
+            awaitIdle(stage);
+            assertEquals(0, pool.getLeasedCount());
+        }
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(0, pool.checkLeaks(null));
+        stage.release();
+    }
+
+    private static void awaitIdle(OcrStage<?> stage) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (stage.isRecognizing() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(!stage.isRecognizing());
+    }
+
+    private static FrameBuffer createFrame(int frameId, long timestampMillis) {
+        FrameBuffer frame = new FrameBuffer(WIDTH, HEIGHT);
+        byte[] data = frame.getData().array();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + frameId);
+        }
+        frame.setFrame(frameId, timestampMillis, 0);
+        return frame;
+    }
+
+    /**
+     * Delivers a copy of every snapshot it recognized, optionally waiting to be unblocked
+     * first.
+     */
+    private static class Recognizer implements FrameDetector<FrameBuffer> {
+        final BlockingQueue<FrameBuffer> delivered = new LinkedBlockingQueue<>();
+        final CountDownLatch released = new CountDownLatch(1);
+        volatile CountDownLatch blocked;
+
+        @Override
+        public FrameBuffer detect(FrameBuffer frame) {
+            CountDownLatch blocked = this.blocked;
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return frame;
+        }
+
+        @Override
+        public void deliver(FrameBuffer frame) {
+            FrameBuffer copy = new FrameBuffer(frame.getWidth(), frame.getHeight());
+            ByteBuffer data = frame.getData().duplicate();
+            data.clear();
+            copy.getData().put(data);
+            copy.setDerivedFrame(frame, frame.getLeft(), frame.getTop(), frame.getScale());
+            delivered.add(copy);
+        }
+
+        @Override
+        public void release() {
+            released.countDown();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelineLifecycleTest {
+
+    @Test
+    public void stopsWithoutWaitingForDetection() throws Exception {
+        FakePipeline pipeline = new FakePipeline();
+        pipeline.detection = new CountDownLatch(1);
+        PipelineLifecycle lifecycle = new PipelineLifecycle(pipeline, pipeline, "Processing");
+
+        assertTrue(lifecycle.start(0));
+        assertFalse(lifecycle.start(0));
+        assertEquals(PipelineLifecycle.RUNNING, lifecycle.getState());
+        pipeline.awaitDetecting();
+
+        assertTrue(lifecycle.stop());
+        assertEquals(PipelineLifecycle.STOPPING, lifecycle.getState());
+        try {
+            lifecycle.start(10);
+            fail("Started while detection was still running.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        pipeline.detection.countDown();
+        assertTrue(lifecycle.start(5000));
+        assertEquals(PipelineLifecycle.RUNNING, lifecycle.getState());
+        assertTrue(lifecycle.release(5000));
+        assertEquals(PipelineLifecycle.RELEASED, lifecycle.getState());
+        assertEquals(1, pipeline.releases.get());
+        assertEquals(0, pipeline.violations.get());
+    }
+
+    @Test
+    public void releasesOnceDetectionCompletes() throws Exception {
+        FakePipeline pipeline = new FakePipeline();
+        pipeline.detection = new CountDownLatch(1);
+        PipelineLifecycle lifecycle = new PipelineLifecycle(pipeline, pipeline, "Processing");
+        lifecycle.start(0);
+        pipeline.awaitDetecting();
+
+        assertFalse(lifecycle.release(10));
+        assertEquals(PipelineLifecycle.RELEASED, lifecycle.getState());
+        assertEquals(0, pipeline.releases.get());
+
+        pipeline.detection.countDown();
+        pipeline.awaitReleased();
+        assertEquals(1, pipeline.releases.get());
+        assertEquals(0, pipeline.violations.get());
+        try {
+            lifecycle.start(0);
+            fail("Started after release.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void survivesConcurrentStartStopAndRelease() throws Exception {
+        final FakePipeline pipeline = new FakePipeline();
+        final PipelineLifecycle lifecycle = new PipelineLifecycle(pipeline, pipeline, "Processing");
+        final AtomicInteger unexpected = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final long seed = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    awaitQuietly(go);
+                    for (int n = 0; n < 500; n++) {
+                        try {
+                            if (random.nextBoolean()) {
+                                lifecycle.start(5000);
+                            } else {
+                                lifecycle.stop();
+                            }
+                        } catch (IllegalStateException e) {
+                            if (lifecycle.getState() != PipelineLifecycle.RELEASED) {
+                                unexpected.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            unexpected.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitQuietly(go);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+                lifecycle.release(5000);
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        pipeline.awaitReleased();
+        assertEquals(PipelineLifecycle.RELEASED, lifecycle.getState());
+        assertEquals(1, pipeline.releases.get());
+        assertEquals(0, pipeline.violations.get());
+        assertEquals(0, unexpected.get());
+        assertEquals(0, pipeline.running.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records every use of the pipeline which the lifecycle should have prevented.
+     */
+    private static class FakePipeline implements PipelineLifecycle.Pipeline, Runnable {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger releases = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        final CountDownLatch detecting = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+
+        // While set, the processing thread waits for it on its first frame.
+        volatile CountDownLatch detection;
+        private volatile boolean active;
+        private boolean open;
+
+        @Override
+        public void open() {
+            if (open || running.get() > 0 || releases.get() > 0) {
+                violations.incrementAndGet();
+            }
+            open = true;
+            active = true;
+        }
+
+        @Override
+        public void close() {
+            if (!open) {
+                violations.incrementAndGet();
+            }
+            open = false;
+            active = false;
+        }
+
+        @Override
+        public void release() {
+            if (open || running.get() > 0) {
+                violations.incrementAndGet();
+            }
+            releases.incrementAndGet();
+            released.countDown();
+        }
+
+        @Override
+        public void run() {
+            if (running.incrementAndGet() != 1) {
+                violations.incrementAndGet();
+            }
+            try {
+                while (active) {
+                    detecting.countDown();
+                    CountDownLatch latch = detection;
+                    if (latch != null) {
+                        awaitQuietly(latch);
+                    } else {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                    }
+                }
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        void awaitDetecting() throws InterruptedException {
+            assertTrue(detecting.await(5, TimeUnit.SECONDS));
+        }
+
+        void awaitReleased() throws InterruptedException {
+            assertTrue(released.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
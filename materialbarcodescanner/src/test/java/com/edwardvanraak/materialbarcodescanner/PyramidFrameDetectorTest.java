@@ -0,0 +1,117 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PyramidFrameDetectorTest {
+
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 192;
+
+    private static final PyramidFrameDetector.ResultCheck<FrameBuffer> FOUND =
+            new PyramidFrameDetector.ResultCheck<FrameBuffer>() {
+                @Override
+                public boolean hasResults(FrameBuffer frame) {
+                    return frame != null;
+                }
+            };
+
+    @Test
+    public void usesDownsampledFrameOnHit() {
+        PyramidFrameDetector.Stats stats = new PyramidFrameDetector.Stats();
+        ScaleDetector detector = new ScaleDetector(2);
+        PyramidFrameDetector<FrameBuffer> pyramid =
+                new PyramidFrameDetector<>(detector, FOUND, 0, stats);
+
+        FrameBuffer frame = createFrame();
+        FrameBuffer result = pyramid.detect(frame);
+        assertEquals(WIDTH / 2, result.getWidth());
+        assertEquals(HEIGHT / 2, result.getHeight());
+        assertEquals(2, result.getScale());
+        assertEquals(frame.getFrameId(), result.getFrameId());
+
+        // Each pixel is the average of a 2x2 block.
+        byte[] src = frame.getData().array();
+        byte[] dst = result.getData().array();
+        int expected = ((src[2 * WIDTH + 2] & 0xFF) + (src[2 * WIDTH + 3] & 0xFF)
+                + (src[3 * WIDTH + 2] & 0xFF) + (src[3 * WIDTH + 3] & 0xFF) + 2) / 4;
+        assertEquals(expected, dst[WIDTH / 2 + 1] & 0xFF);
+
+        assertEquals(1, stats.getDownsampledAttempts());
+        assertEquals(1, stats.getDownsampledHits());
+        assertEquals(0, stats.getFullResolutionAttempts());
+    }
+
+    @Test
+    public void fallsBackToFullResolutionOnMiss() {
+        PyramidFrameDetector.Stats stats = new PyramidFrameDetector.Stats();
+        ScaleDetector detector = new ScaleDetector(1);
+        PyramidFrameDetector<FrameBuffer> pyramid =
+                new PyramidFrameDetector<>(detector, FOUND, 0, stats);
+
+        FrameBuffer frame = createFrame();
+        assertEquals(frame, pyramid.detect(frame));
+        assertEquals(1, stats.getDownsampledAttempts());
+        assertEquals(0, stats.getDownsampledHits());
+        assertEquals(1, stats.getFullResolutionAttempts());
+        assertEquals(1, stats.getFullResolutionHits());
+    }
+
+    @Test
+    public void forcesFullResolutionAtInterval() {
+        PyramidFrameDetector.Stats stats = new PyramidFrameDetector.Stats();
+        ScaleDetector detector = new ScaleDetector(2);
+        PyramidFrameDetector<FrameBuffer> pyramid =
+                new PyramidFrameDetector<>(detector, FOUND, 3, stats);
+
+        FrameBuffer frame = createFrame();
+        for (int i = 0; i < 6; i++) {
+            pyramid.detect(frame);
+        }
+        assertEquals(4, stats.getDownsampledHits());
+        assertEquals(2, stats.getFullResolutionAttempts());
+        assertEquals(2, detector.scales.get(0).intValue());
+        assertEquals(2, detector.scales.get(1).intValue());
+        assertEquals(1, detector.scales.get(2).intValue());
+    }
+
+    private static FrameBuffer createFrame() {
+        FrameBuffer frame = new FrameBuffer(WIDTH, HEIGHT);
+        byte[] data = frame.getData().array();
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        frame.setFrame(3, 100, 0);
+        return frame;
+    }
+
+    /**
+     * Only finds something on frames of a given scale, and returns the frame itself as the result.
+     */
+    private static class ScaleDetector implements FrameDetector<FrameBuffer> {
+        final int scale;
+        final List<Integer> scales = new ArrayList<>();
+
+        ScaleDetector(int scale) {
+            this.scale = scale;
+        }
+
+        @Override
+        public FrameBuffer detect(FrameBuffer frame) {
+            scales.add(frame.getScale());
+            return frame.getScale() == scale ? frame : null;
+        }
+
+        @Override
+        public void deliver(FrameBuffer results) {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SceneChangeStageTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    @Test
+    public void skipsStaticSceneAfterHoldAndResumesOnChange() {
+        SceneChangeStage.Stats stats = new SceneChangeStage.Stats();
+        SceneChangeStage stage = new SceneChangeStage(4, stats);
+        FrameBuffer empty = frame(false);
+        FrameBuffer item = frame(true);
+
+        // The first frame is always detected on, followed by the frames held after a change.
+        int detected = 0;
+        while (stage.process(empty) != null) {
+            detected++;
+        }
+        assertEquals(16, detected);
+        assertNull(stage.process(empty));
+        assertEquals(2, stats.getSkippedCount());
+
+        assertSame(item, stage.process(item));
+        assertSame(item, stage.process(item));
+        assertEquals(0, stats.getLastDifference(), 0);
+    }
+
+    @Test
+    public void detectsPeriodicallyOnStaticScene() {
+        SceneChangeStage.Stats stats = new SceneChangeStage.Stats();
+        SceneChangeStage stage = new SceneChangeStage(4, stats);
+        FrameBuffer empty = frame(false);
+        for (int i = 0; i < 16 + 61 * 3; i++) {
+            stage.process(empty);
+        }
+        assertEquals(16 + 3, stats.getDetectedCount());
+        assertEquals(60 * 3, stats.getSkippedCount());
+    }
+
+    /**
+     * Creates a gray frame, with a bright item in the middle if requested.
+     */
+    private static FrameBuffer frame(boolean withItem) {
+        FrameBuffer frame = new FrameBuffer(WIDTH, HEIGHT);
+        byte[] data = frame.getData().array();
+        Arrays.fill(data, 0, WIDTH * HEIGHT, (byte) 80);
+        if (withItem) {
+            for (int y = HEIGHT / 4; y < HEIGHT * 3 / 4; y++) {
+                Arrays.fill(data, y * WIDTH + WIDTH / 4, y * WIDTH + WIDTH * 3 / 4, (byte) 220);
+            }
+        }
+        return frame;
+    }
+}
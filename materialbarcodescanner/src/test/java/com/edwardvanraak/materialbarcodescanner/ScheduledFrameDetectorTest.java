@@ -0,0 +1,165 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ScheduledFrameDetectorTest {
+
+    @Test
+    public void runsDetectorsAtTheirCadenceInOrderOfPriority() {
+        List<String> runs = new ArrayList<>();
+        ScannerMetrics.DetectorMetrics textMetrics = new ScannerMetrics.DetectorMetrics("text");
+        Recorder barcodes = new Recorder("barcode", runs, 0);
+        Recorder text = new Recorder("text", runs, 0);
+        ScheduledFrameDetector detector = new ScheduledFrameDetector(Arrays.asList(
+                new ScheduledFrameDetector.Slot<>(text, 3, -1, textMetrics),
+                new ScheduledFrameDetector.Slot<>(barcodes, 1, 0, null)), 0);
+
+        for (int frameId = 1; frameId <= 6; frameId++) {
+            Object[] results = detector.detect(createFrame(frameId));
+            detector.deliver(results);
+        }
+
+        assertEquals(Arrays.asList("barcode1", "text1", "barcode2", "barcode3", "barcode4",
+                "text4", "barcode5", "barcode6"), runs);
+        assertEquals(Arrays.asList("barcode1", "barcode2", "barcode3", "barcode4", "barcode5",
+                "barcode6"), barcodes.delivered);
+        assertEquals(Arrays.asList("text1", "text4"), text.delivered);
+        assertEquals(2, textMetrics.getLatency().getCount());
+        assertEquals(0, textMetrics.getSkippedCount());
+
+        detector.release();
+        assertEquals(1, barcodes.releases);
+        assertEquals(1, text.releases);
+    }
+
+    @Test
+    public void keepsTheCadenceWhenFramesAreDropped() {
+        List<String> runs = new ArrayList<>();
+        Recorder barcodes = new Recorder("barcode", runs, 0);
+        Recorder text = new Recorder("text", runs, 0);
+        ScheduledFrameDetector detector = new ScheduledFrameDetector(Arrays.asList(
+                new ScheduledFrameDetector.Slot<>(barcodes, 1, 0, null),
+                new ScheduledFrameDetector.Slot<>(text, 4, -1, null)), 0);
+
+        for (int frameId : new int[]{1, 3, 6, 7, 9, 11, 13}) {
+            detector.detect(createFrame(frameId));
+        }
+
+        assertEquals(Arrays.asList("text1", "text6", "text11"), filter(runs, "text"));
+    }
+
+    @Test
+    public void sharesTheCadenceBetweenWorkers() {
+        List<String> runs = new ArrayList<>();
+        ScheduledFrameDetector.Cadence cadence = new ScheduledFrameDetector.Cadence(2);
+        ScheduledFrameDetector first = new ScheduledFrameDetector(Arrays.asList(
+                new ScheduledFrameDetector.Slot<>(new Recorder("first", runs, 0), cadence, 0,
+                        null)), 0);
+        ScheduledFrameDetector second = new ScheduledFrameDetector(Arrays.asList(
+                new ScheduledFrameDetector.Slot<>(new Recorder("second", runs, 0), cadence, 0,
+                        null)), 0);
+
+        for (int frameId = 1; frameId <= 6; frameId++) {
+            (frameId % 2 == 0 ? second : first).detect(createFrame(frameId));
+        }
+
+        assertEquals(Arrays.asList("first1", "first3", "first5"), runs);
+    }
+
+    @Test
+    public void defersLowPriorityDetectorsOverBudget() {
+        List<String> runs = new ArrayList<>();
+        ScannerMetrics.DetectorMetrics textMetrics = new ScannerMetrics.DetectorMetrics("text");
+        Recorder barcodes = new Recorder("barcode", runs, 20);
+        Recorder text = new Recorder("text", runs, 0);
+        ScheduledFrameDetector detector = new ScheduledFrameDetector(Arrays.asList(
+                new ScheduledFrameDetector.Slot<>(barcodes, 1, 0, null),
+                new ScheduledFrameDetector.Slot<>(text, 2, -1, textMetrics)), 10_000_000L);
+
+        detector.detect(createFrame(2));
+        assertEquals(Arrays.asList("barcode2"), runs);
+        assertEquals(1, textMetrics.getSkippedCount());
+
+        // Still due once there is time to spare, although not at its cadence.
+        barcodes.sleepMillis = 0;
+        detector.detect(createFrame(3));
+        assertEquals(Arrays.asList("barcode2", "barcode3", "text3"), runs);
+        assertEquals(1, textMetrics.getLatency().getCount());
+    }
+
+    @Test
+    public void returnsNoResultsWhenNothingWasFound() {
+        Recorder barcodes = new Recorder("barcode", new ArrayList<String>(), 0);
+        barcodes.finds = false;
+        ScheduledFrameDetector detector = new ScheduledFrameDetector(
+                Arrays.asList(new ScheduledFrameDetector.Slot<>(barcodes, 1, 0, null)), 0);
+
+        assertNull(detector.detect(createFrame(1)));
+    }
+
+    private static List<String> filter(List<String> runs, String name) {
+        List<String> filtered = new ArrayList<>();
+        for (String run : runs) {
+            if (run.startsWith(name)) {
+                filtered.add(run);
+            }
+        }
+        return filtered;
+    }
+
+    private static FrameBuffer createFrame(int frameId) {
+        FrameBuffer frame = new FrameBuffer(16, 16);
+        frame.setFrame(frameId, frameId * 33, 0);
+        return frame;
+    }
+
+    /**
+     * Records the frames it ran on, returning the run as its results unless told to find
+     * nothing, optionally taking its time.
+     */
+    private static class Recorder implements FrameDetector<String> {
+        final String name;
+        final List<String> runs;
+        final List<String> delivered = new ArrayList<>();
+        long sleepMillis;
+        boolean finds = true;
+        int releases;
+
+        Recorder(String name, List<String> runs, long sleepMillis) {
+            this.name = name;
+            this.runs = runs;
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        public String detect(FrameBuffer frame) {
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String run = name + frame.getFrameId();
+            runs.add(run);
+            return finds ? run : null;
+        }
+
+        @Override
+        public void deliver(String results) {
+            delivered.add(results);
+        }
+
+        @Override
+        public void release() {
+            releases++;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharpnessStageTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void scoresSharpEdgesHigherThanBlur() {
+        float sharp = SharpnessStage.score(noise(0).getData().array(), WIDTH, HEIGHT);
+        float blurred = SharpnessStage.score(noise(2).getData().array(), WIDTH, HEIGHT);
+        assertTrue(sharp > 10 * blurred);
+        assertEquals(0, SharpnessStage.score(new byte[WIDTH * HEIGHT], WIDTH, HEIGHT), 0);
+    }
+
+    @Test
+    public void dropsBlurryFramesAfterSharpOnes() {
+        SharpnessStage.Stats stats = new SharpnessStage.Stats();
+        SharpnessStage stage = new SharpnessStage(0.35f, stats);
+        FrameBuffer sharp = noise(0);
+        FrameBuffer blurred = noise(2);
+
+        assertSame(sharp, stage.process(sharp));
+        assertNull(stage.process(blurred));
+        assertEquals(1, stats.getPassedCount());
+        assertEquals(1, stats.getDroppedCount());
+        assertTrue(stats.getLastScore() < stats.getLastThreshold());
+    }
+
+    @Test
+    public void passesBlurryFrameAfterTooManyDrops() {
+        SharpnessStage.Stats stats = new SharpnessStage.Stats();
+        SharpnessStage stage = new SharpnessStage(0.35f, stats);
+        FrameBuffer blurred = noise(2);
+
+        stage.process(noise(0));
+        int dropped = 0;
+        while (stage.process(blurred) == null) {
+            dropped++;
+        }
+        assertTrue(dropped > 0 && dropped <= 5);
+    }
+
+    /**
+     * Creates a frame of random noise, box blurred over the given radius.
+     */
+    private static FrameBuffer noise(int blurRadius) {
+        Random random = new Random(7);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(256);
+        }
+
+        FrameBuffer frame = new FrameBuffer(WIDTH, HEIGHT);
+        byte[] data = frame.getData().array();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = -blurRadius; dy <= blurRadius; dy++) {
+                    for (int dx = -blurRadius; dx <= blurRadius; dx++) {
+                        int sx = Math.min(WIDTH - 1, Math.max(0, x + dx));
+                        int sy = Math.min(HEIGHT - 1, Math.max(0, y + dy));
+                        sum += pixels[sy * WIDTH + sx];
+                        count++;
+                    }
+                }
+                data[y * WIDTH + x] = (byte) (sum / count);
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,283 @@
+package com.edwardvanraak.materialbarcodescanner;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvFrameSourceTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+
+    @Test
+    public void packsPlanarImagesWithPaddedRows() {
+        FakeImage image = FakeImage.planar(WIDTH, HEIGHT, 0, WIDTH + 8);
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+
+        YuvFrameSource.toNv21(image, nv21);
+
+        assertArrayEquals(expectedNv21(WIDTH, HEIGHT, 0), nv21);
+    }
+
+    @Test
+    public void packsSemiplanarImages() {
+        byte[] expected = expectedNv21(WIDTH, HEIGHT, 3);
+        byte[] nv21 = new byte[expected.length];
+
+        YuvFrameSource.toNv21(FakeImage.nv21(WIDTH, HEIGHT, 3, WIDTH), nv21);
+        assertArrayEquals(expected, nv21);
+
+        nv21 = new byte[expected.length];
+        YuvFrameSource.toNv21(FakeImage.nv21(WIDTH, HEIGHT, 3, WIDTH + 16), nv21);
+        assertArrayEquals(expected, nv21);
+    }
+
+    @Test
+    public void dropsImagesWhileNoBufferIsFree() {
+        final List<byte[]> frames = new ArrayList<>();
+        YuvFrameSource source = new YuvFrameSource(WIDTH, HEIGHT);
+        source.setCallback(new FrameSource.Callback() {
+            @Override
+            public void onFrame(byte[] data) {
+                frames.add(data);
+            }
+        });
+        byte[] buffer = new byte[WIDTH * HEIGHT * 3 / 2];
+        source.addBuffer(buffer);
+
+        FakeImage first = FakeImage.nv21(WIDTH, HEIGHT, 1, WIDTH);
+        FakeImage second = FakeImage.nv21(WIDTH, HEIGHT, 2, WIDTH);
+        source.onImage(first);
+        source.onImage(second);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(expectedNv21(WIDTH, HEIGHT, 1), frames.get(0));
+        assertEquals(1, source.getFramesProduced());
+        assertEquals(1, source.getFramesDropped());
+        assertTrue(first.closed);
+        assertTrue(second.closed);
+
+        source.close();
+        source.addBuffer(buffer);
+        FakeImage third = FakeImage.nv21(WIDTH, HEIGHT, 3, WIDTH);
+        source.onImage(third);
+        assertEquals(1, frames.size());
+        assertTrue(third.closed);
+    }
+
+    @Test
+    public void feedsFrameProcessorFromFakeCamera() throws Exception {
+        final CountDownLatch done = new CountDownLatch(20);
+        final AtomicInteger corrupted = new AtomicInteger();
+        FrameProcessingRunnable processor = new FrameProcessingRunnable(
+                new FrameDetector<Boolean>() {
+                    @Override
+                    public Boolean detect(FrameBuffer frame) {
+                        byte[] data = frame.getData().array();
+                        byte[] expected = expectedNv21(WIDTH, HEIGHT, data[0]);
+                        return Arrays.equals(expected, Arrays.copyOf(data, expected.length));
+                    }
+
+                    @Override
+                    public void deliver(Boolean intact) {
+                        if (!intact) {
+                            corrupted.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void release() {
+                    }
+                });
+        final YuvFrameSource source = new YuvFrameSource(WIDTH, HEIGHT);
+        processor.attach(source, WIDTH, HEIGHT, 1);
+        processor.setActive(true);
+        Thread processing = new Thread(processor);
+        processing.start();
+
+        // The fake camera delivers images on a thread of its own, like an ImageReader.
+        final List<FakeImage> images = Collections.synchronizedList(new ArrayList<FakeImage>());
+        Thread camera = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int seed = 0; done.getCount() > 0 && seed < 10000; seed++) {
+                    FakeImage image = FakeImage.nv21(WIDTH, HEIGHT, seed % 100, WIDTH);
+                    images.add(image);
+                    source.onImage(image);
+                    Thread.yield();
+                }
+            }
+        });
+        camera.start();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        camera.join();
+        processor.setActive(false);
+        processing.join();
+        processor.detach();
+        source.close();
+
+        assertEquals(0, corrupted.get());
+        for (FakeImage image : images) {
+            assertTrue(image.closed);
+        }
+        assertEquals(images.size(), source.getFramesProduced() + source.getFramesDropped());
+    }
+
+    /**
+     * Returns the NV21 frame with the samples {@link FakeImage} fills its planes with.
+     */
+    private static byte[] expectedNv21(int width, int height, int seed) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        int offset = 0;
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                nv21[offset++] = luma(seed, row, column);
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int column = 0; column < width / 2; column++) {
+                nv21[offset++] = chroma(seed, row, column, 'v');
+                nv21[offset++] = chroma(seed, row, column, 'u');
+            }
+        }
+        return nv21;
+    }
+
+    private static byte luma(int seed, int row, int column) {
+        return (byte) (seed + row * 7 + column);
+    }
+
+    private static byte chroma(int seed, int row, int column, char plane) {
+        return (byte) (seed + (plane == 'u' ? 64 : 128) + row * 5 + column * 3);
+    }
+
+    /**
+     * A fake camera image, with its planes laid out like the camera HALs do.  Padding bytes hold
+     * garbage, so that reading them shows up in the frame.
+     */
+    private static class FakeImage implements YuvFrameSource.Image {
+        final int width;
+        final int height;
+        final ByteBuffer[] buffers = new ByteBuffer[3];
+        final int[] rowStrides = new int[3];
+        final int[] pixelStrides = new int[3];
+        volatile boolean closed;
+
+        FakeImage(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Three separate planes, as in I420.
+         */
+        static FakeImage planar(int width, int height, int seed, int rowStride) {
+            FakeImage image = new FakeImage(width, height);
+            image.setLuma(seed, rowStride);
+            int chromaRowStride = rowStride / 2;
+            for (int plane = YuvFrameSource.PLANE_U; plane <= YuvFrameSource.PLANE_V; plane++) {
+                byte[] samples = garbage(chromaRowStride * (height / 2));
+                for (int row = 0; row < height / 2; row++) {
+                    for (int column = 0; column < width / 2; column++) {
+                        samples[row * chromaRowStride + column] = chroma(seed, row, column,
+                                plane == YuvFrameSource.PLANE_U ? 'u' : 'v');
+                    }
+                }
+                image.buffers[plane] = ByteBuffer.wrap(samples);
+                image.rowStrides[plane] = chromaRowStride;
+                image.pixelStrides[plane] = 1;
+            }
+            return image;
+        }
+
+        /**
+         * Interleaved VU samples, with the U plane a view starting one byte into the V plane, as
+         * most devices deliver.  The views end at the last sample of their plane.
+         */
+        static FakeImage nv21(int width, int height, int seed, int rowStride) {
+            FakeImage image = new FakeImage(width, height);
+            image.setLuma(seed, rowStride);
+            int chromaHeight = height / 2;
+            byte[] samples = garbage(rowStride * chromaHeight);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int column = 0; column < width / 2; column++) {
+                    samples[row * rowStride + column * 2] = chroma(seed, row, column, 'v');
+                    samples[row * rowStride + column * 2 + 1] = chroma(seed, row, column, 'u');
+                }
+            }
+            int planeSize = rowStride * (chromaHeight - 1) + width - 1;
+            ByteBuffer v = ByteBuffer.wrap(samples, 0, planeSize);
+            ByteBuffer u = ByteBuffer.wrap(samples, 1, planeSize);
+            image.buffers[YuvFrameSource.PLANE_V] = v.slice();
+            image.buffers[YuvFrameSource.PLANE_U] = u.slice();
+            for (int plane = YuvFrameSource.PLANE_U; plane <= YuvFrameSource.PLANE_V; plane++) {
+                image.rowStrides[plane] = rowStride;
+                image.pixelStrides[plane] = 2;
+            }
+            return image;
+        }
+
+        private void setLuma(int seed, int rowStride) {
+            byte[] samples = garbage(rowStride * height);
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    samples[row * rowStride + column] = luma(seed, row, column);
+                }
+            }
+            buffers[YuvFrameSource.PLANE_Y] = ByteBuffer.wrap(samples);
+            rowStrides[YuvFrameSource.PLANE_Y] = rowStride;
+            pixelStrides[YuvFrameSource.PLANE_Y] = 1;
+        }
+
+        private static byte[] garbage(int size) {
+            byte[] samples = new byte[size];
+            for (int i = 0; i < size; i++) {
+                samples[i] = (byte) 0xEE;
+            }
+            return samples;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public ByteBuffer getBuffer(int plane) {
+            return buffers[plane];
+        }
+
+        @Override
+        public int getRowStride(int plane) {
+            return rowStrides[plane];
+        }
+
+        @Override
+        public int getPixelStride(int plane) {
+            return pixelStrides[plane];
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}